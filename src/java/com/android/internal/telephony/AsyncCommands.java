@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+import java.util.List;
+
+/**
+ * Future based facade over a {@link CommandsInterface}.
+ *
+ * Each call issues the request immediately and returns a {@link RilFuture}
+ * for its result, so independent requests can be issued back to back and
+ * joined with {@link RilFuture#whenAll}; a poll sequence then takes about
+ * as long as its slowest request rather than the sum of all of them:
+ *
+ * <pre>
+ * RilFuture&lt;String[]&gt; op = async.getOperatorAsync();
+ * RilFuture&lt;String[]&gt; voice = async.getVoiceRegistrationStateAsync();
+ * RilFuture.whenAll(op, voice).addListener(...);
+ * </pre>
+ *
+ * Results are delivered on the given Looper. Any CommandsInterface works,
+ * e.g. RIL or SimulatedCommands; with RIL, cancelling a future also
+ * withdraws the request if it is still queued for sending. A request
+ * already on its way to the modem completes, but RIL drops its result and
+ * no longer counts it towards the in-flight window.
+ *
+ * {@hide}
+ */
+public class AsyncCommands {
+    /**
+     * Issues one request through <code>ci</code>, reporting to
+     * <code>response</code>.
+     */
+    public interface Request {
+        void send(CommandsInterface ci, Message response);
+    }
+
+    private static final int EVENT_RESPONSE = 1;
+
+    private final CommandsInterface mCi;
+    private final Handler mHandler;
+
+    public AsyncCommands(CommandsInterface ci, Looper looper) {
+        mCi = ci;
+        mHandler = new Handler(looper) {
+            @Override
+            public void handleMessage(Message msg) {
+                if (msg.what == EVENT_RESPONSE) {
+                    // The Call passed as obj comes back as the userObj
+                    AsyncResult ar = (AsyncResult) msg.obj;
+                    ((Call<?>) ar.userObj).onResponse(ar);
+                }
+            }
+        };
+    }
+
+    /**
+     * Issues an arbitrary request. The result is cast to <code>T</code>
+     * unchecked, so T must match what the CommandsInterface method reports.
+     */
+    public <T> RilFuture<T> send(Request request) {
+        Call<T> call = new Call<T>();
+        call.mResponse = mHandler.obtainMessage(EVENT_RESPONSE, call);
+        call.mFuture.setCanceller(call);
+        request.send(mCi, call.mResponse);
+        return call.mFuture;
+    }
+
+    public RilFuture<String[]> getOperatorAsync() {
+        return send(new Request() {
+            @Override
+            public void send(CommandsInterface ci, Message response) {
+                ci.getOperator(response);
+            }
+        });
+    }
+
+    public RilFuture<String[]> getVoiceRegistrationStateAsync() {
+        return send(new Request() {
+            @Override
+            public void send(CommandsInterface ci, Message response) {
+                ci.getVoiceRegistrationState(response);
+            }
+        });
+    }
+
+    public RilFuture<String[]> getDataRegistrationStateAsync() {
+        return send(new Request() {
+            @Override
+            public void send(CommandsInterface ci, Message response) {
+                ci.getDataRegistrationState(response);
+            }
+        });
+    }
+
+    public RilFuture<int[]> getNetworkSelectionModeAsync() {
+        return send(new Request() {
+            @Override
+            public void send(CommandsInterface ci, Message response) {
+                ci.getNetworkSelectionMode(response);
+            }
+        });
+    }
+
+    public RilFuture<List<DriverCall>> getCurrentCallsAsync() {
+        return send(new Request() {
+            @Override
+            public void send(CommandsInterface ci, Message response) {
+                ci.getCurrentCalls(response);
+            }
+        });
+    }
+
+    /**
+     * One outstanding request. Responses and cancellation both run on
+     * mHandler, so the response Message is never recycled while a
+     * cancellation may still look it up.
+     */
+    private class Call<T> implements Runnable {
+        final RilFuture<T> mFuture = new RilFuture<T>();
+        Message mResponse;
+        boolean mResponded;
+
+        @SuppressWarnings("unchecked")
+        void onResponse(AsyncResult ar) {
+            mResponded = true;
+            if (ar.exception != null) {
+                mFuture.fail(ar.exception);
+            } else {
+                mFuture.complete((T) ar.result);
+            }
+        }
+
+        /**
+         * Cancels the request; called by mFuture.cancel() on any thread.
+         */
+        @Override
+        public void run() {
+            if (Looper.myLooper() != mHandler.getLooper()) {
+                mHandler.post(this);
+                return;
+            }
+            if (!mResponded && mCi instanceof RIL) {
+                ((RIL) mCi).cancelRequest(mResponse);
+            }
+        }
+    }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.SmsCbLocation;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded cache of recently dispatched cell broadcasts, used to drop the
+ * copies of a message that the network repeats every few seconds before
+ * they are reassembled, decoded and broadcast again.
+ *
+ * Messages are keyed by serial number, message identifier (service
+ * category) and location. For 3GPP the serial number carries the
+ * geographical scope, message code and update number, and the location
+ * holds only the fields that the scope covers, so an updated message, or
+ * the same message heard in another cell or location area, is not a
+ * duplicate. An ETWS primary notification shares these identifiers with
+ * the secondary message that follows it, so the two are keyed apart.
+ * Entries expire {@link #EXPIRATION_MILLIS} after they were
+ * added, can be evicted when the device leaves their area, and the oldest
+ * is dropped once {@link #MAX_ENTRIES} are held.
+ *
+ * {@hide}
+ */
+class CellBroadcastDuplicateCache {
+    /** Dispatched messages remembered before the oldest is evicted. */
+    static final int MAX_ENTRIES = 64;
+
+    /** How long a dispatched message suppresses its repeats. */
+    static final long EXPIRATION_MILLIS = 24 * 60 * 60 * 1000L;
+
+    private static final class Key {
+        final int mSerialNumber;
+        final int mServiceCategory;
+        final SmsCbLocation mLocation;
+        final boolean mIsEtwsPrimary;
+
+        Key(int serialNumber, int serviceCategory, SmsCbLocation location,
+                boolean isEtwsPrimary) {
+            mSerialNumber = serialNumber;
+            mServiceCategory = serviceCategory;
+            mLocation = location;
+            mIsEtwsPrimary = isEtwsPrimary;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((mSerialNumber * 31 + mServiceCategory) * 31 + mLocation.hashCode()) * 31
+                    + (mIsEtwsPrimary ? 1 : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                Key other = (Key) o;
+                return mSerialNumber == other.mSerialNumber
+                        && mServiceCategory == other.mServiceCategory
+                        && mLocation.equals(other.mLocation)
+                        && mIsEtwsPrimary == other.mIsEtwsPrimary;
+            }
+            return false;
+        }
+    }
+
+    /** Time each message was dispatched, oldest first. */
+    private final LinkedHashMap<Key, Long> mEntries = new LinkedHashMap<Key, Long>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Key, Long> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * Returns whether a message with these identifiers was dispatched within
+     * the expiration window.
+     *
+     * @param now the current time, from {@link android.os.SystemClock#elapsedRealtime}
+     */
+    boolean isDuplicate(int serialNumber, int serviceCategory, SmsCbLocation location,
+            long now) {
+        return isDuplicate(serialNumber, serviceCategory, location, false, now);
+    }
+
+    /**
+     * Returns whether a message with these identifiers, and of the same kind
+     * (ETWS primary notification or not), was dispatched within the
+     * expiration window.
+     *
+     * @param now the current time, from {@link android.os.SystemClock#elapsedRealtime}
+     */
+    boolean isDuplicate(int serialNumber, int serviceCategory, SmsCbLocation location,
+            boolean isEtwsPrimary, long now) {
+        expire(now);
+        return mEntries.containsKey(
+                new Key(serialNumber, serviceCategory, location, isEtwsPrimary));
+    }
+
+    /**
+     * Record that a message was dispatched.
+     *
+     * @param now the current time, from {@link android.os.SystemClock#elapsedRealtime}
+     */
+    void add(int serialNumber, int serviceCategory, SmsCbLocation location, long now) {
+        add(serialNumber, serviceCategory, location, false, now);
+    }
+
+    /**
+     * Record that a message, which may be an ETWS primary notification, was
+     * dispatched.
+     *
+     * @param now the current time, from {@link android.os.SystemClock#elapsedRealtime}
+     */
+    void add(int serialNumber, int serviceCategory, SmsCbLocation location,
+            boolean isEtwsPrimary, long now) {
+        expire(now);
+        Key key = new Key(serialNumber, serviceCategory, location, isEtwsPrimary);
+        // re-insert so that entries stay ordered by time
+        mEntries.remove(key);
+        mEntries.put(key, now);
+    }
+
+    /**
+     * Evict the messages whose area does not include the current location.
+     *
+     * @param plmn the current PLMN
+     * @param lac the current Location Area (GSM) or Service Area (UMTS)
+     * @param cid the current Cell ID
+     */
+    void evictOutsideArea(String plmn, int lac, int cid) {
+        Iterator<Key> iter = mEntries.keySet().iterator();
+        while (iter.hasNext()) {
+            if (!iter.next().mLocation.isInLocationArea(plmn, lac, cid)) {
+                iter.remove();
+            }
+        }
+    }
+
+    /** Returns the number of messages held. */
+    int size() {
+        return mEntries.size();
+    }
+
+    private void expire(long now) {
+        Iterator<Long> iter = mEntries.values().iterator();
+        while (iter.hasNext()) {
+            if (now - iter.next() < EXPIRATION_MILLIS) {
+                break;
+            }
+            iter.remove();
+        }
+    }
+}
@@ -22,9 +22,11 @@ import android.app.AppOpsManager;
 import android.content.Context;
 import android.content.Intent;
 import android.os.Message;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.provider.Telephony;
 import android.telephony.SubscriptionManager;
+import android.telephony.SmsCbLocation;
 import android.telephony.SmsCbMessage;
 
 /**
@@ -33,6 +35,9 @@ import android.telephony.SmsCbMessage;
  */
 public class CellBroadcastHandler extends WakeLockStateMachine {
 
+    /** Recently dispatched broadcasts, used to drop the network's repeats. */
+    private final CellBroadcastDuplicateCache mDuplicateCache = new CellBroadcastDuplicateCache();
+
     private CellBroadcastHandler(Context context, PhoneBase phone) {
         this("CellBroadcastHandler", context, phone);
     }
@@ -62,7 +67,15 @@ public class CellBroadcastHandler extends WakeLockStateMachine {
     @Override
     protected boolean handleSmsMessage(Message message) {
         if (message.obj instanceof SmsCbMessage) {
-            handleBroadcastSms((SmsCbMessage) message.obj);
+            SmsCbMessage cbMessage = (SmsCbMessage) message.obj;
+            if (isDuplicate(cbMessage.getSerialNumber(), cbMessage.getServiceCategory(),
+                    cbMessage.getLocation())) {
+                log("Dropping duplicate SMS CB, serial number " + cbMessage.getSerialNumber());
+                return false;
+            }
+            addToDuplicateCache(cbMessage.getSerialNumber(), cbMessage.getServiceCategory(),
+                    cbMessage.getLocation());
+            handleBroadcastSms(cbMessage);
             return true;
         } else {
             loge("handleMessage got object of type: " + message.obj.getClass().getName());
@@ -70,6 +83,63 @@ public class CellBroadcastHandler extends WakeLockStateMachine {
         }
     }
 
+    /**
+     * Returns whether a Cell Broadcast with this serial number and message identifier was
+     * already dispatched for this location, and the copy being handled is a repeat.
+     *
+     * @param serialNumber the serial number, including the update number for 3GPP
+     * @param serviceCategory the message identifier (3GPP) or service category (3GPP2)
+     * @param location the location, with only the fields covered by the geographical scope
+     * @return true if the message should be dropped
+     */
+    protected boolean isDuplicate(int serialNumber, int serviceCategory,
+            SmsCbLocation location) {
+        return isDuplicate(serialNumber, serviceCategory, location, false);
+    }
+
+    /**
+     * Like {@link #isDuplicate(int, int, SmsCbLocation)}, but an ETWS primary notification
+     * and the secondary message with the same identifiers are not repeats of each other.
+     *
+     * @param isEtwsPrimary true for an ETWS primary notification
+     */
+    protected boolean isDuplicate(int serialNumber, int serviceCategory,
+            SmsCbLocation location, boolean isEtwsPrimary) {
+        return mDuplicateCache.isDuplicate(serialNumber, serviceCategory, location,
+                isEtwsPrimary, SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Record a Cell Broadcast that is being dispatched so that its repeats are dropped.
+     * See {@link #isDuplicate} for the parameters.
+     */
+    protected void addToDuplicateCache(int serialNumber, int serviceCategory,
+            SmsCbLocation location) {
+        addToDuplicateCache(serialNumber, serviceCategory, location, false);
+    }
+
+    /**
+     * Record a Cell Broadcast that is being dispatched, which may be an ETWS primary
+     * notification. See {@link #isDuplicate(int, int, SmsCbLocation, boolean)}.
+     */
+    protected void addToDuplicateCache(int serialNumber, int serviceCategory,
+            SmsCbLocation location, boolean isEtwsPrimary) {
+        mDuplicateCache.add(serialNumber, serviceCategory, location, isEtwsPrimary,
+                SystemClock.elapsedRealtime());
+    }
+
+    /**
+     * Forget the dispatched Cell Broadcasts whose area does not include the current location,
+     * so that they are delivered again if heard after the device returns.
+     *
+     * @param plmn the current PLMN
+     * @param lac the current Location Area (GSM) or Service Area (UMTS)
+     * @param cid the current Cell ID
+     */
+    protected void evictDuplicatesOutsideArea(String plmn, int lac, int cid) {
+        mDuplicateCache.evictOutsideArea(plmn, lac, cid);
+    }
+
     /**
      * Dispatch a Cell Broadcast message to listeners.
      * @param message the Cell Broadcast to broadcast
@@ -71,7 +71,6 @@ import com.android.internal.telephony.uicc.UiccCard;
 import com.android.internal.telephony.uicc.UiccController;
 import com.android.internal.telephony.util.BlacklistUtils;
 import com.android.internal.telephony.PhoneBase;
-import com.android.internal.util.HexDump;
 import com.android.internal.util.State;
 import com.android.internal.util.StateMachine;
 
@@ -164,6 +163,9 @@ public abstract class InboundSmsHandler extends StateMachine {
     /** Special handler for WAP push messages. */
     private final WapPushOverSms mWapPush;
 
+    /** Segments of incomplete multi-part messages, mirroring the raw table. */
+    private final SmsReassemblyIndex mReassemblyIndex = new SmsReassemblyIndex();
+
     /** Wake lock to ensure device stays awake while dispatching the SMS intents. */
     final PowerManager.WakeLock mWakeLock;
 
@@ -300,8 +302,9 @@ public abstract class InboundSmsHandler extends StateMachine {
     }
 
     /**
-     * The Startup state waits for {@link SmsBroadcastUndelivered} to process the raw table and
-     * notify the state machine to broadcast any complete PDUs that might not have been broadcast.
+     * The Startup state waits for {@link SmsBroadcastUndelivered} to notify the state machine to
+     * start accepting new messages. Recovery of the raw table continues in the background and
+     * sends {@link #EVENT_BROADCAST_SMS} for any complete PDUs that might not have been broadcast.
      */
     class StartupState extends State {
         @Override
@@ -749,6 +752,19 @@ public abstract class InboundSmsHandler extends StateMachine {
         if (messageCount == 1) {
             // single-part message
             pdus = new byte[][]{tracker.getPdu()};
+        } else if (mReassemblyIndex.isAuthoritative(tracker)) {
+            // multi-part message, every stored segment is also in the index
+            SmsReassemblyIndex.Entry entry = mReassemblyIndex.claimComplete(tracker);
+            if (entry == null) {
+                // Wait for the other message parts to arrive, or the message was already
+                // broadcast when an earlier EVENT_BROADCAST_SMS found it complete.
+                return false;
+            }
+            pdus = entry.getPdus();
+            // Prefer the port from the first segment, as below
+            if (entry.getDestPort() != -1) {
+                destPort = entry.getDestPort();
+            }
         } else {
             // multi-part message
             Cursor cursor = null;
@@ -779,7 +795,7 @@ public abstract class InboundSmsHandler extends StateMachine {
                     // subtract offset to convert sequence to 0-based array index
                     int index = cursor.getInt(SEQUENCE_COLUMN) - tracker.getIndexOffset();
 
-                    pdus[index] = HexDump.hexStringToByteArray(cursor.getString(PDU_COLUMN));
+                    pdus[index] = InboundSmsTracker.readPdu(cursor, PDU_COLUMN);
 
                     // Read the destination port from the first segment (needed for CDMA WAP PDU).
                     // It's not a bad idea to prefer the port from the first segment in other cases.
@@ -792,6 +808,8 @@ public abstract class InboundSmsHandler extends StateMachine {
                         }
                     }
                 }
+                // keep a later EVENT_BROADCAST_SMS from claiming it once the index is seeded
+                mReassemblyIndex.markDispatched(tracker);
             } catch (SQLException e) {
                 loge("Can't access multipart SMS database", e);
                 return false;
@@ -810,10 +828,14 @@ public abstract class InboundSmsHandler extends StateMachine {
             for (byte[] pdu : pdus) {
                 // 3GPP needs to extract the User Data from the PDU; 3GPP2 has already done this
                 if (!tracker.is3gpp2()) {
-                    SmsMessage msg = SmsMessage.createFromPdu(pdu, SmsConstants.FORMAT_3GPP);
-                    pdu = msg.getUserData();
+                    // Parse lazily and copy the payload straight out of the PDU; only the
+                    // user data location is needed here.
+                    com.android.internal.telephony.gsm.SmsMessage msg =
+                            com.android.internal.telephony.gsm.SmsMessage.createFromPdu(pdu, true);
+                    output.write(msg.getPdu(), msg.getUserDataOffset(), msg.getUserDataLength());
+                } else {
+                    output.write(pdu, 0, pdu.length);
                 }
-                output.write(pdu, 0, pdu.length);
             }
             int result = mWapPush.dispatchWapPdu(output.toByteArray(), resultReceiver, this);
             if (DBG) log("dispatchWapPdu() returned " + result);
@@ -930,10 +952,21 @@ public abstract class InboundSmsHandler extends StateMachine {
         }
     }
 
+    /**
+     * Returns the index that {@link SmsBroadcastUndelivered} replays the raw table into.
+     */
+    SmsReassemblyIndex getReassemblyIndex() {
+        return mReassemblyIndex;
+    }
+
     /**
      * Helper for {@link SmsBroadcastUndelivered} to delete an old message in the raw table.
      */
     void deleteFromRawTable(String deleteWhere, String[] deleteWhereArgs) {
+        if (SELECT_BY_REFERENCE.equals(deleteWhere)) {
+            mReassemblyIndex.remove(deleteWhereArgs[0], Integer.parseInt(deleteWhereArgs[1]),
+                    Integer.parseInt(deleteWhereArgs[2]));
+        }
         int rows = mResolver.delete(sRawUri, deleteWhere, deleteWhereArgs);
         if (rows == 0) {
             loge("No rows were deleted from raw table!");
@@ -1024,7 +1057,19 @@ public abstract class InboundSmsHandler extends StateMachine {
      * @return true on success; false on failure to write to database
      */
     private int addTrackerToRawTable(InboundSmsTracker tracker) {
-        if (tracker.getMessageCount() != 1) {
+        if (tracker.getMessageCount() != 1 && mReassemblyIndex.isAuthoritative(tracker)) {
+            // set the delete selection args for multi-part message
+            tracker.setDeleteWhere(SELECT_BY_REFERENCE, new String[] {tracker.getAddress(),
+                    Integer.toString(tracker.getReferenceNumber()),
+                    Integer.toString(tracker.getMessageCount())});
+
+            if (mReassemblyIndex.isDuplicate(tracker)) {
+                loge("Discarding duplicate message segment, refNumber="
+                        + tracker.getReferenceNumber()
+                        + " seqNumber=" + tracker.getSequenceNumber());
+                return Intents.RESULT_SMS_DUPLICATED;   // reject message
+            }
+        } else if (tracker.getMessageCount() != 1) {
             // check for duplicate message segments
             Cursor cursor = null;
             try {
@@ -1051,9 +1096,8 @@ public abstract class InboundSmsHandler extends StateMachine {
                 if (cursor.moveToNext()) {
                     loge("Discarding duplicate message segment, refNumber=" + refNumber
                             + " seqNumber=" + seqNumber);
-                    String oldPduString = cursor.getString(PDU_COLUMN);
                     byte[] pdu = tracker.getPdu();
-                    byte[] oldPdu = HexDump.hexStringToByteArray(oldPduString);
+                    byte[] oldPdu = InboundSmsTracker.readPdu(cursor, PDU_COLUMN);
                     if (!Arrays.equals(oldPdu, tracker.getPdu())) {
                         loge("Warning: dup message segment PDU of length " + pdu.length
                                 + " is different from existing PDU of length " + oldPdu.length);
@@ -1082,6 +1126,10 @@ public abstract class InboundSmsHandler extends StateMachine {
             if (tracker.getMessageCount() == 1) {
                 // set the delete selection args for single-part message
                 tracker.setDeleteWhere(SELECT_BY_ID, new String[]{Long.toString(rowId)});
+            } else {
+                // the raw table row is the durable copy, index it only once written; this
+                // also runs while SmsBroadcastUndelivered is still seeding the index
+                mReassemblyIndex.add(tracker);
             }
             return Intents.RESULT_SMS_HANDLED;
         } catch (Exception e) {
@@ -18,6 +18,7 @@ package com.android.internal.telephony;
 
 import android.content.ContentValues;
 import android.database.Cursor;
+import android.os.SystemProperties;
 
 import com.android.internal.util.HexDump;
 
@@ -63,6 +64,17 @@ public final class InboundSmsTracker {
     /** Destination port mask (16-bit unsigned value on GSM and CDMA). */
     private static final int DEST_PORT_MASK = 0xffff;
 
+    /**
+     * Store PDUs in the raw table as BLOBs rather than hex strings. Rows written either way
+     * can always be read back by {@link #readPdu}, so this only controls new inserts. Off by
+     * default: builds without {@link #readPdu} expect hex strings, so BLOB rows left in the
+     * raw table would not be delivered after a rollback.
+     */
+    static final String PROPERTY_RAW_BLOB_PDU = "persist.radio.sms_raw_blob_pdu";
+
+    private static final boolean STORE_PDU_AS_BLOB =
+            SystemProperties.getBoolean(PROPERTY_RAW_BLOB_PDU, false);
+
     /**
      * Create a tracker for a single-part SMS.
      * @param pdu the message PDU
@@ -123,7 +135,7 @@ public final class InboundSmsTracker {
      * @param cursor a Cursor pointing to the row to construct this SmsTracker for
      */
     InboundSmsTracker(Cursor cursor, boolean isCurrentFormat3gpp2) {
-        mPdu = HexDump.hexStringToByteArray(cursor.getString(InboundSmsHandler.PDU_COLUMN));
+        mPdu = readPdu(cursor, InboundSmsHandler.PDU_COLUMN);
 
         if (cursor.isNull(InboundSmsHandler.DESTINATION_PORT_COLUMN)) {
             mDestPort = -1;
@@ -174,9 +186,32 @@ public final class InboundSmsTracker {
         }
     }
 
+    /**
+     * Read a PDU from the raw table. Older builds stored the PDU as a hex string; newer rows
+     * hold the raw bytes as a BLOB. SQLite keeps the storage class per value, so both may be
+     * present in the same column and are told apart by the cursor type.
+     * @param cursor a Cursor pointing to a row of the raw table
+     * @param column the index of the pdu column
+     * @return the PDU bytes
+     */
+    static byte[] readPdu(Cursor cursor, int column) {
+        if (cursor.getType(column) == Cursor.FIELD_TYPE_BLOB) {
+            return cursor.getBlob(column);
+        }
+        return HexDump.hexStringToByteArray(cursor.getString(column));
+    }
+
     ContentValues getContentValues() {
+        return getContentValues(STORE_PDU_AS_BLOB);
+    }
+
+    ContentValues getContentValues(boolean pduAsBlob) {
         ContentValues values = new ContentValues();
-        values.put("pdu", HexDump.toHexString(mPdu));
+        if (pduAsBlob) {
+            values.put("pdu", mPdu);
+        } else {
+            values.put("pdu", HexDump.toHexString(mPdu));
+        }
         values.put("date", mTimestamp);
         // Always set the destination port, since it now contains message format flags.
         // Port is a 16-bit value, or -1, so clear the upper bits before setting flags.
@@ -35,6 +35,7 @@ import android.net.ConnectivityManager;
 import android.net.LocalSocket;
 import android.net.LocalSocketAddress;
 import android.os.AsyncResult;
+import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
@@ -59,6 +60,7 @@ import android.telephony.TelephonyManager;
 import android.telephony.ModemActivityInfo;
 import android.text.TextUtils;
 import android.util.SparseArray;
+import android.util.SparseIntArray;
 import android.view.Display;
 
 import com.android.internal.telephony.gsm.SmsBroadcastConfigInfo;
@@ -83,7 +85,6 @@ import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.FileDescriptor;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -108,11 +109,23 @@ class RILRequest {
     private Context mContext;
 
     //***** Instance Variables
-    int mSerial;
+    volatile int mSerial;
     int mRequest;
     Message mResult;
     Parcel mParcel;
     RILRequest mNext;
+    // Coalescer this request is open in, if any
+    RilRequestCoalescer mCoalescer;
+    // Additional callers sharing this request's response
+    ArrayList<Message> mCoalesced;
+    // elapsedRealtime when queued for sending and when written to rild
+    long mEnqueueTime;
+    long mWriteTime;
+    // Links and expiry tick in RilRequestTimer while awaiting a response
+    RILRequest mTimerNext;
+    RILRequest mTimerPrev;
+    long mDeadlineTick;
+    boolean mTimerArmed;
 
     /**
      * Retrieves a new RILRequest instance from the pool.
@@ -140,7 +153,9 @@ class RILRequest {
         rr.mSerial = sNextSerial.getAndIncrement();
 
         rr.mRequest = request;
-        rr.mResult = result;
+        synchronized (rr) {
+            rr.mResult = result;
+        }
         rr.mParcel = Parcel.obtain();
 
         if (result != null && result.getTarget() == null) {
@@ -165,7 +180,10 @@ class RILRequest {
                 mNext = sPool;
                 sPool = this;
                 sPoolSize++;
-                mResult = null;
+                synchronized (this) {
+                    mResult = null;
+                }
+                mCoalesced = null;
             }
         }
     }
@@ -173,6 +191,57 @@ class RILRequest {
     private RILRequest() {
     }
 
+    /**
+     * Closes this request to further coalescing. Must be called before
+     * the request is written or completed.
+     */
+    void seal() {
+        RilRequestCoalescer coalescer = mCoalescer;
+        if (coalescer != null) {
+            coalescer.seal(this);
+        }
+    }
+
+    /**
+     * Sends the result to the caller, unless it cancelled the request, and
+     * to every coalesced caller.
+     */
+    void sendResult(Object ret, Throwable ex) {
+        seal();
+
+        Message result;
+        synchronized (this) {
+            result = mResult;
+            mResult = null;
+        }
+        if (result != null) {
+            AsyncResult.forMessage(result, ret, ex);
+            result.sendToTarget();
+        }
+
+        if (mCoalesced != null) {
+            for (Message m : mCoalesced) {
+                AsyncResult.forMessage(m, ret, ex);
+                m.sendToTarget();
+            }
+        }
+    }
+
+    /**
+     * Detaches <code>result</code> so that the result of this request is
+     * not sent to it. Fails if the result was already sent, or if other
+     * callers share the request.
+     *
+     * @return true if detached
+     */
+    synchronized boolean cancel(Message result) {
+        if (result == null || mResult != result || mCoalesced != null) {
+            return false;
+        }
+        mResult = null;
+        return true;
+    }
+
     static void
     resetSerial() {
         // use a random so that on recovery we probably don't mix old requests
@@ -211,10 +280,7 @@ class RILRequest {
             + RIL.requestToString(mRequest)
             + " error: " + ex + " ret=" + RIL.retToString(mRequest, ret));
 
-        if (mResult != null) {
-            AsyncResult.forMessage(mResult, ret, ex);
-            mResult.sendToTarget();
-        }
+        sendResult(ret, ex);
 
         if (mParcel != null) {
             mParcel.recycle();
@@ -244,13 +310,105 @@ public class RIL extends BaseCommands implements CommandsInterface {
      */
     private static final int DEFAULT_WAKE_LOCK_TIMEOUT = 60000;
 
+    /**
+     * Set to true to let callers of idempotent queries such as getOperator()
+     * share a request of the same type that has not been sent yet.
+     */
+    static final String PROPERTY_COALESCE_REQUESTS = "persist.radio.ril_coalesce";
+
+    /**
+     * Set to true to let call control overtake ordinary requests and bulk
+     * queries such as SIM_IO fall behind them, see RilSendScheduler. Off by
+     * default, requests are written to rild in strict FIFO order.
+     */
+    static final String PROPERTY_PRIORITIZE_REQUESTS = "persist.radio.ril_prioritize";
+
+    /**
+     * Maximum number of requests written to rild and not yet answered, 0 for
+     * no limit. Further requests wait in RilSendScheduler; urgent requests
+     * are always let through. A request left unanswered for the wake lock
+     * timeout stops counting, so lost responses cannot fill the window.
+     */
+    static final String PROPERTY_INFLIGHT_WINDOW = "persist.radio.ril_window";
+
+    /**
+     * Maximum number of background requests, e.g. phonebook SIM_IO, waiting
+     * to be sent, 0 for no limit. See PROPERTY_SHED_POLICY.
+     */
+    static final String PROPERTY_MAX_BACKGROUND_QUEUE = "persist.radio.ril_max_bg_queue";
+
+    /**
+     * "drop_oldest" to fail the oldest waiting background request when a new
+     * one exceeds PROPERTY_MAX_BACKGROUND_QUEUE; otherwise the new request
+     * is failed.
+     */
+    static final String PROPERTY_SHED_POLICY = "persist.radio.ril_shed_policy";
+
+    /**
+     * Set to true to only deliver the newest of a burst of signal strength,
+     * cell info or voice network state reports, see RilUnsolCoalescer.
+     */
+    static final String PROPERTY_COALESCE_UNSOLICITED = "persist.radio.ril_unsol_coalesce";
+
+    /**
+     * Path prefix of a file to record all rild traffic to, debuggable builds
+     * only. The instance id is appended. See RilCaptureTransport.
+     */
+    static final String PROPERTY_CAPTURE_PATH = "persist.radio.ril_capture";
+
+    /**
+     * Set to true to drop unsolicited signal strength reports that repeat
+     * the last one delivered, see SignalStrengthFilter. Off by default, as
+     * some clients rely on the periodic reports to tell that the modem is
+     * alive.
+     */
+    static final String PROPERTY_FILTER_SIGNAL_STRENGTH = "persist.radio.ss_filter";
+
+    /**
+     * Minimum change in dBm of CDMA, EVDO or LTE RSRP levels before an
+     * unsolicited signal strength report is passed on, with
+     * PROPERTY_FILTER_SIGNAL_STRENGTH set. 0 passes any change.
+     */
+    static final String PROPERTY_SIGNAL_STRENGTH_HYSTERESIS_DB = "persist.radio.ss_hysteresis_db";
+
+    /**
+     * Per request type response deadlines, as a comma separated list of
+     * RIL_REQUEST_*:milliseconds pairs, e.g. "28:120000,48:90000". Request
+     * types without a deadline wait for rild indefinitely, as they always
+     * have; only the wake lock is dropped after the wake lock timeout.
+     */
+    static final String PROPERTY_REQUEST_TIMEOUTS = "persist.radio.ril_req_timeouts";
+
+    /**
+     * Set to true to read the rild sockets of all instances from a single
+     * RilIoEngine thread instead of a RILReceiver thread each. Every instance
+     * keeps its own RILSender thread.
+     */
+    static final String PROPERTY_SHARED_IO = "persist.radio.ril_shared_io";
+
+    /**
+     * Number of records kept in the RilTraceBuffer printed by dump().
+     */
+    static final String PROPERTY_TRACE_SIZE = "persist.radio.ril_trace_size";
+
+    /**
+     * Set to true to only record responses and unsolicited messages in the
+     * trace buffer instead of also formatting them to logcat. The "> REQUEST"
+     * lines are still built and logged, since each request method formats
+     * its own before calling send().
+     */
+    static final String PROPERTY_TRACE_ONLY = "persist.radio.ril_trace_only";
+
     //***** Instance Variables
 
     LocalSocket mSocket;
+    volatile RilTransport mTransport;
     HandlerThread mSenderThread;
     RILSender mSender;
     Thread mReceiverThread;
     RILReceiver mReceiver;
+    // Shared reader and writer thread replacing the two above, null if not used
+    RilIoEngine mIoEngine;
     Display mDefaultDisplay;
     int mDefaultDisplayState = Display.STATE_UNKNOWN;
     int mRadioScreenState = RADIO_SCREEN_UNSET;
@@ -261,7 +419,40 @@ public class RIL extends BaseCommands implements CommandsInterface {
     // until dec'd to 0
     int mWakeLockCount;
 
-    SparseArray<RILRequest> mRequestList = new SparseArray<RILRequest>();
+    final RilRequestTable mRequestList = new RilRequestTable();
+
+    // Shares pending read-only queries between callers, null when disabled
+    final RilRequestCoalescer mCoalescer;
+
+    // Latency histograms and error counts per RIL_REQUEST_*
+    final RilRequestStats mRequestStats;
+
+    // Orders requests waiting for RILSender by priority class
+    final RilSendScheduler mSendScheduler;
+    // Requests in mRequestList counted against PROPERTY_INFLIGHT_WINDOW
+    final RilInFlightWindow mInFlightWindow;
+
+    // Hooks checked before processUnsolicited's switch. By default only the three ids that
+    // RilUnsolCoalescer holds back are here; every other RIL_UNSOL_* uses the switch.
+    final SparseArray<UnsolDispatcher> mUnsolDispatchers = new SparseArray<UnsolDispatcher>();
+
+    // Drops stale high-frequency unsolicited responses, null when disabled
+    final RilUnsolCoalescer mUnsolCoalescer;
+
+    // Drops signal strength reports equal to the last one delivered, null when disabled
+    final SignalStrengthFilter mSignalStrengthFilter;
+
+    // Binary history of RIL traffic, formatted only by dump()
+    final RilTraceBuffer mTrace;
+    // Skip logcat for responses, which are traced anyway
+    final boolean mTraceOnly;
+
+    // Response deadlines of written requests, for the types given in PROPERTY_REQUEST_TIMEOUTS
+    final RilRequestTimer mRequestTimer = new RilRequestTimer();
+    final SparseIntArray mRequestTimeouts = new SparseIntArray();
+    // Only touched by RILSender
+    private final ArrayList<RILRequest> mExpiredRequests = new ArrayList<RILRequest>();
+    int mTimedOutCount;
 
     Object     mLastNITZTimeInfo;
 
@@ -279,6 +470,8 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
     static final int EVENT_SEND                 = 1;
     static final int EVENT_WAKE_LOCK_TIMEOUT    = 2;
+    static final int EVENT_REQUEST_TIMEOUT      = 3;
+    static final int EVENT_WINDOW_STALE         = 4;
 
     //***** Constants
 
@@ -334,9 +527,6 @@ public class RIL extends BaseCommands implements CommandsInterface {
             super(looper);
         }
 
-        // Only allocated once
-        byte[] dataLength = new byte[4];
-
         //***** Runnable implementation
         @Override
         public void
@@ -348,26 +538,40 @@ public class RIL extends BaseCommands implements CommandsInterface {
         //***** Handler implementation
         @Override public void
         handleMessage(Message msg) {
-            RILRequest rr = (RILRequest)(msg.obj);
+            RILRequest rr = null;
             RILRequest req = null;
 
             switch (msg.what) {
                 case EVENT_SEND:
+                    // One EVENT_SEND is posted per queued request; the
+                    // scheduler picks which one goes out now.
+                    rr = mSendScheduler.poll(SystemClock.elapsedRealtime(), isWindowFull());
+                    if (rr == null) {
+                        // Window full; a completing request posts EVENT_SEND again,
+                        // or the oldest one stops counting once it is stale
+                        scheduleWindowStaleCheck();
+                        break;
+                    }
+
                     try {
-                        LocalSocket s;
+                        RilTransport t;
 
-                        s = mSocket;
+                        t = mTransport;
 
-                        if (s == null) {
+                        if (t == null) {
+                            mTrace.add(RilTraceBuffer.TYPE_SEND_FAILED, rr.mSerial, rr.mRequest,
+                                    RADIO_NOT_AVAILABLE, 0, 0);
                             rr.onError(RADIO_NOT_AVAILABLE, null);
                             rr.release();
                             decrementWakeLock();
+                            pumpSendQueue();
                             return;
                         }
 
-                        synchronized (mRequestList) {
-                            mRequestList.append(rr.mSerial, rr);
-                        }
+                        // No caller may join once the query reaches the modem
+                        rr.seal();
+
+                        mRequestList.append(rr.mSerial, rr);
 
                         byte[] data;
 
@@ -381,24 +585,30 @@ public class RIL extends BaseCommands implements CommandsInterface {
                                                           + data.length);
                         }
 
-                        // parcel length in big endian
-                        dataLength[0] = dataLength[1] = 0;
-                        dataLength[2] = (byte)((data.length >> 8) & 0xff);
-                        dataLength[3] = (byte)((data.length) & 0xff);
-
                         //Rlog.v(RILJ_LOG_TAG, "writing packet: " + data.length + " bytes");
 
-                        s.getOutputStream().write(dataLength);
-                        s.getOutputStream().write(data);
+                        // Stamp and trace before writing, the response may race the
+                        // return; a failed write is traced as SEND_FAILED after this
+                        rr.mWriteTime = SystemClock.elapsedRealtime();
+                        mInFlightWindow.add(rr);
+                        armDeadline(rr);
+                        mTrace.add(RilTraceBuffer.TYPE_SEND, rr.mSerial, rr.mRequest, 0,
+                                rr.mWriteTime - rr.mEnqueueTime, data.length);
+                        t.writeMessage(data);
                     } catch (IOException ex) {
                         Rlog.e(RILJ_LOG_TAG, "IOException", ex);
                         req = findAndRemoveRequestFromList(rr.mSerial);
                         // make sure this request has not already been handled,
                         // eg, if RILReceiver cleared the list.
                         if (req != null) {
+                            mRequestTimer.cancel(rr);
+                            mInFlightWindow.remove(rr);
+                            mTrace.add(RilTraceBuffer.TYPE_SEND_FAILED, rr.mSerial, rr.mRequest,
+                                    RADIO_NOT_AVAILABLE, 0, 0);
                             rr.onError(RADIO_NOT_AVAILABLE, null);
                             rr.release();
                             decrementWakeLock();
+                            pumpSendQueue();
                         }
                     } catch (RuntimeException exc) {
                         Rlog.e(RILJ_LOG_TAG, "Uncaught exception ", exc);
@@ -406,14 +616,42 @@ public class RIL extends BaseCommands implements CommandsInterface {
                         // make sure this request has not already been handled,
                         // eg, if RILReceiver cleared the list.
                         if (req != null) {
+                            mRequestTimer.cancel(rr);
+                            mInFlightWindow.remove(rr);
+                            mTrace.add(RilTraceBuffer.TYPE_SEND_FAILED, rr.mSerial, rr.mRequest,
+                                    GENERIC_FAILURE, 0, 0);
                             rr.onError(GENERIC_FAILURE, null);
                             rr.release();
                             decrementWakeLock();
+                            pumpSendQueue();
                         }
                     }
 
                     break;
 
+                case EVENT_REQUEST_TIMEOUT:
+                    expireRequests(SystemClock.elapsedRealtime());
+                    if (mRequestTimer.size() > 0) {
+                        sendEmptyMessageDelayed(EVENT_REQUEST_TIMEOUT,
+                                mRequestTimer.getTickMs());
+                    }
+                    break;
+
+                case EVENT_WINDOW_STALE:
+                    int stale = mInFlightWindow.releaseStale(SystemClock.elapsedRealtime());
+                    if (stale > 0) {
+                        Rlog.w(RILJ_LOG_TAG, stale + " requests unanswered for "
+                                + mWakeLockTimeout + "ms no longer count towards the window"
+                                + (mInstanceId != null ? (" [SUB" + mInstanceId + "]") : ""));
+                    }
+                    for (int i = 0; i < stale; i++) {
+                        pumpSendQueue();
+                    }
+                    if (isWindowFull() && mSendScheduler.size() > 0) {
+                        scheduleWindowStaleCheck();
+                    }
+                    break;
+
                 case EVENT_WAKE_LOCK_TIMEOUT:
                     // Haven't heard back from the last request.  Assume we're
                     // not getting a response and  release the wake lock.
@@ -423,20 +661,21 @@ public class RIL extends BaseCommands implements CommandsInterface {
                     // all requests in mRequestList already waited at
                     // least DEFAULT_WAKE_LOCK_TIMEOUT but no response.
                     //
-                    // Note: Keep mRequestList so that delayed response
-                    // can still be handled when response finally comes.
-
-                    synchronized (mRequestList) {
-                        if (clearWakeLock()) {
-                            if (RILJ_LOGD) {
-                                int count = mRequestList.size();
-                                Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
-                                        " mRequestList=" + count);
-                                for (int i = 0; i < count; i++) {
-                                    rr = mRequestList.valueAt(i);
-                                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
-                                            + requestToString(rr.mRequest));
-                                }
+                    // Requests normally fail at their own deadline first, so
+                    // this only catches those whose deadline is disabled or
+                    // longer. Keep them in mRequestList so that a delayed
+                    // response can still be handled when it finally comes.
+
+                    if (clearWakeLock()) {
+                        if (RILJ_LOGD) {
+                            ArrayList<RILRequest> pending = mRequestList.snapshot();
+                            int count = pending.size();
+                            Rlog.d(RILJ_LOG_TAG, "WAKE_LOCK_TIMEOUT " +
+                                    " mRequestList=" + count);
+                            for (int i = 0; i < count; i++) {
+                                rr = pending.get(i);
+                                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] "
+                                        + requestToString(rr.mRequest));
                             }
                         }
                     }
@@ -445,70 +684,8 @@ public class RIL extends BaseCommands implements CommandsInterface {
         }
     }
 
-    /**
-     * Reads in a single RIL message off the wire. A RIL message consists
-     * of a 4-byte little-endian length and a subsequent series of bytes.
-     * The final message (length header omitted) is read into
-     * <code>buffer</code> and the length of the final message (less header)
-     * is returned. A return value of -1 indicates end-of-stream.
-     *
-     * @param is non-null; Stream to read from
-     * @param buffer Buffer to fill in. Must be as large as maximum
-     * message size, or an ArrayOutOfBounds exception will be thrown.
-     * @return Length of message less header, or -1 on end of stream.
-     * @throws IOException
-     */
-    private static int readRilMessage(InputStream is, byte[] buffer)
-            throws IOException {
-        int countRead;
-        int offset;
-        int remaining;
-        int messageLength;
-
-        // First, read in the length of the message
-        offset = 0;
-        remaining = 4;
-        do {
-            countRead = is.read(buffer, offset, remaining);
-
-            if (countRead < 0 ) {
-                Rlog.e(RILJ_LOG_TAG, "Hit EOS reading message length");
-                return -1;
-            }
-
-            offset += countRead;
-            remaining -= countRead;
-        } while (remaining > 0);
-
-        messageLength = ((buffer[0] & 0xff) << 24)
-                | ((buffer[1] & 0xff) << 16)
-                | ((buffer[2] & 0xff) << 8)
-                | (buffer[3] & 0xff);
-
-        // Then, re-use the buffer and read in the message itself
-        offset = 0;
-        remaining = messageLength;
-        do {
-            countRead = is.read(buffer, offset, remaining);
-
-            if (countRead < 0 ) {
-                Rlog.e(RILJ_LOG_TAG, "Hit EOS reading message.  messageLength=" + messageLength
-                        + " remaining=" + remaining);
-                return -1;
-            }
-
-            offset += countRead;
-            remaining -= countRead;
-        } while (remaining > 0);
-
-        return messageLength;
-    }
-
     protected class RILReceiver implements Runnable {
-        byte[] buffer;
-
         protected RILReceiver() {
-            buffer = new byte[RIL_MAX_COMMAND_BYTES];
         }
 
         @Override
@@ -520,18 +697,16 @@ public class RIL extends BaseCommands implements CommandsInterface {
             try {for (;;) {
                 LocalSocket s = null;
                 LocalSocketAddress l;
+                RilTransport t;
 
-                if (mInstanceId == null || mInstanceId == 0 ) {
-                    rilSocket = SOCKET_NAME_RIL[0];
-                } else {
-                    rilSocket = SOCKET_NAME_RIL[mInstanceId];
-                }
+                rilSocket = getRilSocketName();
 
                 try {
                     s = new LocalSocket();
                     l = new LocalSocketAddress(rilSocket,
                             LocalSocketAddress.Namespace.RESERVED);
                     s.connect(l);
+                    t = createRilTransport(s);
                 } catch (IOException ex){
                     try {
                         if (s != null) {
@@ -541,19 +716,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                         //ignore failure to close after failure to connect
                     }
 
-                    // don't print an error message after the the first time
-                    // or after the 8th time
-
-                    if (retryCount == 8) {
-                        Rlog.e (RILJ_LOG_TAG,
-                            "Couldn't find '" + rilSocket
-                            + "' socket after " + retryCount
-                            + " times, continuing to retry silently");
-                    } else if (retryCount >= 0 && retryCount < 8) {
-                        Rlog.i (RILJ_LOG_TAG,
-                            "Couldn't find '" + rilSocket
-                            + "' socket; retrying after timeout");
-                    }
+                    logRildConnectFailure(rilSocket, retryCount);
 
                     try {
                         Thread.sleep(SOCKET_OPEN_RETRY_MILLIS);
@@ -566,70 +729,32 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
                 retryCount = 0;
 
-                mSocket = s;
-                Rlog.i(RILJ_LOG_TAG, "(" + mInstanceId + ") Connected to '"
-                        + rilSocket + "' socket");
-
-                /* Compatibility with qcom's DSDS (Dual SIM) stack */
-                if (needsOldRilFeature("qcomdsds")) {
-                    String str = "SUB1";
-                    byte[] data = str.getBytes();
-                    try {
-                        mSocket.getOutputStream().write(data);
-                        Rlog.i(RILJ_LOG_TAG, "Data sent!!");
-                    } catch (IOException ex) {
-                            Rlog.e(RILJ_LOG_TAG, "IOException", ex);
-                    } catch (RuntimeException exc) {
-                        Rlog.e(RILJ_LOG_TAG, "Uncaught exception ", exc);
-                    }
-                }
+                onRildConnected(s, t, rilSocket);
 
-                int length = 0;
+                Parcel p = Parcel.obtain();
                 try {
-                    InputStream is = mSocket.getInputStream();
-
-                    for (;;) {
-                        Parcel p;
+                    // The parcel is reused for every message; the transport
+                    // unmarshalls straight out of its receive buffer.
+                    while (t.readMessage(p)) {
+                        //Rlog.v(RILJ_LOG_TAG, "Read packet: " + p.dataSize() + " bytes");
 
-                        length = readRilMessage(is, buffer);
+                        processResponse(p);
 
-                        if (length < 0) {
-                            // End-of-stream reached
-                            break;
+                        if (!t.hasBufferedMessage()) {
+                            processDeferredUnsolicited();
                         }
-
-                        p = Parcel.obtain();
-                        p.unmarshall(buffer, 0, length);
-                        p.setDataPosition(0);
-
-                        //Rlog.v(RILJ_LOG_TAG, "Read packet: " + length + " bytes");
-
-                        processResponse(p);
-                        p.recycle();
                     }
                 } catch (java.io.IOException ex) {
                     Rlog.i(RILJ_LOG_TAG, "'" + rilSocket + "' socket closed",
                           ex);
                 } catch (Throwable tr) {
-                    Rlog.e(RILJ_LOG_TAG, "Uncaught exception read length=" + length +
+                    Rlog.e(RILJ_LOG_TAG, "Uncaught exception read length=" + p.dataSize() +
                         "Exception:" + tr.toString());
+                } finally {
+                    p.recycle();
                 }
 
-                Rlog.i(RILJ_LOG_TAG, "(" + mInstanceId + ") Disconnected from '" + rilSocket
-                      + "' socket");
-
-                setRadioState (RadioState.RADIO_UNAVAILABLE);
-
-                try {
-                    mSocket.close();
-                } catch (IOException ex) {
-                }
-
-                mSocket = null;
-                RILRequest.resetSerial();
-
-                // Clear request list on close
-                clearRequestList(RADIO_NOT_AVAILABLE, false);
+                onRildDisconnected(t, rilSocket);
             }} catch (Throwable tr) {
                 Rlog.e(RILJ_LOG_TAG,"Uncaught exception", tr);
             }
@@ -639,6 +764,87 @@ public class RIL extends BaseCommands implements CommandsInterface {
         }
     }
 
+    String
+    getRilSocketName() {
+        if (mInstanceId == null || mInstanceId == 0 ) {
+            return SOCKET_NAME_RIL[0];
+        } else {
+            return SOCKET_NAME_RIL[mInstanceId];
+        }
+    }
+
+    void
+    logRildConnectFailure(String rilSocket, int retryCount) {
+        // don't print an error message after the the first time
+        // or after the 8th time
+
+        if (retryCount == 8) {
+            Rlog.e (RILJ_LOG_TAG,
+                "Couldn't find '" + rilSocket
+                + "' socket after " + retryCount
+                + " times, continuing to retry silently");
+        } else if (retryCount >= 0 && retryCount < 8) {
+            Rlog.i (RILJ_LOG_TAG,
+                "Couldn't find '" + rilSocket
+                + "' socket; retrying after timeout");
+        }
+    }
+
+    /**
+     * Makes a freshly connected rild socket current. Called by RILReceiver
+     * or, with shared I/O, by RilIoEngine.
+     */
+    void
+    onRildConnected(LocalSocket s, RilTransport t, String rilSocket) {
+        mTransport = t;
+        mSocket = s;
+        Rlog.i(RILJ_LOG_TAG, "(" + mInstanceId + ") Connected to '"
+                + rilSocket + "' socket");
+
+        /* Compatibility with qcom's DSDS (Dual SIM) stack */
+        if (needsOldRilFeature("qcomdsds")) {
+            String str = "SUB1";
+            byte[] data = str.getBytes();
+            try {
+                mSocket.getOutputStream().write(data);
+                Rlog.i(RILJ_LOG_TAG, "Data sent!!");
+            } catch (IOException ex) {
+                    Rlog.e(RILJ_LOG_TAG, "IOException", ex);
+            } catch (RuntimeException exc) {
+                Rlog.e(RILJ_LOG_TAG, "Uncaught exception ", exc);
+            }
+        }
+    }
+
+    /**
+     * Closes the rild socket and fails everything still waiting on it.
+     */
+    void
+    onRildDisconnected(RilTransport t, String rilSocket) {
+        Rlog.i(RILJ_LOG_TAG, "(" + mInstanceId + ") Disconnected from '" + rilSocket
+              + "' socket");
+
+        setRadioState (RadioState.RADIO_UNAVAILABLE);
+
+        try {
+            t.close();
+        } catch (IOException ex) {
+        }
+
+        mTransport = null;
+        mSocket = null;
+        if (mUnsolCoalescer != null) {
+            mUnsolCoalescer.clear();
+        }
+        if (mSignalStrengthFilter != null) {
+            mSignalStrengthFilter.reset();
+        }
+        RILRequest.resetSerial();
+
+        // Clear request list on close
+        clearRequestList(RADIO_NOT_AVAILABLE, false);
+    }
+
 
 
     //***** Constructors
@@ -668,9 +874,35 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 DEFAULT_WAKE_LOCK_TIMEOUT);
         mWakeLockCount = 0;
 
+        mRequestStats = new RilRequestStats(mInstanceId);
+        mTrace = new RilTraceBuffer(SystemProperties.getInt(PROPERTY_TRACE_SIZE,
+                RilTraceBuffer.DEFAULT_CAPACITY));
+        mTraceOnly = SystemProperties.getBoolean(PROPERTY_TRACE_ONLY, false);
+        loadRequestTimeouts(SystemProperties.get(PROPERTY_REQUEST_TIMEOUTS, ""));
+        mSignalStrengthFilter = SystemProperties.getBoolean(PROPERTY_FILTER_SIGNAL_STRENGTH, false)
+                ? new SignalStrengthFilter(
+                        SystemProperties.getInt(PROPERTY_SIGNAL_STRENGTH_HYSTERESIS_DB, 0))
+                : null;
+        mUnsolCoalescer = SystemProperties.getBoolean(PROPERTY_COALESCE_UNSOLICITED, false)
+                ? new RilUnsolCoalescer() : null;
+        registerDefaultUnsolDispatchers();
+        mInFlightWindow = new RilInFlightWindow(
+                SystemProperties.getInt(PROPERTY_INFLIGHT_WINDOW, 0), mWakeLockTimeout);
+        mSendScheduler = new RilSendScheduler(
+                SystemProperties.getBoolean(PROPERTY_PRIORITIZE_REQUESTS, false),
+                SystemProperties.getInt(PROPERTY_MAX_BACKGROUND_QUEUE, 0),
+                "drop_oldest".equals(SystemProperties.get(PROPERTY_SHED_POLICY, ""))
+                        ? RilSendScheduler.SHED_DROP_OLDEST : RilSendScheduler.SHED_REJECT_NEW);
+        mCoalescer = SystemProperties.getBoolean(PROPERTY_COALESCE_REQUESTS, false)
+                ? new RilRequestCoalescer() : null;
+
+        mIoEngine = SystemProperties.getBoolean(PROPERTY_SHARED_IO, false)
+                ? RilIoEngine.getInstance() : null;
+
+        // Writes block, so each instance has its own sender even with shared I/O;
+        // a stalled rild then only holds up the requests of its own SIM
         mSenderThread = new HandlerThread("RILSender" + mInstanceId);
         mSenderThread.start();
-
         Looper looper = mSenderThread.getLooper();
         mSender = new RILSender(looper);
 
@@ -679,10 +911,15 @@ public class RIL extends BaseCommands implements CommandsInterface {
         if (cm.isNetworkSupported(ConnectivityManager.TYPE_MOBILE) == false) {
             riljLog("Not starting RILReceiver: wifi-only");
         } else {
-            riljLog("Starting RILReceiver" + mInstanceId);
-            mReceiver = createRILReceiver();
-            mReceiverThread = new Thread(mReceiver, "RILReceiver" + mInstanceId);
-            mReceiverThread.start();
+            if (mIoEngine != null) {
+                riljLog("Attaching to shared RIL I/O engine");
+                mIoEngine.attach(this);
+            } else {
+                riljLog("Starting RILReceiver" + mInstanceId);
+                mReceiver = createRILReceiver();
+                mReceiverThread = new Thread(mReceiver, "RILReceiver" + mInstanceId);
+                mReceiverThread.start();
+            }
 
             DisplayManager dm = (DisplayManager)context.getSystemService(
                     Context.DISPLAY_SERVICE);
@@ -702,10 +939,55 @@ public class RIL extends BaseCommands implements CommandsInterface {
         tdc.registerRIL(this);
     }
 
+    /**
+     * Creates a RIL that never connects to rild and starts no threads, so
+     * response decoding can be driven directly, e.g. by benchmarks or by
+     * {@link RilReplayTransport#replayInto}.
+     */
+    protected RIL(Integer instanceId) {
+        super(null);
+
+        mPhoneType = RILConstants.NO_PHONE;
+        mInstanceId = instanceId;
+        mWakeLockTimeout = DEFAULT_WAKE_LOCK_TIMEOUT;
+
+        mRequestStats = new RilRequestStats(mInstanceId);
+        mTrace = new RilTraceBuffer();
+        mTraceOnly = false;
+        loadRequestTimeouts("");
+        mSignalStrengthFilter = null;
+        mUnsolCoalescer = null;
+        registerDefaultUnsolDispatchers();
+        mInFlightWindow = new RilInFlightWindow(0, mWakeLockTimeout);
+        mSendScheduler = new RilSendScheduler(false);
+        mCoalescer = null;
+    }
+
     protected RILReceiver createRILReceiver() {
         return new RILReceiver();
     }
 
+    /**
+     * Creates the transport used to exchange messages over a freshly
+     * connected rild socket. Called by RILReceiver or, with shared I/O, by
+     * RilIoEngine, which requires {@link RilTransport#receive} to work.
+     */
+    protected RilTransport createRilTransport(LocalSocket s) throws IOException {
+        RilTransport t = new RilFramingTransport(s, RIL_MAX_COMMAND_BYTES);
+
+        String capture = SystemProperties.get(PROPERTY_CAPTURE_PATH, "");
+        if (Build.IS_DEBUGGABLE && !TextUtils.isEmpty(capture)) {
+            String path = capture + "." + (mInstanceId != null ? mInstanceId : 0);
+            try {
+                t = new RilCaptureTransport(t, path);
+                riljLog("Capturing RIL traffic to " + path);
+            } catch (IOException ex) {
+                Rlog.e(RILJ_LOG_TAG, "Couldn't open RIL capture file " + path, ex);
+            }
+        }
+        return t;
+    }
+
     //***** CommandsInterface implementation
 
     @Override
@@ -727,6 +1009,16 @@ public class RIL extends BaseCommands implements CommandsInterface {
         send(rr);
     }
 
+    @Override
+    public void setOnSignalStrengthUpdate(Handler h, int what, Object obj) {
+        super.setOnSignalStrengthUpdate(h, what, obj);
+
+        // A new listener must not miss the current value
+        if (mSignalStrengthFilter != null) {
+            mSignalStrengthFilter.reset();
+        }
+    }
+
     @Override public void
     setOnNITZTime(Handler h, int what, Object obj) {
         super.setOnNITZTime(h, what, obj);
@@ -958,9 +1250,12 @@ public class RIL extends BaseCommands implements CommandsInterface {
     @Override
     public void
     getCurrentCalls (Message result) {
+        if (attachToPendingRequest(RIL_REQUEST_GET_CURRENT_CALLS, result)) return;
+
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_CURRENT_CALLS, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        openForCoalescing(rr);
 
         send(rr);
     }
@@ -1252,10 +1547,13 @@ public class RIL extends BaseCommands implements CommandsInterface {
     @Override
     public void
     getSignalStrength (Message result) {
+        if (attachToPendingRequest(RIL_REQUEST_SIGNAL_STRENGTH, result)) return;
+
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_SIGNAL_STRENGTH, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        openForCoalescing(rr);
 
         send(rr);
     }
@@ -1263,10 +1561,13 @@ public class RIL extends BaseCommands implements CommandsInterface {
     @Override
     public void
     getVoiceRegistrationState (Message result) {
+        if (attachToPendingRequest(RIL_REQUEST_VOICE_REGISTRATION_STATE, result)) return;
+
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_VOICE_REGISTRATION_STATE, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        openForCoalescing(rr);
 
         send(rr);
     }
@@ -1274,10 +1575,13 @@ public class RIL extends BaseCommands implements CommandsInterface {
     @Override
     public void
     getDataRegistrationState (Message result) {
+        if (attachToPendingRequest(RIL_REQUEST_DATA_REGISTRATION_STATE, result)) return;
+
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_DATA_REGISTRATION_STATE, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        openForCoalescing(rr);
 
         send(rr);
     }
@@ -1285,10 +1589,13 @@ public class RIL extends BaseCommands implements CommandsInterface {
     @Override
     public void
     getOperator(Message result) {
+        if (attachToPendingRequest(RIL_REQUEST_OPERATOR, result)) return;
+
         RILRequest rr
                 = RILRequest.obtain(RIL_REQUEST_OPERATOR, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        openForCoalescing(rr);
 
         send(rr);
     }
@@ -2422,6 +2729,103 @@ public class RIL extends BaseCommands implements CommandsInterface {
         }
     }
 
+    private void
+    loadRequestTimeouts(String overrides) {
+        if (TextUtils.isEmpty(overrides)) {
+            return;
+        }
+        for (String pair : overrides.split(",")) {
+            String[] parts = pair.trim().split(":");
+            try {
+                if (parts.length != 2) {
+                    throw new NumberFormatException();
+                }
+                mRequestTimeouts.put(Integer.parseInt(parts[0].trim()),
+                        Integer.parseInt(parts[1].trim()));
+            } catch (NumberFormatException e) {
+                riljLog("Ignoring malformed request timeout '" + pair + "'");
+            }
+        }
+    }
+
+    /**
+     * Returns how long to wait for the response to a request of the given
+     * type before failing it, 0 to wait indefinitely. Only the types
+     * configured in PROPERTY_REQUEST_TIMEOUTS have a deadline by default;
+     * vendor RILs that know the worst case latency of their modem may
+     * override this.
+     *
+     * @param request RIL_REQUEST_*
+     */
+    protected int
+    getRequestTimeout(int request) {
+        return mRequestTimeouts.get(request, 0);
+    }
+
+    private void
+    armDeadline(RILRequest rr) {
+        int timeout = getRequestTimeout(rr.mRequest);
+        if (timeout <= 0) {
+            return;
+        }
+        mRequestTimer.schedule(rr, rr.mWriteTime, timeout);
+        if (!mSender.hasMessages(EVENT_REQUEST_TIMEOUT)) {
+            mSender.sendEmptyMessageDelayed(EVENT_REQUEST_TIMEOUT, mRequestTimer.getTickMs());
+        }
+    }
+
+    /**
+     * Fails every written request whose deadline has passed, as if rild had
+     * answered it with GENERIC_FAILURE. Runs on RILSender.
+     */
+    private void
+    expireRequests(long now) {
+        ArrayList<RILRequest> expired = mExpiredRequests;
+        mRequestTimer.expire(now, mRequestList, expired);
+
+        for (int i = 0, count = expired.size(); i < count; i++) {
+            RILRequest rr = expired.get(i);
+            mTimedOutCount++;
+            mInFlightWindow.remove(rr);
+            mRequestStats.record(rr.mRequest, GENERIC_FAILURE, rr.mEnqueueTime,
+                    rr.mWriteTime, now);
+            mTrace.add(RilTraceBuffer.TYPE_TIMEOUT, rr.mSerial, rr.mRequest, GENERIC_FAILURE,
+                    now - rr.mEnqueueTime, 0);
+            Rlog.w(RILJ_LOG_TAG, rr.serialString() + "< " + requestToString(rr.mRequest)
+                    + " timed out after " + (now - rr.mWriteTime) + "ms"
+                    + (mInstanceId != null ? (" [SUB" + mInstanceId + "]") : ""));
+
+            rr.sendResult(null, new CommandException(CommandException.Error.GENERIC_FAILURE,
+                    "Request timed out"));
+            rr.release();
+            decrementWakeLock();
+            pumpSendQueue();
+        }
+        expired.clear();
+    }
+
+    /**
+     * Hands <code>result</code> to a not yet sent request of the same type
+     * when request coalescing is enabled.
+     *
+     * @return true if the caller must not send a request of its own
+     */
+    private boolean
+    attachToPendingRequest(int request, Message result) {
+        if (mCoalescer == null || !mCoalescer.attach(request, result)) {
+            return false;
+        }
+        if (RILJ_LOGD) riljLog("> " + requestToString(request) + " (coalesced)");
+        return true;
+    }
+
+    private void
+    openForCoalescing(RILRequest rr) {
+        if (mCoalescer != null) {
+            mCoalescer.open(rr);
+        }
+    }
+
     protected void
     send(RILRequest rr) {
         Message msg;
@@ -2432,11 +2836,124 @@ public class RIL extends BaseCommands implements CommandsInterface {
             return;
         }
 
-        msg = mSender.obtainMessage(EVENT_SEND, rr);
-
+        rr.mEnqueueTime = SystemClock.elapsedRealtime();
+        // Hold the wake lock reference before queueing: from then on
+        // cancelRequest() may withdraw the request and drop it
         acquireWakeLock();
+        RILRequest dropped = mSendScheduler.add(rr);
+        if (dropped == rr) {
+            shedRequest(rr);
+            decrementWakeLock();
+            return;
+        }
+        msg = mSender.obtainMessage(EVENT_SEND);
 
         msg.sendToTarget();
+
+        if (dropped != null) {
+            // Queued earlier, so it holds a wake lock reference
+            shedRequest(dropped);
+            decrementWakeLock();
+        }
+    }
+
+    /**
+     * Fails a queued request that the send scheduler refused or dropped
+     * because its background lane was full.
+     */
+    private void
+    shedRequest(RILRequest rr) {
+        mTrace.add(RilTraceBuffer.TYPE_SEND_FAILED, rr.mSerial, rr.mRequest,
+                GENERIC_FAILURE, SystemClock.elapsedRealtime() - rr.mEnqueueTime, 0);
+        if (RILJ_LOGD) riljLog(rr.serialString() + "< " + requestToString(rr.mRequest)
+                + " shed, send queue full");
+        rr.onError(GENERIC_FAILURE, null);
+        rr.release();
+    }
+
+    /**
+     * Cancels the request that reports to <code>result</code>; no result
+     * will be sent to <code>result</code>.
+     *
+     * A request still queued for sending is withdrawn. A request already
+     * written to rild stays in mRequestList, owned by the sender and
+     * receiver threads, until rild answers it or its deadline fails it;
+     * its result is dropped, and it no longer holds a slot of the in-flight
+     * window.
+     *
+     * @return true if the request was found and cancelled
+     */
+    public boolean
+    cancelRequest(Message result) {
+        RILRequest rr = mSendScheduler.remove(result);
+        if (rr == null) {
+            return cancelWrittenRequest(result);
+        }
+
+        if (RILJ_LOGD) riljLog(rr.serialString() + "< " + requestToString(rr.mRequest)
+                + " cancelled");
+        mTrace.add(RilTraceBuffer.TYPE_CANCELLED, rr.mSerial, rr.mRequest, 0,
+                SystemClock.elapsedRealtime() - rr.mEnqueueTime, 0);
+        if (rr.mParcel != null) {
+            rr.mParcel.recycle();
+            rr.mParcel = null;
+        }
+        rr.release();
+        decrementWakeLock();
+        pumpSendQueue();
+        return true;
+    }
+
+    private boolean
+    cancelWrittenRequest(Message result) {
+        ArrayList<RILRequest> pending = mRequestList.snapshot();
+        for (int i = 0, count = pending.size(); i < count; i++) {
+            RILRequest rr = pending.get(i);
+            int serial = rr.mSerial;
+            int request = rr.mRequest;
+            long enqueueTime = rr.mEnqueueTime;
+            // Under the request's lock, so the result is either sent or dropped
+            if (rr.cancel(result)) {
+                if (RILJ_LOGD) riljLog(rr.serialString() + "< " + requestToString(request)
+                        + " cancelled in flight");
+                mTrace.add(RilTraceBuffer.TYPE_CANCELLED, serial, request, 0,
+                        SystemClock.elapsedRealtime() - enqueueTime, 0);
+                if (mInFlightWindow.remove(rr)) {
+                    pumpSendQueue();
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean
+    isWindowFull() {
+        return mInFlightWindow.isFull();
+    }
+
+    /**
+     * Lets RILSender send a request held back by the in-flight window after
+     * another request has completed.
+     */
+    private void
+    pumpSendQueue() {
+        if (mInFlightWindow.isEnabled() && mSendScheduler.size() > 0) {
+            mSender.sendEmptyMessage(EVENT_SEND);
+        }
+    }
+
+    /**
+     * Wakes RILSender when the oldest request holding a window slot goes
+     * stale, in case no response comes before then. Runs on RILSender.
+     */
+    private void
+    scheduleWindowStaleCheck() {
+        long staleTime = mInFlightWindow.getNextStaleTime();
+        if (staleTime >= 0 && !mSender.hasMessages(EVENT_WINDOW_STALE)) {
+            mSender.sendEmptyMessageDelayed(EVENT_WINDOW_STALE,
+                    Math.max(0, staleTime - SystemClock.elapsedRealtime()));
+        }
     }
 
     protected void
@@ -2446,12 +2963,21 @@ public class RIL extends BaseCommands implements CommandsInterface {
         type = p.readInt();
 
         if (type == RESPONSE_UNSOLICITED) {
+            if (mUnsolCoalescer != null && mUnsolCoalescer.defer(p)) {
+                // A newer one may still arrive in this burst
+                return;
+            }
+            // Keep held messages ahead of anything that arrived after them
+            processDeferredUnsolicited();
             processUnsolicited (p);
         } else if (type == RESPONSE_SOLICITED) {
+            processDeferredUnsolicited();
             RILRequest rr = processSolicited (p);
             if (rr != null) {
+                mInFlightWindow.remove(rr);
                 rr.release();
                 decrementWakeLock();
+                pumpSendQueue();
             }
         }
     }
@@ -2463,38 +2989,33 @@ public class RIL extends BaseCommands implements CommandsInterface {
      */
     protected void clearRequestList(int error, boolean loggable) {
         RILRequest rr;
-        synchronized (mRequestList) {
-            int count = mRequestList.size();
-            if (RILJ_LOGD && loggable) {
-                Rlog.d(RILJ_LOG_TAG, "clearRequestList " +
-                        " mWakeLockCount=" + mWakeLockCount +
-                        " mRequestList=" + count);
-            }
+        ArrayList<RILRequest> removed = mRequestList.removeAll();
+        int count = removed.size();
+        if (RILJ_LOGD && loggable) {
+            Rlog.d(RILJ_LOG_TAG, "clearRequestList " +
+                    " mWakeLockCount=" + mWakeLockCount +
+                    " mRequestList=" + count);
+        }
 
-            for (int i = 0; i < count ; i++) {
-                rr = mRequestList.valueAt(i);
-                if (RILJ_LOGD && loggable) {
-                    Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] " +
-                            requestToString(rr.mRequest));
-                }
-                rr.onError(error, null);
-                rr.release();
-                decrementWakeLock();
+        for (int i = 0; i < count ; i++) {
+            rr = removed.get(i);
+            mRequestTimer.cancel(rr);
+            mInFlightWindow.remove(rr);
+            if (RILJ_LOGD && loggable) {
+                Rlog.d(RILJ_LOG_TAG, i + ": [" + rr.mSerial + "] " +
+                        requestToString(rr.mRequest));
             }
-            mRequestList.clear();
+            rr.onError(error, null);
+            rr.release();
+            decrementWakeLock();
+        }
+        if (count > 0) {
+            pumpSendQueue();
         }
     }
 
     protected RILRequest findAndRemoveRequestFromList(int serial) {
-        RILRequest rr = null;
-        synchronized (mRequestList) {
-            rr = mRequestList.get(serial);
-            if (rr != null) {
-                mRequestList.remove(serial);
-            }
-        }
-
-        return rr;
+        return mRequestList.remove(serial);
     }
 
     protected RILRequest
@@ -2515,6 +3036,13 @@ public class RIL extends BaseCommands implements CommandsInterface {
             return null;
         }
 
+        mRequestTimer.cancel(rr);
+
+        long now = SystemClock.elapsedRealtime();
+        mRequestStats.record(rr.mRequest, error, rr.mEnqueueTime, rr.mWriteTime, now);
+        mTrace.add(RilTraceBuffer.TYPE_RESPONSE, serial, rr.mRequest, error,
+                now - rr.mEnqueueTime, p.dataSize());
+
         Object ret = null;
 
         if (error == 0 || p.dataAvail() > 0) {
@@ -2552,7 +3080,13 @@ public class RIL extends BaseCommands implements CommandsInterface {
             case RIL_REQUEST_CONFERENCE: ret =  responseVoid(p); break;
             case RIL_REQUEST_UDUB: ret =  responseVoid(p); break;
             case RIL_REQUEST_LAST_CALL_FAIL_CAUSE: ret =  responseFailCause(p); break;
-            case RIL_REQUEST_SIGNAL_STRENGTH: ret =  responseSignalStrength(p); break;
+            case RIL_REQUEST_SIGNAL_STRENGTH:
+                // Polled values reach ServiceStateTracker too, track them
+                if (mSignalStrengthFilter != null) {
+                    mSignalStrengthFilter.update(p, true);
+                }
+                ret =  responseSignalStrength(p);
+                break;
             case RIL_REQUEST_VOICE_REGISTRATION_STATE: ret =  responseStrings(p); break;
             case RIL_REQUEST_DATA_REGISTRATION_STATE: ret =  responseStrings(p); break;
             case RIL_REQUEST_OPERATOR: ret =  responseStrings(p); break;
@@ -2677,10 +3211,7 @@ public class RIL extends BaseCommands implements CommandsInterface {
                         + requestToString(rr.mRequest)
                         + " exception, possible invalid RIL response", tr);
 
-                if (rr.mResult != null) {
-                    AsyncResult.forMessage(rr.mResult, null, tr);
-                    rr.mResult.sendToTarget();
-                }
+                rr.sendResult(null, tr);
                 return rr;
             }
         }
@@ -2748,13 +3279,12 @@ public class RIL extends BaseCommands implements CommandsInterface {
         }
         if (error == 0) {
 
-            if (RILJ_LOGD) riljLog(rr.serialString() + "< " + requestToString(rr.mRequest)
-                    + " " + retToString(rr.mRequest, ret));
-
-            if (rr.mResult != null) {
-                AsyncResult.forMessage(rr.mResult, ret, null);
-                rr.mResult.sendToTarget();
+            if (RILJ_LOGD && !mTraceOnly) {
+                riljLog(rr.serialString() + "< " + requestToString(rr.mRequest)
+                        + " " + retToString(rr.mRequest, ret));
             }
+
+            rr.sendResult(ret, null);
         }
         return rr;
     }
@@ -2858,12 +3388,130 @@ public class RIL extends BaseCommands implements CommandsInterface {
         return s;
     }
 
+    /**
+     * Decodes and delivers one kind of unsolicited response. Dispatchers
+     * registered with {@link #registerUnsolDispatcher} take precedence over
+     * the built-in handling in {@link #processUnsolicited}.
+     *
+     * This is a hook for the few ids that need it, not a full dispatch
+     * table: only the signal strength, cell info list and voice network
+     * state ids that RilUnsolCoalescer holds back are registered by default.
+     */
+    protected interface UnsolDispatcher {
+        /**
+         * @param p positioned just after the unsolicited response id
+         * @return the decoded response, passed on to {@link #dispatch}
+         */
+        Object decode(Parcel p);
+
+        void dispatch(int response, Object ret);
+    }
+
+    /**
+     * Installs the dispatcher for RIL_UNSOL_* <code>response</code>,
+     * replacing any previous one. Intended to be called from constructors.
+     */
+    protected void registerUnsolDispatcher(int response, UnsolDispatcher dispatcher) {
+        mUnsolDispatchers.put(response, dispatcher);
+    }
+
+    private void registerDefaultUnsolDispatchers() {
+        registerUnsolDispatcher(RIL_UNSOL_RESPONSE_VOICE_NETWORK_STATE_CHANGED,
+                new UnsolDispatcher() {
+            @Override
+            public Object decode(Parcel p) {
+                return responseVoid(p);
+            }
+
+            @Override
+            public void dispatch(int response, Object ret) {
+                if (RILJ_LOGD) unsljLog(response);
+
+                mVoiceNetworkStateRegistrants
+                    .notifyRegistrants(new AsyncResult(null, null, null));
+            }
+        });
+
+        registerUnsolDispatcher(RIL_UNSOL_SIGNAL_STRENGTH, new UnsolDispatcher() {
+            @Override
+            public Object decode(Parcel p) {
+                // Most reports repeat the previous one; skip those before allocating
+                if (mSignalStrengthFilter != null && !mSignalStrengthFilter.update(p, false)) {
+                    return null;
+                }
+                return responseSignalStrength(p);
+            }
+
+            @Override
+            public void dispatch(int response, Object ret) {
+                if (ret == null) {
+                    return;
+                }
+
+                // Note this is set to "verbose" because it happens
+                // frequently
+                if (RILJ_LOGV) unsljLogvRet(response, ret);
+
+                if (mSignalStrengthRegistrant != null) {
+                    mSignalStrengthRegistrant.notifyRegistrant(
+                                        new AsyncResult (null, ret, null));
+                }
+            }
+        });
+
+        registerUnsolDispatcher(RIL_UNSOL_CELL_INFO_LIST, new UnsolDispatcher() {
+            @Override
+            public Object decode(Parcel p) {
+                return responseCellInfoList(p);
+            }
+
+            @Override
+            public void dispatch(int response, Object ret) {
+                if (RILJ_LOGD) unsljLogRet(response, ret);
+
+                if (mRilCellInfoListRegistrants != null) {
+                    mRilCellInfoListRegistrants.notifyRegistrants(
+                                        new AsyncResult (null, ret, null));
+                }
+            }
+        });
+    }
+
+    /**
+     * Processes unsolicited responses held back by the "latest wins"
+     * coalescer. Called by RILReceiver once no further complete message
+     * is buffered.
+     */
+    protected void processDeferredUnsolicited() {
+        if (mUnsolCoalescer == null) {
+            return;
+        }
+        Parcel held;
+        while ((held = mUnsolCoalescer.poll()) != null) {
+            processUnsolicited(held);
+        }
+    }
+
     protected void
     processUnsolicited (Parcel p) {
         int response;
         Object ret;
 
         response = p.readInt();
+        mTrace.add(RilTraceBuffer.TYPE_UNSOL, 0, response, 0, 0, p.dataSize());
+
+        UnsolDispatcher dispatcher = mUnsolDispatchers.get(response);
+        if (dispatcher != null) {
+            try {
+                ret = dispatcher.decode(p);
+            } catch (Throwable tr) {
+                Rlog.e(RILJ_LOG_TAG, "Exception processing unsol response: " + response +
+                    "Exception:" + tr.toString());
+                return;
+            }
+            dispatcher.dispatch(response, ret);
+            return;
+        }
 
         try {switch(response) {
 /*
@@ -2874,13 +3522,11 @@ public class RIL extends BaseCommands implements CommandsInterface {
 
             case RIL_UNSOL_RESPONSE_RADIO_STATE_CHANGED: ret =  responseVoid(p); break;
             case RIL_UNSOL_RESPONSE_CALL_STATE_CHANGED: ret =  responseVoid(p); break;
-            case RIL_UNSOL_RESPONSE_VOICE_NETWORK_STATE_CHANGED: ret =  responseVoid(p); break;
             case RIL_UNSOL_RESPONSE_NEW_SMS: ret =  responseString(p); break;
             case RIL_UNSOL_RESPONSE_NEW_SMS_STATUS_REPORT: ret =  responseString(p); break;
             case RIL_UNSOL_RESPONSE_NEW_SMS_ON_SIM: ret =  responseInts(p); break;
             case RIL_UNSOL_ON_USSD: ret =  responseStrings(p); break;
             case RIL_UNSOL_NITZ_TIME_RECEIVED: ret =  responseString(p); break;
-            case RIL_UNSOL_SIGNAL_STRENGTH: ret = responseSignalStrength(p); break;
             case RIL_UNSOL_DATA_CALL_LIST_CHANGED: ret = responseDataCallList(p);break;
             case RIL_UNSOL_SUPP_SVC_NOTIFICATION: ret = responseSuppServiceNotification(p); break;
             case RIL_UNSOL_STK_SESSION_END: ret = responseVoid(p); break;
@@ -2907,7 +3553,6 @@ public class RIL extends BaseCommands implements CommandsInterface {
             case RIL_UNSOL_EXIT_EMERGENCY_CALLBACK_MODE: ret = responseVoid(p); break;
             case RIL_UNSOL_RIL_CONNECTED: ret = responseInts(p); break;
             case RIL_UNSOL_VOICE_RADIO_TECH_CHANGED: ret =  responseInts(p); break;
-            case RIL_UNSOL_CELL_INFO_LIST: ret = responseCellInfoList(p); break;
             case RIL_UNSOL_RESPONSE_IMS_NETWORK_STATE_CHANGED: ret =  responseVoid(p); break;
             case RIL_UNSOL_UICC_SUBSCRIPTION_STATUS_CHANGED: ret =  responseInts(p); break;
             case RIL_UNSOL_SRVCC_STATE_NOTIFY: ret = responseInts(p); break;
@@ -2947,12 +3592,6 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 mCallStateRegistrants
                     .notifyRegistrants(new AsyncResult(null, null, null));
             break;
-            case RIL_UNSOL_RESPONSE_VOICE_NETWORK_STATE_CHANGED:
-                if (RILJ_LOGD) unsljLog(response);
-
-                mVoiceNetworkStateRegistrants
-                    .notifyRegistrants(new AsyncResult(null, null, null));
-            break;
             case RIL_UNSOL_RESPONSE_NEW_SMS: {
                 if (RILJ_LOGD) unsljLog(response);
 
@@ -3036,16 +3675,6 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 }
             break;
 
-            case RIL_UNSOL_SIGNAL_STRENGTH:
-                // Note this is set to "verbose" because it happens
-                // frequently
-                if (RILJ_LOGV) unsljLogvRet(response, ret);
-
-                if (mSignalStrengthRegistrant != null) {
-                    mSignalStrengthRegistrant.notifyRegistrant(
-                                        new AsyncResult (null, ret, null));
-                }
-            break;
             case RIL_UNSOL_DATA_CALL_LIST_CHANGED:
                 if (RILJ_LOGD) unsljLogRet(response, ret);
 
@@ -3287,15 +3916,6 @@ public class RIL extends BaseCommands implements CommandsInterface {
                 notifyRegistrantsRilConnectionChanged(((int[])ret)[0]);
                 break;
             }
-            case RIL_UNSOL_CELL_INFO_LIST: {
-                if (RILJ_LOGD) unsljLogRet(response, ret);
-
-                if (mRilCellInfoListRegistrants != null) {
-                    mRilCellInfoListRegistrants.notifyRegistrants(
-                                        new AsyncResult (null, ret, null));
-                }
-                break;
-            }
             case RIL_UNSOL_UICC_SUBSCRIPTION_STATUS_CHANGED: {
                 if (RILJ_LOGD) unsljLogRet(response, ret);
 
@@ -4367,18 +4987,31 @@ public class RIL extends BaseCommands implements CommandsInterface {
     }
 
     protected void unsljLog(int response) {
+        if (mTraceOnly) {
+            // Already in mTrace, skip building the string
+            return;
+        }
         riljLog("[UNSL]< " + responseToString(response));
     }
 
     protected void unsljLogMore(int response, String more) {
+        if (mTraceOnly) {
+            return;
+        }
         riljLog("[UNSL]< " + responseToString(response) + " " + more);
     }
 
     protected void unsljLogRet(int response, Object ret) {
+        if (mTraceOnly) {
+            return;
+        }
         riljLog("[UNSL]< " + responseToString(response) + " " + retToString(response, ret));
     }
 
     protected void unsljLogvRet(int response, Object ret) {
+        if (mTraceOnly) {
+            return;
+        }
         riljLogv("[UNSL]< " + responseToString(response) + " " + retToString(response, ret));
     }
 
@@ -4651,9 +5284,12 @@ public class RIL extends BaseCommands implements CommandsInterface {
      */
     @Override
     public void getCellInfoList(Message result) {
+        if (attachToPendingRequest(RIL_REQUEST_GET_CELL_INFO_LIST, result)) return;
+
         RILRequest rr = RILRequest.obtain(RIL_REQUEST_GET_CELL_INFO_LIST, result);
 
         if (RILJ_LOGD) riljLog(rr.serialString() + "> " + requestToString(rr.mRequest));
+        openForCoalescing(rr);
 
         send(rr);
     }
@@ -4719,26 +5355,54 @@ public class RIL extends BaseCommands implements CommandsInterface {
         mTestingEmergencyCall.set(true);
     }
 
+    /**
+     * Returns the per-request latency and error statistics of this RIL
+     * instance, see {@link RilRequestStats#snapshot}.
+     */
+    public RilRequestStats getRequestStats() {
+        return mRequestStats;
+    }
+
     public void dump(FileDescriptor fd, PrintWriter pw, String[] args) {
         pw.println("RIL: " + this);
         pw.println(" mSocket=" + mSocket);
+        pw.println(" mTransport=" + mTransport);
         pw.println(" mSenderThread=" + mSenderThread);
         pw.println(" mSender=" + mSender);
         pw.println(" mReceiverThread=" + mReceiverThread);
         pw.println(" mReceiver=" + mReceiver);
+        if (mIoEngine != null) {
+            mIoEngine.dump(pw);
+        }
         pw.println(" mWakeLock=" + mWakeLock);
         pw.println(" mWakeLockTimeout=" + mWakeLockTimeout);
-        synchronized (mRequestList) {
-            synchronized (mWakeLock) {
-                pw.println(" mWakeLockCount=" + mWakeLockCount);
-            }
-            int count = mRequestList.size();
-            pw.println(" mRequestList count=" + count);
-            for (int i = 0; i < count; i++) {
-                RILRequest rr = mRequestList.valueAt(i);
-                pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
-            }
+        synchronized (mWakeLock) {
+            pw.println(" mWakeLockCount=" + mWakeLockCount);
+        }
+        ArrayList<RILRequest> pending = mRequestList.snapshot();
+        int count = pending.size();
+        pw.println(" mRequestList count=" + count
+                + " overflow=" + mRequestList.overflowSize());
+        for (int i = 0; i < count; i++) {
+            RILRequest rr = pending.get(i);
+            pw.println("  [" + rr.mSerial + "] " + requestToString(rr.mRequest));
+        }
+        if (mCoalescer != null) {
+            pw.println(" coalesced requests=" + mCoalescer.getCoalescedCount());
+        }
+        mInFlightWindow.dump(pw);
+        mSendScheduler.dump(pw);
+        pw.println(" timed out requests=" + mTimedOutCount
+                + " armed deadlines=" + mRequestTimer.size());
+        if (mSignalStrengthFilter != null) {
+            pw.println(" signal strength reports suppressed="
+                    + mSignalStrengthFilter.getSuppressedCount());
+        }
+        if (mUnsolCoalescer != null) {
+            mUnsolCoalescer.dump(pw);
         }
+        mRequestStats.dump(pw);
+        mTrace.dump(pw);
         pw.println(" mLastNITZTimeInfo=" + mLastNITZTimeInfo);
         pw.println(" mTestingEmergencyCall=" + mTestingEmergencyCall.get());
     }
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reads capture files written by {@link RilCaptureTransport}.
+ *
+ * {@hide}
+ */
+public class RilCaptureReader implements Closeable {
+    /** One captured message. Reused by {@link #next}. */
+    public static class Record {
+        public byte direction;
+        public long timestamp;
+        public int length;
+        public byte[] data = new byte[RIL.RIL_MAX_COMMAND_BYTES];
+    }
+
+    private final DataInputStream mIn;
+    private final Record mRecord = new Record();
+
+    public RilCaptureReader(InputStream is) throws IOException {
+        mIn = new DataInputStream(new BufferedInputStream(is));
+        int magic = mIn.readInt();
+        int version = mIn.readInt();
+        if (magic != RilCaptureTransport.MAGIC || version != RilCaptureTransport.VERSION) {
+            throw new IOException("Not a RIL capture file, magic=" + Integer.toHexString(magic)
+                    + " version=" + version);
+        }
+    }
+
+    /**
+     * @return the next record, or null at end of file. The returned object
+     * is overwritten by the following call.
+     */
+    public Record next() throws IOException {
+        Record r = mRecord;
+        int direction = mIn.read();
+        if (direction < 0) {
+            return null;
+        }
+        try {
+            r.direction = (byte) direction;
+            r.timestamp = mIn.readLong();
+            r.length = mIn.readInt();
+            if (r.length < 0) {
+                throw new IOException("Invalid record length " + r.length);
+            }
+            if (r.length > r.data.length) {
+                r.data = new byte[r.length];
+            }
+            mIn.readFully(r.data, 0, r.length);
+        } catch (EOFException ex) {
+            // Truncated final record, e.g. the capturing process died
+            return null;
+        }
+        return r;
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.os.SystemClock;
+import android.telephony.Rlog;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * {@link RilTransport} decorator that records every message exchanged with
+ * rild to a capture file.
+ *
+ * The file starts with {@link #MAGIC} and {@link #VERSION}, followed by one
+ * record per message:
+ * <pre>
+ *   byte  direction    DIRECTION_TO_RILD or DIRECTION_FROM_RILD
+ *   long  timestamp    elapsedRealtime in ms
+ *   int   length
+ *   byte[length]       marshalled parcel, without the wire length header
+ * </pre>
+ * All values are big endian. Use {@link RilCaptureReader} to read it back.
+ *
+ * Captures contain IMSI, numbers and message bodies, so RIL only enables
+ * this on debuggable builds.
+ *
+ * {@hide}
+ */
+public class RilCaptureTransport implements RilTransport {
+    static final String LOG_TAG = "RilCapture";
+
+    public static final int MAGIC = 0x52494c43; // "RILC"
+    public static final int VERSION = 1;
+
+    public static final byte DIRECTION_TO_RILD = 0;
+    public static final byte DIRECTION_FROM_RILD = 1;
+
+    private final RilTransport mTransport;
+    private DataOutputStream mOut;
+
+    /**
+     * Appends to the capture file at <code>path</code>, so that one file
+     * covers every connection to rild. The header is only written when the
+     * file is new or empty.
+     */
+    public RilCaptureTransport(RilTransport transport, String path) throws IOException {
+        this(transport, new FileOutputStream(path, true), new File(path).length() == 0);
+    }
+
+    public RilCaptureTransport(RilTransport transport, OutputStream os) throws IOException {
+        this(transport, os, true);
+    }
+
+    private RilCaptureTransport(RilTransport transport, OutputStream os, boolean writeHeader)
+            throws IOException {
+        mTransport = transport;
+        mOut = new DataOutputStream(new BufferedOutputStream(os));
+        if (writeHeader) {
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+        }
+    }
+
+    @Override
+    public void writeMessage(byte[] data) throws IOException {
+        mTransport.writeMessage(data);
+        // Runs on the sender thread, which must not look at the receive buffer.
+        // Requests are sparse, so flushing each one costs little.
+        record(DIRECTION_TO_RILD, data, true);
+    }
+
+    @Override
+    public boolean readMessage(Parcel p) throws IOException {
+        if (!mTransport.readMessage(p)) {
+            return false;
+        }
+        // Batch the flush across a burst of already buffered responses
+        record(DIRECTION_FROM_RILD, p.marshall(), !mTransport.hasBufferedMessage());
+        p.setDataPosition(0);
+        return true;
+    }
+
+    @Override
+    public boolean hasBufferedMessage() {
+        return mTransport.hasBufferedMessage();
+    }
+
+    @Override
+    public int receive() throws IOException {
+        // Messages are recorded as readMessage() takes them
+        return mTransport.receive();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mTransport.close();
+        } finally {
+            synchronized (this) {
+                if (mOut != null) {
+                    mOut.close();
+                    mOut = null;
+                }
+            }
+        }
+    }
+
+    private synchronized void record(byte direction, byte[] data, boolean flush) {
+        if (mOut == null) {
+            return;
+        }
+        try {
+            mOut.writeByte(direction);
+            mOut.writeLong(SystemClock.elapsedRealtime());
+            mOut.writeInt(data.length);
+            mOut.write(data);
+            if (flush) {
+                // Keep the file useful if the phone process dies mid-burst
+                mOut.flush();
+            }
+        } catch (IOException ex) {
+            // Never let capture problems affect the RIL connection itself
+            Rlog.e(LOG_TAG, "Stopping capture", ex);
+            try {
+                mOut.close();
+            } catch (IOException ignored) {
+            }
+            mOut = null;
+        }
+    }
+}
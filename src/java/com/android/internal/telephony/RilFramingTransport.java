@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.net.LocalSocket;
+import android.os.Parcel;
+import android.telephony.Rlog;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * {@link RilTransport} framing RIL messages over a pair of streams.
+ *
+ * A RIL message on the wire is a 4-byte big-endian length followed by the
+ * marshalled parcel. Incoming bytes are read in bulk into a single receive
+ * buffer, so a burst of unsolicited responses is usually picked up with one
+ * read() call, and each frame is unmarshalled directly from that buffer.
+ * Outgoing frames are assembled with their header in a reusable send buffer
+ * and written with a single write() call.
+ *
+ * The stream constructor lets tests drive a RIL from an in-memory pipe.
+ *
+ * {@hide}
+ */
+public class RilFramingTransport implements RilTransport {
+    static final String LOG_TAG = "RilTransport";
+
+    static final int HEADER_BYTES = 4;
+
+    private final InputStream mInputStream;
+    private final OutputStream mOutputStream;
+    private final Closeable mCloseable;
+    private final int mMaxMessageBytes;
+
+    // Unconsumed received bytes lie between position and limit
+    private final ByteBuffer mRecvBuffer;
+    private final ByteBuffer mSendBuffer;
+
+    public RilFramingTransport(LocalSocket socket, int maxMessageBytes) throws IOException {
+        this(socket.getInputStream(), socket.getOutputStream(), socket, maxMessageBytes);
+    }
+
+    public RilFramingTransport(InputStream is, OutputStream os, Closeable closeable,
+            int maxMessageBytes) {
+        mInputStream = is;
+        mOutputStream = os;
+        mCloseable = closeable;
+        mMaxMessageBytes = maxMessageBytes;
+
+        // Room for two full frames so a partial frame never has to wait for compaction
+        mRecvBuffer = ByteBuffer.allocate(2 * (HEADER_BYTES + maxMessageBytes));
+        mRecvBuffer.limit(0);
+        mSendBuffer = ByteBuffer.allocate(HEADER_BYTES + maxMessageBytes);
+    }
+
+    @Override
+    public void writeMessage(byte[] data) throws IOException {
+        if (data.length > mMaxMessageBytes) {
+            throw new IOException("Message larger than max bytes allowed! " + data.length);
+        }
+
+        synchronized (mSendBuffer) {
+            mSendBuffer.clear();
+            mSendBuffer.putInt(data.length);
+            mSendBuffer.put(data);
+            mOutputStream.write(mSendBuffer.array(), mSendBuffer.arrayOffset(),
+                    mSendBuffer.position());
+        }
+    }
+
+    @Override
+    public boolean readMessage(Parcel p) throws IOException {
+        if (!fill(HEADER_BYTES)) {
+            Rlog.e(LOG_TAG, "Hit EOS reading message length");
+            return false;
+        }
+
+        int start = mRecvBuffer.position();
+        int messageLength = mRecvBuffer.getInt(start);
+        if (messageLength < 0 || messageLength > mMaxMessageBytes) {
+            throw new IOException("Invalid message length " + messageLength);
+        }
+
+        if (!fill(HEADER_BYTES + messageLength)) {
+            Rlog.e(LOG_TAG, "Hit EOS reading message.  messageLength=" + messageLength
+                    + " remaining=" + (HEADER_BYTES + messageLength - mRecvBuffer.remaining()));
+            return false;
+        }
+
+        // fill() may have compacted the buffer
+        start = mRecvBuffer.position();
+        p.unmarshall(mRecvBuffer.array(), mRecvBuffer.arrayOffset() + start + HEADER_BYTES,
+                messageLength);
+        p.setDataPosition(0);
+        mRecvBuffer.position(start + HEADER_BYTES + messageLength);
+        return true;
+    }
+
+    @Override
+    public int receive() throws IOException {
+        ByteBuffer buf = mRecvBuffer;
+        if (buf.position() > 0) {
+            buf.compact();
+            buf.flip();
+        }
+
+        int limit = buf.limit();
+        if (limit == buf.capacity()) {
+            // Only possible if the peer sends a frame header we cannot honor
+            throw new IOException("Receive buffer full, bad frame length "
+                    + buf.getInt(buf.position()));
+        }
+        int count = mInputStream.read(buf.array(), buf.arrayOffset() + limit,
+                buf.capacity() - limit);
+        if (count > 0) {
+            buf.limit(limit + count);
+        }
+        return count;
+    }
+
+    @Override
+    public boolean hasBufferedMessage() {
+        ByteBuffer buf = mRecvBuffer;
+        if (buf.remaining() < HEADER_BYTES) {
+            return false;
+        }
+        return buf.remaining() - HEADER_BYTES >= buf.getInt(buf.position());
+    }
+
+    @Override
+    public void close() throws IOException {
+        mCloseable.close();
+    }
+
+    /**
+     * Reads until at least <code>needed</code> unconsumed bytes are buffered.
+     *
+     * @return false on end of stream
+     */
+    private boolean fill(int needed) throws IOException {
+        ByteBuffer buf = mRecvBuffer;
+        if (buf.remaining() >= needed) {
+            return true;
+        }
+
+        if (buf.capacity() - buf.position() < needed) {
+            buf.compact();
+            buf.flip();
+        }
+
+        while (buf.remaining() < needed) {
+            int limit = buf.limit();
+            int count = mInputStream.read(buf.array(), buf.arrayOffset() + limit,
+                    buf.capacity() - limit);
+            if (count < 0) {
+                return false;
+            }
+            buf.limit(limit + count);
+        }
+        return true;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Result of a RIL request issued through {@link AsyncCommands}.
+ *
+ * Besides the blocking {@link Future} methods, a RilFuture takes listeners
+ * that run once it is done, and {@link #whenAll} joins several requests
+ * that were issued at the same time. Listeners run on the thread that
+ * completes the future, normally the Looper given to AsyncCommands, or
+ * immediately if the future is already done.
+ *
+ * Never block in get() on the Looper that delivers the result.
+ *
+ * {@hide}
+ */
+public class RilFuture<T> implements Future<T> {
+    public interface Listener<T> {
+        void onDone(RilFuture<T> future);
+    }
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_SUCCEEDED = 1;
+    private static final int STATE_FAILED = 2;
+    private static final int STATE_CANCELLED = 3;
+
+    private int mState = STATE_PENDING;
+    private T mResult;
+    private Throwable mException;
+    private ArrayList<Listener<T>> mListeners;
+    private Runnable mCanceller;
+
+    /**
+     * Returns a future that is done once every one of <code>futures</code>
+     * is done, whether it succeeded, failed or was cancelled. Inspect the
+     * individual futures for their results. Cancelling the returned future
+     * cancels those that are still pending.
+     */
+    public static RilFuture<Void> whenAll(final RilFuture<?>... futures) {
+        final RilFuture<Void> all = new RilFuture<Void>();
+        if (futures.length == 0) {
+            all.complete(null);
+            return all;
+        }
+
+        final AtomicInteger pending = new AtomicInteger(futures.length);
+        all.setCanceller(new Runnable() {
+            @Override
+            public void run() {
+                for (RilFuture<?> f : futures) {
+                    f.cancel(false);
+                }
+            }
+        });
+        for (RilFuture<?> f : futures) {
+            addCountdown(f, pending, all);
+        }
+        return all;
+    }
+
+    private static <U> void addCountdown(RilFuture<U> f, final AtomicInteger pending,
+            final RilFuture<Void> all) {
+        f.addListener(new Listener<U>() {
+            @Override
+            public void onDone(RilFuture<U> future) {
+                if (pending.decrementAndGet() == 0) {
+                    all.complete(null);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sets the action run when the future is cancelled while pending.
+     */
+    void setCanceller(Runnable canceller) {
+        synchronized (this) {
+            mCanceller = canceller;
+        }
+    }
+
+    /**
+     * @return false if the future was already done
+     */
+    boolean complete(T result) {
+        synchronized (this) {
+            if (mState != STATE_PENDING) {
+                return false;
+            }
+            mResult = result;
+            mState = STATE_SUCCEEDED;
+            notifyAll();
+        }
+        runListeners();
+        return true;
+    }
+
+    /**
+     * @return false if the future was already done
+     */
+    boolean fail(Throwable exception) {
+        synchronized (this) {
+            if (mState != STATE_PENDING) {
+                return false;
+            }
+            mException = exception;
+            mState = STATE_FAILED;
+            notifyAll();
+        }
+        runListeners();
+        return true;
+    }
+
+    /**
+     * Withdraws the request if it has not been answered yet. The caller's
+     * result is dropped even if the modem still answers.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        Runnable canceller;
+        synchronized (this) {
+            if (mState != STATE_PENDING) {
+                return false;
+            }
+            mState = STATE_CANCELLED;
+            canceller = mCanceller;
+            notifyAll();
+        }
+        if (canceller != null) {
+            canceller.run();
+        }
+        runListeners();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mState == STATE_CANCELLED;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mState != STATE_PENDING;
+    }
+
+    /**
+     * Returns the result without blocking, or null if the future has not
+     * succeeded (yet).
+     */
+    public synchronized T getResult() {
+        return mResult;
+    }
+
+    /**
+     * Returns the exception the request failed with without blocking, or null.
+     */
+    public synchronized Throwable getException() {
+        return mException;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException, ExecutionException {
+        while (mState == STATE_PENDING) {
+            wait();
+        }
+        return getDoneResult();
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, ExecutionException, TimeoutException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (mState == STATE_PENDING) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return getDoneResult();
+    }
+
+    private T getDoneResult() throws ExecutionException {
+        switch (mState) {
+            case STATE_SUCCEEDED:
+                return mResult;
+            case STATE_FAILED:
+                throw new ExecutionException(mException);
+            default:
+                throw new CancellationException();
+        }
+    }
+
+    /**
+     * Runs <code>listener</code> once the future is done.
+     */
+    public void addListener(Listener<T> listener) {
+        synchronized (this) {
+            if (mState == STATE_PENDING) {
+                if (mListeners == null) {
+                    mListeners = new ArrayList<Listener<T>>(1);
+                }
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.onDone(this);
+    }
+
+    private void runListeners() {
+        ArrayList<Listener<T>> listeners;
+        synchronized (this) {
+            listeners = mListeners;
+            mListeners = null;
+        }
+        if (listeners != null) {
+            for (Listener<T> listener : listeners) {
+                listener.onDone(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Counts the RILRequests written to rild that hold a slot of RIL's
+ * in-flight window.
+ *
+ * A request takes a slot when RILSender writes it and gives it back when it
+ * completes. A request that rild never answers would keep its slot for good,
+ * as response deadlines are optional, so a request also gives its slot back
+ * once it has waited the stale timeout, the wake lock timeout in RIL. It
+ * stays in RIL's request list so that a late response is still handled.
+ *
+ * Requests are written, and so added, in order; the slot holders are kept
+ * oldest first, and the window is small, so removal is a short scan.
+ *
+ * {@hide}
+ */
+class RilInFlightWindow {
+    private final int mSize;
+    private final long mStaleMs;
+    private final ArrayDeque<RILRequest> mHolders = new ArrayDeque<RILRequest>();
+    private int mStaleCount;
+
+    /**
+     * @param size number of slots, 0 for no limit
+     * @param staleMs how long after being written a request gives up its slot
+     */
+    RilInFlightWindow(int size, long staleMs) {
+        mSize = size;
+        mStaleMs = staleMs;
+    }
+
+    boolean isEnabled() {
+        return mSize > 0;
+    }
+
+    /**
+     * Gives a slot to <code>rr</code>, which is being written to rild.
+     * rr.mWriteTime must be set.
+     */
+    synchronized void add(RILRequest rr) {
+        if (mSize > 0) {
+            mHolders.addLast(rr);
+        }
+    }
+
+    /**
+     * Takes back the slot of a request that completed or was cancelled.
+     *
+     * @return true if it still held a slot
+     */
+    synchronized boolean remove(RILRequest rr) {
+        return mSize > 0 && mHolders.removeFirstOccurrence(rr);
+    }
+
+    synchronized boolean isFull() {
+        return mSize > 0 && mHolders.size() >= mSize;
+    }
+
+    /**
+     * Takes back the slots of requests written at least the stale timeout
+     * before <code>now</code>.
+     *
+     * @param now elapsedRealtime
+     * @return number of slots freed
+     */
+    synchronized int releaseStale(long now) {
+        int count = 0;
+        RILRequest rr;
+        while ((rr = mHolders.peekFirst()) != null && now - rr.mWriteTime >= mStaleMs) {
+            mHolders.pollFirst();
+            count++;
+        }
+        mStaleCount += count;
+        return count;
+    }
+
+    /**
+     * @return elapsedRealtime when the oldest slot holder goes stale, or -1
+     * if no slot is held
+     */
+    synchronized long getNextStaleTime() {
+        RILRequest rr = mHolders.peekFirst();
+        return rr != null ? rr.mWriteTime + mStaleMs : -1;
+    }
+
+    synchronized int size() {
+        return mHolders.size();
+    }
+
+    synchronized int getStaleCount() {
+        return mStaleCount;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" in-flight window=" + mSize + " holding=" + mHolders.size()
+                + " released stale=" + mStaleCount);
+    }
+}
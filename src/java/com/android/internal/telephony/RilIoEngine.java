@@ -0,0 +1,220 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.net.LocalSocket;
+import android.net.LocalSocketAddress;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.MessageQueue;
+import android.os.Parcel;
+import android.telephony.Rlog;
+
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Reads the rild sockets of every RIL instance from a single thread.
+ *
+ * Without it each RIL runs a RILReceiver thread blocked in read(), i.e. one
+ * mostly idle thread per SIM. Here one Looper thread watches all sockets
+ * through {@link MessageQueue#addOnFileDescriptorEventListener}. When a
+ * socket is readable the engine reads what is available with one
+ * non-blocking receive() on that instance's RilTransport and hands each
+ * complete message to the owning RIL's processResponse(). Responses still
+ * reach their callers through their own Handlers.
+ *
+ * Writes stay on each instance's RILSender thread: a socket write blocks
+ * while rild is not reading, and that must not stall the other instances.
+ * Transports come from {@link RIL#createRilTransport}, so traffic capture
+ * works in this mode too.
+ *
+ * {@hide}
+ */
+class RilIoEngine {
+    static final String LOG_TAG = "RilIoEngine";
+
+    private static final int EVENTS = MessageQueue.OnFileDescriptorEventListener.EVENT_INPUT
+            | MessageQueue.OnFileDescriptorEventListener.EVENT_ERROR;
+
+    private static RilIoEngine sInstance;
+
+    private final HandlerThread mThread;
+    private final Handler mHandler;
+    private final MessageQueue mQueue;
+    private final ArrayList<Channel> mChannels = new ArrayList<Channel>();
+
+    static synchronized RilIoEngine getInstance() {
+        if (sInstance == null) {
+            sInstance = new RilIoEngine();
+        }
+        return sInstance;
+    }
+
+    private RilIoEngine() {
+        mThread = new HandlerThread("RilIo");
+        mThread.start();
+        mHandler = new Handler(mThread.getLooper());
+        mQueue = mThread.getLooper().getQueue();
+    }
+
+    /**
+     * Starts connecting <code>ril</code> to its rild socket. The engine keeps
+     * reconnecting whenever the socket is lost.
+     */
+    void attach(RIL ril) {
+        Channel channel = new Channel(ril);
+        synchronized (mChannels) {
+            mChannels.add(channel);
+        }
+        mHandler.post(channel);
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" RilIoEngine " + mThread + ":");
+        synchronized (mChannels) {
+            for (Channel channel : mChannels) {
+                pw.println("  " + channel);
+            }
+        }
+    }
+
+    /**
+     * Reads what <code>t</code> has available, which must not block, and
+     * processes every complete message on <code>ril</code>.
+     *
+     * @param p reused for every message
+     * @return number of messages processed, -1 on end of stream
+     */
+    static int receive(RIL ril, RilTransport t, Parcel p) throws IOException {
+        if (t.receive() < 0) {
+            return -1;
+        }
+        int count = 0;
+        while (t.hasBufferedMessage()) {
+            t.readMessage(p);
+            count++;
+            ril.processResponse(p);
+        }
+        ril.processDeferredUnsolicited();
+        return count;
+    }
+
+    /**
+     * Connection of one RIL instance. All methods run on the engine thread.
+     */
+    private class Channel implements Runnable, MessageQueue.OnFileDescriptorEventListener {
+        private final RIL mRil;
+        private final String mSocketName;
+        // Reused for every message, like in RILReceiver
+        private final Parcel mParcel = Parcel.obtain();
+
+        private LocalSocket mSocket;
+        private RilTransport mTransport;
+        private int mRetryCount;
+
+        // Read events and messages, for dump
+        private volatile long mWakeups;
+        private volatile long mMessages;
+
+        Channel(RIL ril) {
+            mRil = ril;
+            mSocketName = ril.getRilSocketName();
+        }
+
+        /**
+         * Connects to rild, retrying every SOCKET_OPEN_RETRY_MILLIS.
+         */
+        @Override
+        public void run() {
+            LocalSocket s = null;
+            RilTransport t;
+            try {
+                s = new LocalSocket();
+                s.connect(new LocalSocketAddress(mSocketName,
+                        LocalSocketAddress.Namespace.RESERVED));
+                t = mRil.createRilTransport(s);
+            } catch (IOException ex) {
+                try {
+                    if (s != null) {
+                        s.close();
+                    }
+                } catch (IOException ex2) {
+                    //ignore failure to close after failure to connect
+                }
+                mRil.logRildConnectFailure(mSocketName, mRetryCount);
+                mRetryCount++;
+                mHandler.postDelayed(this, RIL.SOCKET_OPEN_RETRY_MILLIS);
+                return;
+            }
+
+            mRetryCount = 0;
+            mSocket = s;
+            mTransport = t;
+            mRil.onRildConnected(s, t, mSocketName);
+            mQueue.addOnFileDescriptorEventListener(s.getFileDescriptor(), EVENTS, this);
+        }
+
+        @Override
+        public int onFileDescriptorEvents(FileDescriptor fd, int events) {
+            if ((events & EVENT_ERROR) != 0) {
+                Rlog.i(LOG_TAG, "'" + mSocketName + "' socket error");
+                disconnect();
+                return 0;
+            }
+
+            mWakeups++;
+            try {
+                int messages = receive(mRil, mTransport, mParcel);
+                if (messages < 0) {
+                    Rlog.i(LOG_TAG, "'" + mSocketName + "' socket closed");
+                    disconnect();
+                    return 0;
+                }
+                mMessages += messages;
+            } catch (IOException ex) {
+                Rlog.i(LOG_TAG, "'" + mSocketName + "' socket closed", ex);
+                disconnect();
+                return 0;
+            } catch (RuntimeException ex) {
+                Rlog.e(LOG_TAG, "Uncaught exception read length=" + mParcel.dataSize(), ex);
+                disconnect();
+                return 0;
+            }
+            return EVENTS;
+        }
+
+        private void disconnect() {
+            mQueue.removeOnFileDescriptorEventListener(mSocket.getFileDescriptor());
+            RilTransport t = mTransport;
+            mTransport = null;
+            mSocket = null;
+            mRil.onRildDisconnected(t, mSocketName);
+
+            // RILReceiver reconnects straight away as well
+            mHandler.post(this);
+        }
+
+        @Override
+        public String toString() {
+            return mSocketName + " connected=" + (mSocket != null)
+                    + " wakeups=" + mWakeups + " messages=" + mMessages;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+
+import java.io.IOException;
+
+/**
+ * {@link RilTransport} that plays back the rild-to-RIL side of a capture
+ * file, standing in for the rild socket.
+ *
+ * Messages are released with the gaps between their original timestamps
+ * divided by <code>speed</code>; a speed of 0 replays as fast as possible,
+ * which is what decode throughput measurements want. Messages RIL writes
+ * are counted and discarded.
+ *
+ * Besides being returned from an overridden {@link RIL#createRilTransport},
+ * the transport can push a whole capture through an existing RIL with
+ * {@link #replayInto}.
+ *
+ * {@hide}
+ */
+public class RilReplayTransport implements RilTransport {
+    private final RilCaptureReader mReader;
+    private final float mSpeed;
+
+    private long mFirstCaptureTime = -1;
+    private long mStartNanos;
+    private int mWritten;
+    private int mRead;
+    private boolean mClosed;
+
+    public RilReplayTransport(RilCaptureReader reader, float speed) {
+        mReader = reader;
+        mSpeed = speed;
+    }
+
+    @Override
+    public void writeMessage(byte[] data) throws IOException {
+        if (mClosed) {
+            throw new IOException("Replay closed");
+        }
+        mWritten++;
+    }
+
+    @Override
+    public boolean readMessage(Parcel p) throws IOException {
+        RilCaptureReader.Record r;
+        do {
+            if (mClosed) {
+                return false;
+            }
+            r = mReader.next();
+            if (r == null) {
+                return false;
+            }
+        } while (r.direction != RilCaptureTransport.DIRECTION_FROM_RILD);
+
+        pace(r.timestamp);
+
+        p.unmarshall(r.data, 0, r.length);
+        p.setDataPosition(0);
+        mRead++;
+        return true;
+    }
+
+    @Override
+    public boolean hasBufferedMessage() {
+        // Each replayed message stands alone, so coalescing sees no bursts
+        return false;
+    }
+
+    @Override
+    public int receive() throws IOException {
+        // There is no socket to poll; replay through RILReceiver or replayInto()
+        throw new IOException("Replay does not support shared I/O");
+    }
+
+    @Override
+    public void close() throws IOException {
+        mClosed = true;
+        mReader.close();
+    }
+
+    /** @return number of messages RIL wrote to this transport. */
+    public int getWrittenCount() {
+        return mWritten;
+    }
+
+    /** @return number of messages replayed to RIL so far. */
+    public int getReadCount() {
+        return mRead;
+    }
+
+    /**
+     * Feeds every remaining captured message to <code>ril</code> on the
+     * calling thread, as RILReceiver would.
+     *
+     * @return number of messages processed
+     */
+    public int replayInto(RIL ril) throws IOException {
+        Parcel p = Parcel.obtain();
+        int count = 0;
+        try {
+            while (readMessage(p)) {
+                ril.processResponse(p);
+                ril.processDeferredUnsolicited();
+                count++;
+            }
+        } finally {
+            p.recycle();
+        }
+        return count;
+    }
+
+    private void pace(long captureTime) {
+        if (mSpeed <= 0) {
+            return;
+        }
+        if (mFirstCaptureTime < 0) {
+            mFirstCaptureTime = captureTime;
+            mStartNanos = System.nanoTime();
+            return;
+        }
+        long dueNanos = mStartNanos
+                + (long) ((captureTime - mFirstCaptureTime) * 1000000L / mSpeed);
+        long waitMs = (dueNanos - System.nanoTime()) / 1000000L;
+        if (waitMs > 0) {
+            try {
+                Thread.sleep(waitMs);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
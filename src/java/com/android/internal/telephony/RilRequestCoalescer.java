@@ -0,0 +1,108 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.Message;
+import android.util.SparseArray;
+
+import java.util.ArrayList;
+
+/**
+ * Shares one modem round trip between callers issuing the same read-only,
+ * parameterless RIL request.
+ *
+ * A request is open for coalescing from the moment it is obtained until
+ * RILSender writes it to the socket. Callers arriving in that window attach
+ * their Message to the pending request and receive the same response. Once
+ * written the request is sealed: a later caller must get a fresh query, or
+ * it could be handed state the modem reported before the event that made
+ * the caller ask.
+ *
+ * {@hide}
+ */
+class RilRequestCoalescer {
+    // Pending request per RIL_REQUEST_* that can still take followers
+    private final SparseArray<RILRequest> mOpen = new SparseArray<RILRequest>();
+
+    private int mCoalescedCount;
+
+    /**
+     * @return true if responses to <code>request</code> only depend on modem
+     * state and the request carries no parameters.
+     */
+    static boolean isCoalescable(int request) {
+        switch (request) {
+            case RIL_REQUEST_GET_CURRENT_CALLS:
+            case RIL_REQUEST_SIGNAL_STRENGTH:
+            case RIL_REQUEST_OPERATOR:
+            case RIL_REQUEST_VOICE_REGISTRATION_STATE:
+            case RIL_REQUEST_DATA_REGISTRATION_STATE:
+            case RIL_REQUEST_GET_CELL_INFO_LIST:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Attaches <code>result</code> to an open request of the same type.
+     *
+     * @return true if attached; the caller must not send its own request
+     */
+    synchronized boolean attach(int request, Message result) {
+        RILRequest rr = mOpen.get(request);
+        if (rr == null) {
+            return false;
+        }
+        if (result != null) {
+            if (rr.mCoalesced == null) {
+                rr.mCoalesced = new ArrayList<Message>(2);
+            }
+            rr.mCoalesced.add(result);
+        }
+        mCoalescedCount++;
+        return true;
+    }
+
+    /**
+     * Opens <code>rr</code> for followers.
+     */
+    synchronized void open(RILRequest rr) {
+        if (!isCoalescable(rr.mRequest)) {
+            return;
+        }
+        rr.mCoalescer = this;
+        mOpen.put(rr.mRequest, rr);
+    }
+
+    /**
+     * Stops <code>rr</code> from taking further followers. After this
+     * returns rr.mCoalesced is no longer modified.
+     */
+    synchronized void seal(RILRequest rr) {
+        if (mOpen.get(rr.mRequest) == rr) {
+            mOpen.remove(rr.mRequest);
+        }
+        rr.mCoalescer = null;
+    }
+
+    synchronized int getCoalescedCount() {
+        return mCoalescedCount;
+    }
+}
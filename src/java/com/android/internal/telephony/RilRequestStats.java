@@ -0,0 +1,230 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.util.SparseArray;
+import android.util.SparseIntArray;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+
+/**
+ * Per RIL_REQUEST_* latency histograms and error counters for one RIL instance.
+ *
+ * Each request contributes three samples: the time it spent queued in RIL
+ * before being written to rild, the time rild took to answer it once
+ * written, and the time from being queued until the response was
+ * processed. Samples go into fixed exponential buckets, so
+ * recording is a counter increment and percentiles are reported as the
+ * upper bound of the bucket they fall in.
+ *
+ * {@hide}
+ */
+public class RilRequestStats {
+    /** Upper bound in milliseconds of each histogram bucket but the last. */
+    public static final int[] BUCKET_LIMITS_MS = {
+        1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 20000, 60000
+    };
+
+    /** Number of buckets, including the final unbounded one. */
+    public static final int BUCKET_COUNT = BUCKET_LIMITS_MS.length + 1;
+
+    /**
+     * Statistics for one request type. Instances returned by
+     * {@link #snapshot} are copies and can be read without locking.
+     */
+    public static class Entry {
+        public final int request;
+        public int count;
+        public int errorCount;
+        public long maxTotalMs;
+        public long maxQueueMs;
+        public long maxServiceMs;
+        public final int[] queueHistogram = new int[BUCKET_COUNT];
+        public final int[] serviceHistogram = new int[BUCKET_COUNT];
+        public final int[] totalHistogram = new int[BUCKET_COUNT];
+        /** RIL_Errno to number of responses that reported it. */
+        public final SparseIntArray errors = new SparseIntArray();
+
+        Entry(int request) {
+            this.request = request;
+        }
+
+        Entry copy() {
+            Entry e = new Entry(request);
+            e.count = count;
+            e.errorCount = errorCount;
+            e.maxTotalMs = maxTotalMs;
+            e.maxQueueMs = maxQueueMs;
+            e.maxServiceMs = maxServiceMs;
+            System.arraycopy(queueHistogram, 0, e.queueHistogram, 0, BUCKET_COUNT);
+            System.arraycopy(serviceHistogram, 0, e.serviceHistogram, 0, BUCKET_COUNT);
+            System.arraycopy(totalHistogram, 0, e.totalHistogram, 0, BUCKET_COUNT);
+            for (int i = 0; i < errors.size(); i++) {
+                e.errors.put(errors.keyAt(i), errors.valueAt(i));
+            }
+            return e;
+        }
+
+        /**
+         * @param percentile 0 to 100
+         * @return upper bound in ms of the bucket holding the given
+         * percentile of enqueue-to-response latency, or -1 without samples
+         */
+        public long getTotalPercentileMs(int percentile) {
+            return percentileOf(totalHistogram, count, percentile, maxTotalMs);
+        }
+
+        /**
+         * @return as {@link #getTotalPercentileMs} for enqueue-to-write latency
+         */
+        public long getQueuePercentileMs(int percentile) {
+            return percentileOf(queueHistogram, count, percentile, maxQueueMs);
+        }
+
+        /**
+         * @return as {@link #getTotalPercentileMs} for write-to-response
+         * latency, the time rild took to answer
+         */
+        public long getServicePercentileMs(int percentile) {
+            return percentileOf(serviceHistogram, count, percentile, maxServiceMs);
+        }
+    }
+
+    private final Integer mInstanceId;
+    private final SparseArray<Entry> mEntries = new SparseArray<Entry>();
+
+    public RilRequestStats(Integer instanceId) {
+        mInstanceId = instanceId;
+    }
+
+    static int bucketOf(long millis) {
+        for (int i = 0; i < BUCKET_LIMITS_MS.length; i++) {
+            if (millis <= BUCKET_LIMITS_MS[i]) {
+                return i;
+            }
+        }
+        return BUCKET_LIMITS_MS.length;
+    }
+
+    static long percentileOf(int[] histogram, int count, int percentile, long max) {
+        if (count == 0) {
+            return -1;
+        }
+        // Rank of the sample at the given percentile, 1-based
+        long rank = Math.max(1, ((long) count * percentile + 99) / 100);
+        long seen = 0;
+        for (int i = 0; i < histogram.length; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return i < BUCKET_LIMITS_MS.length ? BUCKET_LIMITS_MS[i] : max;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Records a request that got a response from rild.
+     *
+     * @param request RIL_REQUEST_*
+     * @param error RIL_Errno of the response, 0 on success
+     * @param enqueueTime elapsedRealtime when RIL queued the request
+     * @param writeTime elapsedRealtime when it was written to rild
+     * @param responseTime elapsedRealtime when the response was read
+     */
+    public void record(int request, int error, long enqueueTime, long writeTime,
+            long responseTime) {
+        long queueMs = Math.max(0, writeTime - enqueueTime);
+        long serviceMs = Math.max(0, responseTime - writeTime);
+        long totalMs = Math.max(0, responseTime - enqueueTime);
+
+        synchronized (mEntries) {
+            Entry e = mEntries.get(request);
+            if (e == null) {
+                e = new Entry(request);
+                mEntries.put(request, e);
+            }
+            e.count++;
+            e.queueHistogram[bucketOf(queueMs)]++;
+            e.serviceHistogram[bucketOf(serviceMs)]++;
+            e.totalHistogram[bucketOf(totalMs)]++;
+            if (totalMs > e.maxTotalMs) {
+                e.maxTotalMs = totalMs;
+            }
+            if (queueMs > e.maxQueueMs) {
+                e.maxQueueMs = queueMs;
+            }
+            if (serviceMs > e.maxServiceMs) {
+                e.maxServiceMs = serviceMs;
+            }
+            if (error != 0) {
+                e.errorCount++;
+                e.errors.put(error, e.errors.get(error) + 1);
+            }
+        }
+    }
+
+    /**
+     * @return a copy of the statistics of <code>request</code>, or null
+     * if no response has been recorded for it
+     */
+    public Entry getEntry(int request) {
+        synchronized (mEntries) {
+            Entry e = mEntries.get(request);
+            return e != null ? e.copy() : null;
+        }
+    }
+
+    /**
+     * @return copies of the statistics of every request seen so far,
+     * ordered by request id
+     */
+    public ArrayList<Entry> snapshot() {
+        synchronized (mEntries) {
+            int size = mEntries.size();
+            ArrayList<Entry> list = new ArrayList<Entry>(size);
+            for (int i = 0; i < size; i++) {
+                list.add(mEntries.valueAt(i).copy());
+            }
+            return list;
+        }
+    }
+
+    public void reset() {
+        synchronized (mEntries) {
+            mEntries.clear();
+        }
+    }
+
+    public void dump(PrintWriter pw) {
+        pw.println(" RilRequestStats [SUB" + mInstanceId + "]:");
+        for (Entry e : snapshot()) {
+            pw.print("  " + RIL.requestToString(e.request)
+                    + " count=" + e.count
+                    + " errors=" + e.errorCount
+                    + " p50=" + e.getTotalPercentileMs(50) + "ms"
+                    + " p99=" + e.getTotalPercentileMs(99) + "ms"
+                    + " max=" + e.maxTotalMs + "ms"
+                    + " queue_p99=" + e.getQueuePercentileMs(99) + "ms"
+                    + " service_p99=" + e.getServicePercentileMs(99) + "ms");
+            for (int i = 0; i < e.errors.size(); i++) {
+                pw.print(" err" + e.errors.keyAt(i) + "=" + e.errors.valueAt(i));
+            }
+            pw.println();
+        }
+    }
+}
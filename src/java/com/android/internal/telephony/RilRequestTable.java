@@ -0,0 +1,190 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of in-flight RILRequests keyed by serial number.
+ *
+ * Serials are handed out sequentially by {@link RILRequest#obtain}, so the
+ * low bits of the serial index a power-of-two ring of slots. Slots are
+ * claimed and released with compare-and-set, making insert and remove O(1)
+ * without locking or allocating. When a slot is still held by an older
+ * request that has not been answered, the newer request goes to an overflow
+ * map instead.
+ *
+ * Each slot is a request in one array and its serial in a parallel int
+ * array. An insert claims the request slot, then publishes the serial with
+ * a volatile write; readers load the serial before the request. RILRequests
+ * are pooled, so removal takes ownership by a compare-and-set on the serial
+ * rather than on the request: a request recycled under a new serial in the
+ * same slot can never be taken by a stale remove() of its old serial. The
+ * request slot is cleared only after that, so it cannot be claimed again
+ * until its remover is done with it.
+ *
+ * A request is visible once append() returns, and is removed at most once:
+ * only the caller whose remove() returns it may complete it.
+ *
+ * {@hide}
+ */
+class RilRequestTable {
+    static final int DEFAULT_CAPACITY = 128;
+
+    /** Serial of a free slot; a request with this serial goes to the overflow map. */
+    private static final int FREE = -1;
+
+    private final AtomicReferenceArray<RILRequest> mRequests;
+    private final AtomicIntegerArray mSerials;
+    private final int mMask;
+    private final ConcurrentHashMap<Integer, RILRequest> mOverflow =
+            new ConcurrentHashMap<Integer, RILRequest>();
+    private final AtomicInteger mOverflowCount = new AtomicInteger(0);
+    private final AtomicInteger mSize = new AtomicInteger(0);
+
+    RilRequestTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of ring slots, rounded up to a power of two
+     */
+    RilRequestTable(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mRequests = new AtomicReferenceArray<RILRequest>(size);
+        mSerials = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            mSerials.set(i, FREE);
+        }
+        mMask = size - 1;
+    }
+
+    /**
+     * Adds a request. The serial must not already be in the table.
+     */
+    void append(int serial, RILRequest rr) {
+        mSize.incrementAndGet();
+        int index = serial & mMask;
+        if (serial != FREE && mRequests.compareAndSet(index, null, rr)) {
+            // publishes the request written above to readers of the serial
+            mSerials.set(index, serial);
+            return;
+        }
+        mOverflowCount.incrementAndGet();
+        mOverflow.put(serial, rr);
+    }
+
+    /**
+     * Returns the request with the given serial without removing it, or null.
+     */
+    RILRequest get(int serial) {
+        int index = serial & mMask;
+        if (serial != FREE && mSerials.get(index) == serial) {
+            RILRequest rr = mRequests.get(index);
+            // the slot may have been released and reused since the serial was read
+            if (mSerials.get(index) == serial) {
+                return rr;
+            }
+            return null;
+        }
+        if (mOverflowCount.get() > 0) {
+            return mOverflow.get(serial);
+        }
+        return null;
+    }
+
+    /**
+     * Removes and returns the request with the given serial, or null if it
+     * was not present or has already been removed by another thread.
+     */
+    RILRequest remove(int serial) {
+        int index = serial & mMask;
+        if (serial != FREE && mSerials.get(index) == serial) {
+            return mSerials.compareAndSet(index, serial, FREE) ? release(index) : null;
+        }
+        if (mOverflowCount.get() > 0) {
+            RILRequest rr = mOverflow.remove(serial);
+            if (rr != null) {
+                mOverflowCount.decrementAndGet();
+                mSize.decrementAndGet();
+                return rr;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Empties a slot whose serial the caller has just reset to FREE.
+     */
+    private RILRequest release(int index) {
+        RILRequest rr = mRequests.get(index);
+        mRequests.set(index, null);
+        mSize.decrementAndGet();
+        return rr;
+    }
+
+    /**
+     * Removes and returns every request in the table.
+     */
+    ArrayList<RILRequest> removeAll() {
+        ArrayList<RILRequest> removed = new ArrayList<RILRequest>();
+        for (int i = 0; i <= mMask; i++) {
+            int serial = mSerials.get(i);
+            if (serial != FREE && mSerials.compareAndSet(i, serial, FREE)) {
+                removed.add(release(i));
+            }
+        }
+        for (Integer serial : mOverflow.keySet()) {
+            RILRequest rr = mOverflow.remove(serial);
+            if (rr != null) {
+                mOverflowCount.decrementAndGet();
+                mSize.decrementAndGet();
+                removed.add(rr);
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Returns a snapshot of the requests currently in the table, for logging.
+     */
+    ArrayList<RILRequest> snapshot() {
+        ArrayList<RILRequest> list = new ArrayList<RILRequest>(Math.max(size(), 0));
+        for (int i = 0; i <= mMask; i++) {
+            if (mSerials.get(i) != FREE) {
+                RILRequest rr = mRequests.get(i);
+                if (rr != null) {
+                    list.add(rr);
+                }
+            }
+        }
+        list.addAll(mOverflow.values());
+        return list;
+    }
+
+    int size() {
+        return mSize.get();
+    }
+
+    int overflowSize() {
+        return mOverflowCount.get();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.ArrayList;
+
+/**
+ * Hashed timer wheel holding the response deadlines of in-flight RILRequests.
+ *
+ * Time is divided into ticks. A request expiring in tick t is linked into
+ * slot (t & mask); a request further away than one turn of the wheel simply
+ * stays in its slot until the wheel comes round to its tick. Scheduling and
+ * cancelling are O(1) and expiring costs one slot per elapsed tick, however
+ * many requests are outstanding. The links live in the RILRequest itself so
+ * no node is allocated per request.
+ *
+ * RILSender schedules a request just before writing it and expires the
+ * wheel on each tick; RILReceiver cancels it when the response arrives.
+ *
+ * {@hide}
+ */
+class RilRequestTimer {
+    static final int DEFAULT_TICK_MS = 1000;
+    static final int DEFAULT_SLOTS = 64;
+
+    private final RILRequest[] mSlots;
+    private final int mMask;
+    private final long mTickMs;
+
+    // Last tick whose slot has been expired
+    private long mCurrentTick;
+    private int mSize;
+
+    RilRequestTimer() {
+        this(DEFAULT_TICK_MS, DEFAULT_SLOTS);
+    }
+
+    /**
+     * @param tickMs resolution of the deadlines
+     * @param slots number of slots, rounded up to a power of two
+     */
+    RilRequestTimer(long tickMs, int slots) {
+        int size = Integer.highestOneBit(Math.max(slots, 2) - 1) << 1;
+        mSlots = new RILRequest[size];
+        mMask = size - 1;
+        mTickMs = tickMs;
+    }
+
+    long getTickMs() {
+        return mTickMs;
+    }
+
+    /**
+     * Arms the deadline of <code>rr</code>, which must not already be armed.
+     *
+     * @param now elapsedRealtime
+     * @param timeoutMs time after <code>now</code> at which the request expires
+     */
+    synchronized void schedule(RILRequest rr, long now, long timeoutMs) {
+        long nowTick = now / mTickMs;
+        if (mSize == 0 && nowTick > mCurrentTick) {
+            // Nothing to expire in between, skip ahead
+            mCurrentTick = nowTick;
+        }
+
+        // Round up so a request never expires early
+        long tick = (now + timeoutMs + mTickMs - 1) / mTickMs;
+        if (tick <= mCurrentTick) {
+            tick = mCurrentTick + 1;
+        }
+        rr.mDeadlineTick = tick;
+
+        int slot = (int) (tick & mMask);
+        RILRequest head = mSlots[slot];
+        rr.mTimerPrev = null;
+        rr.mTimerNext = head;
+        if (head != null) {
+            head.mTimerPrev = rr;
+        }
+        mSlots[slot] = rr;
+        rr.mTimerArmed = true;
+        mSize++;
+    }
+
+    /**
+     * Disarms the deadline of <code>rr</code>.
+     *
+     * @return false if it was not armed, e.g. because it already expired
+     */
+    synchronized boolean cancel(RILRequest rr) {
+        if (!rr.mTimerArmed) {
+            return false;
+        }
+        unlink(rr, (int) (rr.mDeadlineTick & mMask));
+        return true;
+    }
+
+    /**
+     * Disarms every deadline.
+     */
+    synchronized void clear() {
+        for (int i = 0; i <= mMask; i++) {
+            RILRequest rr = mSlots[i];
+            while (rr != null) {
+                RILRequest next = rr.mTimerNext;
+                rr.mTimerNext = null;
+                rr.mTimerPrev = null;
+                rr.mTimerArmed = false;
+                rr = next;
+            }
+            mSlots[i] = null;
+        }
+        mSize = 0;
+    }
+
+    /**
+     * Disarms every request whose deadline has passed and removes it from
+     * <code>table</code>. Requests that were already removed from the table,
+     * because their response is being processed, are left to the receiver.
+     *
+     * @param now elapsedRealtime
+     * @param expired receives the requests the caller must now fail
+     * @return number of requests added to <code>expired</code>
+     */
+    synchronized int expire(long now, RilRequestTable table, ArrayList<RILRequest> expired) {
+        long nowTick = now / mTickMs;
+        if (nowTick <= mCurrentTick) {
+            return 0;
+        }
+
+        // After a long gap visit each slot once rather than once per tick
+        long steps = Math.min(nowTick - mCurrentTick, mSlots.length);
+        int count = 0;
+        for (long i = 1; i <= steps && mSize > 0; i++) {
+            int slot = (int) ((mCurrentTick + i) & mMask);
+            RILRequest rr = mSlots[slot];
+            while (rr != null) {
+                RILRequest next = rr.mTimerNext;
+                if (rr.mDeadlineTick <= nowTick) {
+                    unlink(rr, slot);
+                    // Still armed, so the receiver has not released it and
+                    // its serial is current
+                    if (table.remove(rr.mSerial) == rr) {
+                        expired.add(rr);
+                        count++;
+                    }
+                }
+                rr = next;
+            }
+        }
+        mCurrentTick = nowTick;
+        return count;
+    }
+
+    synchronized int size() {
+        return mSize;
+    }
+
+    private void unlink(RILRequest rr, int slot) {
+        if (rr.mTimerPrev != null) {
+            rr.mTimerPrev.mTimerNext = rr.mTimerNext;
+        } else {
+            mSlots[slot] = rr.mTimerNext;
+        }
+        if (rr.mTimerNext != null) {
+            rr.mTimerNext.mTimerPrev = rr.mTimerPrev;
+        }
+        rr.mTimerNext = null;
+        rr.mTimerPrev = null;
+        rr.mTimerArmed = false;
+        mSize--;
+    }
+}
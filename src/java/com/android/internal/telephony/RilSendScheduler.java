@@ -0,0 +1,292 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.Message;
+
+import java.io.PrintWriter;
+import java.util.ArrayDeque;
+
+/**
+ * Decides which queued RILRequest RILSender writes to rild next.
+ *
+ * Requests are sorted into three lanes. Call control goes ahead of ordinary
+ * requests, and bulk queries such as phonebook SIM_IO loops or cell info
+ * polls go behind them. Within a lane requests keep their FIFO order.
+ *
+ * To keep lower lanes from starving, the head of each lane gains one
+ * priority level for every {@link #AGING_STEP_MS} it has waited; the head
+ * with the best effective priority is sent, preferring the higher lane on
+ * ties.
+ *
+ * The scheduler also serves as the admission queue of RIL's in-flight
+ * window: while the window is full RILSender only takes urgent requests,
+ * and the background lane can be bounded, either rejecting new requests or
+ * shedding the oldest queued one once the bound is reached.
+ *
+ * {@hide}
+ */
+class RilSendScheduler {
+    static final int PRIORITY_URGENT = 0;
+    static final int PRIORITY_NORMAL = 1;
+    static final int PRIORITY_BACKGROUND = 2;
+    static final int PRIORITY_COUNT = 3;
+
+    static final long AGING_STEP_MS = 1000;
+
+    /** Refuse new background requests while the background lane is full */
+    static final int SHED_REJECT_NEW = 0;
+    /** Drop the oldest queued background request to admit a new one */
+    static final int SHED_DROP_OLDEST = 1;
+
+    private final ArrayDeque<RILRequest>[] mLanes;
+    private final int[] mSentPerLane = new int[PRIORITY_COUNT];
+    private final boolean mPrioritize;
+    private final int mMaxBackground;
+    private final int mShedPolicy;
+
+    private int mMaxDepth;
+    private int mRejected;
+    private int mShed;
+    private int mWindowBlocked;
+
+    /**
+     * @param prioritize false to queue every request in the normal lane,
+     * which gives plain FIFO ordering
+     */
+    RilSendScheduler(boolean prioritize) {
+        this(prioritize, 0, SHED_REJECT_NEW);
+    }
+
+    /**
+     * @param prioritize false to queue every request in the normal lane,
+     * which gives plain FIFO ordering
+     * @param maxBackground bound of the background lane, 0 for none
+     * @param shedPolicy SHED_REJECT_NEW or SHED_DROP_OLDEST
+     */
+    @SuppressWarnings("unchecked")
+    RilSendScheduler(boolean prioritize, int maxBackground, int shedPolicy) {
+        mPrioritize = prioritize;
+        mMaxBackground = maxBackground;
+        mShedPolicy = shedPolicy;
+        mLanes = new ArrayDeque[PRIORITY_COUNT];
+        for (int i = 0; i < PRIORITY_COUNT; i++) {
+            mLanes[i] = new ArrayDeque<RILRequest>();
+        }
+    }
+
+    static int priorityOf(int request) {
+        switch (request) {
+            case RIL_REQUEST_DIAL:
+            case RIL_REQUEST_HANGUP:
+            case RIL_REQUEST_HANGUP_WAITING_OR_BACKGROUND:
+            case RIL_REQUEST_HANGUP_FOREGROUND_RESUME_BACKGROUND:
+            case RIL_REQUEST_SWITCH_WAITING_OR_HOLDING_AND_ACTIVE:
+            case RIL_REQUEST_CONFERENCE:
+            case RIL_REQUEST_UDUB:
+            case RIL_REQUEST_ANSWER:
+            case RIL_REQUEST_SEPARATE_CONNECTION:
+            case RIL_REQUEST_EXPLICIT_CALL_TRANSFER:
+            case RIL_REQUEST_DTMF:
+            case RIL_REQUEST_DTMF_START:
+            case RIL_REQUEST_DTMF_STOP:
+            case RIL_REQUEST_SET_MUTE:
+            case RIL_REQUEST_CDMA_FLASH:
+            case RIL_REQUEST_CDMA_BURST_DTMF:
+            case RIL_REQUEST_EXIT_EMERGENCY_CALLBACK_MODE:
+            // The network retransmits when SMS are not acked in time
+            case RIL_REQUEST_SMS_ACKNOWLEDGE:
+            case RIL_REQUEST_CDMA_SMS_ACKNOWLEDGE:
+            case RIL_REQUEST_ACKNOWLEDGE_INCOMING_GSM_SMS_WITH_PDU:
+                return PRIORITY_URGENT;
+
+            case RIL_REQUEST_SIM_IO:
+            case RIL_REQUEST_GET_CELL_INFO_LIST:
+            case RIL_REQUEST_GET_NEIGHBORING_CELL_IDS:
+            case RIL_REQUEST_QUERY_AVAILABLE_NETWORKS:
+            case RIL_REQUEST_QUERY_AVAILABLE_BAND_MODE:
+            case RIL_REQUEST_GET_ACTIVITY_INFO:
+            case RIL_REQUEST_PULL_LCEDATA:
+            case RIL_REQUEST_GET_HARDWARE_CONFIG:
+            case RIL_REQUEST_BASEBAND_VERSION:
+                return PRIORITY_BACKGROUND;
+
+            default:
+                return PRIORITY_NORMAL;
+        }
+    }
+
+    /**
+     * Queues <code>rr</code>; rr.mEnqueueTime must be set.
+     *
+     * The background lane is classified by request type even when
+     * prioritization is off, so that it can still be bounded.
+     *
+     * @return null if admitted, <code>rr</code> itself if it was rejected, or
+     * an older request that was shed to make room for it. The caller must
+     * fail whichever request is returned.
+     */
+    synchronized RILRequest add(RILRequest rr) {
+        int priority = priorityOf(rr.mRequest);
+        int lane = mPrioritize ? priority : PRIORITY_NORMAL;
+        RILRequest dropped = null;
+
+        if (mMaxBackground > 0 && priority == PRIORITY_BACKGROUND
+                && countBackground(lane) >= mMaxBackground) {
+            if (mShedPolicy != SHED_DROP_OLDEST) {
+                mRejected++;
+                return rr;
+            }
+            dropped = removeOldestBackground(lane);
+            mShed++;
+        }
+
+        mLanes[lane].addLast(rr);
+        mMaxDepth = Math.max(mMaxDepth, size());
+        return dropped;
+    }
+
+    private int countBackground(int lane) {
+        if (lane == PRIORITY_BACKGROUND) {
+            return mLanes[lane].size();
+        }
+        // FIFO mode, everything shares the normal lane
+        int count = 0;
+        for (RILRequest queued : mLanes[lane]) {
+            if (priorityOf(queued.mRequest) == PRIORITY_BACKGROUND) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private RILRequest removeOldestBackground(int lane) {
+        if (lane == PRIORITY_BACKGROUND) {
+            return mLanes[lane].pollFirst();
+        }
+        for (RILRequest queued : mLanes[lane]) {
+            if (priorityOf(queued.mRequest) == PRIORITY_BACKGROUND) {
+                mLanes[lane].removeFirstOccurrence(queued);
+                return queued;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Removes and returns the request to send next, or null if none is queued.
+     *
+     * @param now elapsedRealtime
+     */
+    synchronized RILRequest poll(long now) {
+        return poll(now, false);
+    }
+
+    /**
+     * Removes and returns the request to send next, or null if none may be
+     * sent now.
+     *
+     * @param now elapsedRealtime
+     * @param windowFull true if the in-flight window is full, in which case
+     * only urgent requests are let through
+     */
+    synchronized RILRequest poll(long now, boolean windowFull) {
+        if (windowFull) {
+            RILRequest rr;
+            if (mPrioritize) {
+                rr = mLanes[PRIORITY_URGENT].pollFirst();
+            } else {
+                // Keep FIFO order, but do not hold back call control at the head
+                rr = mLanes[PRIORITY_NORMAL].peekFirst();
+                if (rr != null && priorityOf(rr.mRequest) == PRIORITY_URGENT) {
+                    mLanes[PRIORITY_NORMAL].pollFirst();
+                } else {
+                    rr = null;
+                }
+            }
+            if (rr != null) {
+                mSentPerLane[PRIORITY_URGENT]++;
+            } else if (size() > 0) {
+                mWindowBlocked++;
+            }
+            return rr;
+        }
+
+        int bestLane = -1;
+        long bestPriority = Long.MAX_VALUE;
+        for (int lane = 0; lane < PRIORITY_COUNT; lane++) {
+            RILRequest head = mLanes[lane].peekFirst();
+            if (head == null) {
+                continue;
+            }
+            long effective = lane - Math.max(0, now - head.mEnqueueTime) / AGING_STEP_MS;
+            if (effective < bestPriority) {
+                bestPriority = effective;
+                bestLane = lane;
+            }
+        }
+        if (bestLane < 0) {
+            return null;
+        }
+        mSentPerLane[bestLane]++;
+        return mLanes[bestLane].pollFirst();
+    }
+
+    /**
+     * Removes the queued request reporting to <code>result</code>, unless
+     * it is open for coalescing and may have other callers.
+     *
+     * @return the removed request, or null
+     */
+    synchronized RILRequest remove(Message result) {
+        for (ArrayDeque<RILRequest> lane : mLanes) {
+            for (RILRequest rr : lane) {
+                if (rr.mResult == result && rr.mCoalescer == null && rr.mCoalesced == null) {
+                    lane.removeFirstOccurrence(rr);
+                    return rr;
+                }
+            }
+        }
+        return null;
+    }
+
+    synchronized int size() {
+        int count = 0;
+        for (ArrayDeque<RILRequest> lane : mLanes) {
+            count += lane.size();
+        }
+        return count;
+    }
+
+    synchronized void dump(PrintWriter pw) {
+        pw.println(" RilSendScheduler prioritize=" + mPrioritize
+                + " queued urgent/normal/background="
+                + mLanes[PRIORITY_URGENT].size() + "/"
+                + mLanes[PRIORITY_NORMAL].size() + "/"
+                + mLanes[PRIORITY_BACKGROUND].size()
+                + " sent=" + mSentPerLane[PRIORITY_URGENT] + "/"
+                + mSentPerLane[PRIORITY_NORMAL] + "/"
+                + mSentPerLane[PRIORITY_BACKGROUND]
+                + " maxDepth=" + mMaxDepth
+                + " windowBlocked=" + mWindowBlocked
+                + " maxBackground=" + mMaxBackground
+                + (mShedPolicy == SHED_DROP_OLDEST ? " (drop oldest)" : " (reject new)")
+                + " rejected=" + mRejected + " shed=" + mShed);
+    }
+}
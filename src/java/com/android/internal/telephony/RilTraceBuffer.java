@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.SystemClock;
+
+import java.io.PrintWriter;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Fixed-size ring of compact binary trace records of RIL traffic.
+ *
+ * Recording a message costs a few array stores and no allocation or string
+ * building; the records are only formatted to text by dump(), so the buffer
+ * keeps a longer history than logcat at a fraction of the cost.
+ *
+ * Writers claim a record with an atomic increment and publish it by
+ * writing its sequence number last; dump() skips records whose sequence
+ * number changed while it was reading them. Old records are overwritten.
+ *
+ * {@hide}
+ */
+class RilTraceBuffer {
+    static final int DEFAULT_CAPACITY = 512;
+
+    /** Request written to rild */
+    static final int TYPE_SEND = 1;
+    /** Solicited response received */
+    static final int TYPE_RESPONSE = 2;
+    /** Unsolicited response received */
+    static final int TYPE_UNSOL = 3;
+    /** Request failed at its deadline */
+    static final int TYPE_TIMEOUT = 4;
+    /** Request failed before or while being written */
+    static final int TYPE_SEND_FAILED = 5;
+    /** Request withdrawn by its caller */
+    static final int TYPE_CANCELLED = 6;
+
+    // sequence, elapsedRealtime, type|id|serial, error|duration|payload
+    private static final int FIELDS = 4;
+    private static final int MAX_24_BITS = 0xffffff;
+
+    private final AtomicLongArray mRecords;
+    private final int mMask;
+    private final AtomicLong mNext = new AtomicLong(0);
+
+    RilTraceBuffer() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity number of records kept, rounded up to a power of two
+     */
+    RilTraceBuffer(int capacity) {
+        int size = Integer.highestOneBit(Math.max(capacity, 2) - 1) << 1;
+        mRecords = new AtomicLongArray(size * FIELDS);
+        mMask = size - 1;
+    }
+
+    /**
+     * Appends a record.
+     *
+     * @param type one of the TYPE_* constants
+     * @param serial request serial, or 0 for unsolicited responses
+     * @param id RIL_REQUEST_* or RIL_UNSOL_*
+     * @param error RIL_Errno
+     * @param durationMs time since the request was queued, if any
+     * @param payloadBytes size of the parcel
+     */
+    void add(int type, int serial, int id, int error, long durationMs, int payloadBytes) {
+        long index = mNext.getAndIncrement();
+        int base = (int) (index & mMask) * FIELDS;
+
+        mRecords.set(base, 0);
+        mRecords.set(base + 1, SystemClock.elapsedRealtime());
+        mRecords.set(base + 2, ((long) type << 56) | ((long) (id & MAX_24_BITS) << 32)
+                | (serial & 0xffffffffL));
+        mRecords.set(base + 3, ((long) (error & 0xffff) << 48)
+                | (Math.min(Math.max(durationMs, 0), MAX_24_BITS) << 24)
+                | Math.min(Math.max(payloadBytes, 0), MAX_24_BITS));
+        // Publish
+        mRecords.lazySet(base, index + 1);
+    }
+
+    /**
+     * Returns the number of records added since creation, including any
+     * that have been overwritten.
+     */
+    long getCount() {
+        return mNext.get();
+    }
+
+    /**
+     * Formats the retained records, oldest first.
+     */
+    void dump(PrintWriter pw) {
+        long end = mNext.get();
+        long start = Math.max(0, end - (mMask + 1));
+        long now = SystemClock.elapsedRealtime();
+        StringBuilder sb = new StringBuilder();
+
+        pw.println(" trace records=" + end + " showing=" + (end - start));
+        for (long index = start; index < end; index++) {
+            int base = (int) (index & mMask) * FIELDS;
+            if (mRecords.get(base) != index + 1) {
+                continue;
+            }
+            long time = mRecords.get(base + 1);
+            long key = mRecords.get(base + 2);
+            long value = mRecords.get(base + 3);
+            if (mRecords.get(base) != index + 1) {
+                // Overwritten while reading
+                continue;
+            }
+
+            int type = (int) (key >>> 56);
+            int id = (int) ((key >>> 32) & MAX_24_BITS);
+            int serial = (int) key;
+            int error = (int) ((value >>> 48) & 0xffff);
+            int duration = (int) ((value >>> 24) & MAX_24_BITS);
+            int payload = (int) (value & MAX_24_BITS);
+
+            sb.setLength(0);
+            sb.append("  -").append(now - time).append("ms ").append(typeToString(type));
+            if (type == TYPE_UNSOL) {
+                sb.append(' ').append(RIL.responseToString(id));
+            } else {
+                sb.append(" [").append(serial).append("] ").append(RIL.requestToString(id));
+            }
+            if (error != 0) {
+                sb.append(" error=").append(error);
+            }
+            if (type != TYPE_UNSOL) {
+                sb.append(" t=").append(duration).append("ms");
+            }
+            sb.append(" bytes=").append(payload);
+            pw.println(sb);
+        }
+    }
+
+    static String typeToString(int type) {
+        switch (type) {
+            case TYPE_SEND: return ">";
+            case TYPE_RESPONSE: return "<";
+            case TYPE_UNSOL: return "[UNSL]<";
+            case TYPE_TIMEOUT: return "<TIMEOUT";
+            case TYPE_SEND_FAILED: return "<SEND_FAILED";
+            case TYPE_CANCELLED: return "<CANCELLED";
+            default: return "?" + type;
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+
+import java.io.IOException;
+
+/**
+ * Carries length-prefixed RIL messages between {@link RIL} and rild.
+ *
+ * Writes are issued from the RILSender thread and reads from the RILReceiver
+ * thread, or the RilIoEngine thread with shared I/O, so an implementation
+ * must allow one reader and one writer to run concurrently.
+ *
+ * {@hide}
+ */
+public interface RilTransport {
+    /**
+     * Frames and writes a single marshalled RIL parcel.
+     *
+     * @param data the marshalled parcel, without length header
+     * @throws IOException if the connection to rild is broken
+     */
+    void writeMessage(byte[] data) throws IOException;
+
+    /**
+     * Reads the next message off the wire and unmarshalls it into
+     * <code>p</code>, leaving the data position at 0.
+     *
+     * @param p non-null; Parcel to fill in
+     * @return false on end of stream
+     * @throws IOException if the connection to rild is broken or a
+     * malformed frame was received
+     */
+    boolean readMessage(Parcel p) throws IOException;
+
+    /**
+     * @return true if a complete message has already been received, so the
+     * next {@link #readMessage} will not block
+     */
+    boolean hasBufferedMessage();
+
+    /**
+     * Reads whatever is available with a single read() call, for callers
+     * that are told by a poller when the connection is readable. Complete
+     * messages can then be taken with {@link #readMessage} without blocking
+     * for as long as {@link #hasBufferedMessage} returns true.
+     *
+     * @return number of bytes read, -1 on end of stream
+     * @throws IOException if the connection to rild is broken
+     */
+    int receive() throws IOException;
+
+    /**
+     * Closes the underlying connection. Blocked readers return or throw.
+     */
+    void close() throws IOException;
+}
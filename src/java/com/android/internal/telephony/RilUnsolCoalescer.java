@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.*;
+
+import android.os.Parcel;
+
+import java.io.PrintWriter;
+
+/**
+ * "Latest wins" holding area for high-frequency unsolicited responses.
+ *
+ * While RILReceiver still has complete messages buffered from the socket,
+ * each coalescable unsolicited response is copied into a per-type slot
+ * instead of being decoded, replacing any older one of the same type. When
+ * the receive buffer runs dry, or before any other message is processed,
+ * the surviving slots are handed back, oldest first, so a burst of N signal
+ * strength reports costs one decode and one notification.
+ *
+ * Held messages are therefore never delivered after a solicited response
+ * or a non-coalescable unsolicited response that arrived later. The only
+ * reordering is among the coalescable types themselves: a replaced message
+ * takes the position of its replacement. Each of them goes to its own
+ * registrants, which do not depend on the order relative to the others.
+ *
+ * Only used from the RILReceiver thread.
+ *
+ * {@hide}
+ */
+class RilUnsolCoalescer {
+    private static final int[] COALESCABLE = {
+        RIL_UNSOL_SIGNAL_STRENGTH,
+        RIL_UNSOL_CELL_INFO_LIST,
+        RIL_UNSOL_RESPONSE_VOICE_NETWORK_STATE_CHANGED,
+    };
+
+    private final Parcel[] mPending = new Parcel[COALESCABLE.length];
+    // Position of the unsolicited response id in each pending parcel
+    private final int[] mPendingPosition = new int[COALESCABLE.length];
+    // Arrival sequence of each pending parcel, 0 when the slot is empty
+    private final long[] mPendingSeq = new long[COALESCABLE.length];
+    private long mSeq;
+    private int mDropped;
+
+    private static int slotOf(int response) {
+        for (int i = 0; i < COALESCABLE.length; i++) {
+            if (COALESCABLE[i] == response) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Holds back <code>p</code> if its response type is coalescable. The
+     * data position must be at the unsolicited response id and is left
+     * unchanged.
+     *
+     * @return true if the message was taken and must not be processed now
+     */
+    boolean defer(Parcel p) {
+        int position = p.dataPosition();
+        int slot = slotOf(p.readInt());
+        p.setDataPosition(position);
+        if (slot < 0) {
+            return false;
+        }
+
+        Parcel pending = mPending[slot];
+        if (pending == null) {
+            pending = Parcel.obtain();
+            mPending[slot] = pending;
+        }
+        if (mPendingSeq[slot] != 0) {
+            mDropped++;
+        }
+        pending.setDataSize(0);
+        pending.appendFrom(p, 0, p.dataSize());
+        mPendingPosition[slot] = position;
+        mPendingSeq[slot] = ++mSeq;
+        return true;
+    }
+
+    /**
+     * Removes and returns the oldest held message, positioned at its
+     * unsolicited response id, or null if nothing is held. The parcel
+     * stays owned by this object and is only valid until the next call.
+     */
+    Parcel poll() {
+        int oldest = -1;
+        for (int i = 0; i < COALESCABLE.length; i++) {
+            if (mPendingSeq[i] != 0
+                    && (oldest < 0 || mPendingSeq[i] < mPendingSeq[oldest])) {
+                oldest = i;
+            }
+        }
+        if (oldest < 0) {
+            return null;
+        }
+        mPendingSeq[oldest] = 0;
+        Parcel p = mPending[oldest];
+        p.setDataPosition(mPendingPosition[oldest]);
+        return p;
+    }
+
+    /**
+     * @return number of held messages replaced by a newer one
+     */
+    int getDroppedCount() {
+        return mDropped;
+    }
+
+    /**
+     * Forgets held messages, e.g. after the socket to rild was closed.
+     */
+    void clear() {
+        for (int i = 0; i < COALESCABLE.length; i++) {
+            mPendingSeq[i] = 0;
+        }
+    }
+
+    void dump(PrintWriter pw) {
+        pw.println(" RilUnsolCoalescer dropped=" + mDropped);
+    }
+}
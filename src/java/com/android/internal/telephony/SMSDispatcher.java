@@ -37,6 +37,7 @@ import android.os.AsyncResult;
 import android.os.Binder;
 import android.os.Handler;
 import android.os.Message;
+import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemProperties;
@@ -47,6 +48,7 @@ import android.provider.Telephony.Sms;
 import android.service.carrier.CarrierMessagingService;
 import android.service.carrier.ICarrierMessagingCallback;
 import android.service.carrier.ICarrierMessagingService;
+import android.telephony.CarrierConfigManager;
 import android.telephony.CarrierMessagingServiceManager;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.Rlog;
@@ -71,8 +73,10 @@ import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
 import com.android.internal.telephony.uicc.UiccCard;
 import com.android.internal.telephony.uicc.UiccController;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.concurrent.atomic.AtomicBoolean;
@@ -138,6 +142,9 @@ public abstract class SMSDispatcher extends Handler {
     protected static final int EVENT_NEW_ICC_SMS = 14;
     protected static final int EVENT_ICC_CHANGED = 15;
 
+    /** Send a multipart segment that was waiting for room in its send window. */
+    private static final int EVENT_SEND_WINDOWED_SMS = 16;
+
     protected PhoneBase mPhone;
     protected final Context mContext;
     protected final ContentResolver mResolver;
@@ -153,6 +160,12 @@ public abstract class SMSDispatcher extends Handler {
     /** Message sending queue limit */
     private static final int MO_MSG_QUEUE_LIMIT = 5;
 
+    /**
+     * Carrier config key for the number of segments of a multipart message that may be
+     * outstanding at the radio at once. 0, the default, hands every segment over immediately.
+     */
+    static final String KEY_MULTIPART_SEND_WINDOW_INT = "sms_multipart_send_window_int";
+
     /**
      * Message reference for a CONCATENATED_8_BIT_REFERENCE or
      * CONCATENATED_16_BIT_REFERENCE message set.  Should be
@@ -169,6 +182,15 @@ public abstract class SMSDispatcher extends Handler {
     /** Number of outgoing SmsTrackers waiting for user confirmation. */
     private int mPendingTrackerCount;
 
+    /** Sends segments released by a multipart send window from the handler. */
+    private final MultipartSendWindow.Sender<SmsTracker> mWindowSender =
+            new MultipartSendWindow.Sender<SmsTracker>() {
+        @Override
+        public void sendQueued(SmsTracker tracker) {
+            sendMessage(obtainMessage(EVENT_SEND_WINDOWED_SMS, tracker));
+        }
+    };
+
     /* Flags indicating whether the current device allows sms service */
     protected boolean mSmsCapable = true;
     protected boolean mSmsSendDisabled;
@@ -286,6 +308,10 @@ public abstract class SMSDispatcher extends Handler {
             sendRetrySms((SmsTracker) msg.obj);
             break;
 
+        case EVENT_SEND_WINDOWED_SMS:
+            sendSms((SmsTracker) msg.obj);
+            break;
+
         case EVENT_SEND_LIMIT_REACHED_CONFIRMATION:
             handleReachSentLimit((SmsTracker)(msg.obj));
             break;
@@ -309,7 +335,7 @@ public abstract class SMSDispatcher extends Handler {
                 } else {
                     tracker.mExpectMore = false;
                 }
-                sendSms(tracker);
+                sendSmsInWindow(tracker);
             }
             mPendingTrackerCount--;
             break;
@@ -862,6 +888,10 @@ public abstract class SMSDispatcher extends Handler {
         // States to track at the message level (for all parts)
         final AtomicInteger unsentPartCount = new AtomicInteger(msgCount);
         final AtomicBoolean anyPartFailed = new AtomicBoolean(false);
+        int windowSize = getMultipartSendWindow();
+        final MultipartSendWindow<SmsTracker> sendWindow =
+                (windowSize > 0 && windowSize < msgCount)
+                ? new MultipartSendWindow<SmsTracker>(windowSize, mWindowSender) : null;
 
         for (int i = 0; i < msgCount; i++) {
             SmsHeader.ConcatRef concatRef = new SmsHeader.ConcatRef();
@@ -899,6 +929,7 @@ public abstract class SMSDispatcher extends Handler {
                         sentIntent, deliveryIntent, (i == (msgCount - 1)),
                         unsentPartCount, anyPartFailed, messageUri, fullMessageText);
             trackers[i].mPersistMessage = persistMessage;
+            trackers[i].mSendWindow = sendWindow;
         }
 
         if (parts == null || trackers == null || trackers.length == 0
@@ -924,6 +955,29 @@ public abstract class SMSDispatcher extends Handler {
         }
     }
 
+    /**
+     * Returns the carrier's limit on outstanding segments of a multipart message, or 0 for
+     * no limit.
+     */
+    private int getMultipartSendWindow() {
+        CarrierConfigManager configMgr = (CarrierConfigManager)
+                mContext.getSystemService(Context.CARRIER_CONFIG_SERVICE);
+        PersistableBundle b = (configMgr != null) ? configMgr.getConfigForSubId(getSubId())
+                : null;
+        return (b != null) ? b.getInt(KEY_MULTIPART_SEND_WINDOW_INT, 0) : 0;
+    }
+
+    /**
+     * Send the message to the radio, unless it is a segment of a multipart message whose
+     * send window is full; it is then sent from the handler when an earlier segment
+     * completes. Permission and usage checks have already been done on the binder thread.
+     */
+    private void sendSmsInWindow(SmsTracker tracker) {
+        if (tracker.mSendWindow == null || tracker.mSendWindow.acquire(tracker)) {
+            sendSms(tracker);
+        }
+    }
+
     /**
      * Create a new SubmitPdu and return the SMS tracker.
      */
@@ -1003,7 +1057,7 @@ public abstract class SMSDispatcher extends Handler {
                 return;
             }
 
-            sendSms(tracker);
+            sendSmsInWindow(tracker);
         }
     }
 
@@ -1380,6 +1434,9 @@ public abstract class SMSDispatcher extends Handler {
 
         private boolean mPersistMessage;
 
+        // Send window of the multipart message this part belongs to, if limited
+        private MultipartSendWindow<SmsTracker> mSendWindow;
+
         private SmsTracker(HashMap<String, Object> data, PendingIntent sentIntent,
                 PendingIntent deliveryIntent, PackageInfo appInfo, String destAddr, String format,
                 AtomicInteger unsentPartCount, AtomicBoolean anyPartFailed, Uri messageUri,
@@ -1535,6 +1592,9 @@ public abstract class SMSDispatcher extends Handler {
             if (mAnyPartFailed != null) {
                 mAnyPartFailed.set(true);
             }
+            if (mSendWindow != null) {
+                mSendWindow.release(this);
+            }
             // is single part or last part of multipart message
             boolean isSinglePartOrLastPart = true;
             if (mUnsentPartCount != null) {
@@ -1571,6 +1631,9 @@ public abstract class SMSDispatcher extends Handler {
          * @param context The Context
          */
         public void onSent(Context context) {
+            if (mSendWindow != null) {
+                mSendWindow.release(this);
+            }
             // is single part or last part of multipart message
             boolean isSinglePartOrLastPart = true;
             if (mUnsentPartCount != null) {
@@ -1603,6 +1666,58 @@ public abstract class SMSDispatcher extends Handler {
         }
     }
 
+    /**
+     * Limits how many segments of one multipart message are outstanding at the radio. A
+     * segment holds its slot through any retries until its sent intent is fired, and the
+     * next queued segment is then handed to the sender.
+     */
+    static final class MultipartSendWindow<T> {
+        /** Sends a queued segment once a slot has been passed to it. */
+        interface Sender<T> {
+            void sendQueued(T segment);
+        }
+
+        private final int mSize;
+        private final Sender<T> mSender;
+        private final ArrayDeque<T> mQueued = new ArrayDeque<T>();
+        private final HashSet<T> mSlotHolders = new HashSet<T>();
+
+        MultipartSendWindow(int size, Sender<T> sender) {
+            mSize = size;
+            mSender = sender;
+        }
+
+        /**
+         * @return true if the segment may be sent now; otherwise it is queued
+         */
+        synchronized boolean acquire(T segment) {
+            if (mSlotHolders.size() < mSize) {
+                mSlotHolders.add(segment);
+                return true;
+            }
+            mQueued.add(segment);
+            return false;
+        }
+
+        /**
+         * Pass the slot held by a completed segment to the next queued one.
+         */
+        void release(T segment) {
+            T next;
+            synchronized (this) {
+                if (!mSlotHolders.remove(segment)) {
+                    return;
+                }
+                next = mQueued.poll();
+                if (next == null) {
+                    return;
+                }
+                mSlotHolders.add(next);
+            }
+            mSender.sendQueued(next);
+        }
+    }
+
     protected SmsTracker getSmsTracker(HashMap<String, Object> data, PendingIntent sentIntent,
             PendingIntent deliveryIntent, String format, AtomicInteger unsentPartCount,
             AtomicBoolean anyPartFailed, Uri messageUri, SmsHeader smsHeader,
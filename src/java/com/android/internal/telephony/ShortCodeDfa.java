@@ -0,0 +1,517 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.internal.telephony;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+
+/**
+ * Deterministic automaton classifying a destination address against the
+ * four short code patterns of one country in a single pass over its digits.
+ *
+ * The patterns in the short code XML only use a small regular expression
+ * subset over digits: literals, classes such as <code>[1-9]</code>,
+ * <code>\d</code>, <code>.</code>, groups, alternation and the quantifiers
+ * <code>? * + {n} {n,} {n,m}</code>. {@link #compile} builds one NFA per
+ * pattern, combines them and converts the result to a DFA with the category
+ * precedence of {@link SmsUsageMonitor} resolved in each accepting state.
+ * Any construct outside the subset makes it return null so that the caller
+ * keeps using {@link java.util.regex.Pattern}.
+ *
+ * {@hide}
+ */
+final class ShortCodeDfa {
+    /** Input symbols are the ten digits and one class for any other character. */
+    private static final int SYMBOLS = 11;
+    private static final int OTHER = 10;
+    private static final int DIGITS_MASK = (1 << 10) - 1;
+    private static final int ANY_MASK = (1 << SYMBOLS) - 1;
+
+    /** Largest repetition count expanded from a bounded quantifier. */
+    private static final int MAX_REPEAT = 32;
+
+    /** Patterns compiling to more states than this are left to java.util.regex. */
+    static final int MAX_STATES = 2048;
+
+    /** Transition table, SYMBOLS entries per state; -1 is the dead state. */
+    private final int[] mTransitions;
+
+    /** Category returned for input ending in each state. */
+    private final int[] mCategories;
+
+    private ShortCodeDfa(int[] transitions, int[] categories) {
+        mTransitions = transitions;
+        mCategories = categories;
+    }
+
+    /**
+     * Returns the category of <code>phoneNumber</code>, as
+     * SmsUsageMonitor.ShortCodePatternMatcher would.
+     */
+    int getNumberCategory(String phoneNumber) {
+        int state = 0;
+        for (int i = 0, length = phoneNumber.length(); i < length; i++) {
+            char c = phoneNumber.charAt(i);
+            int symbol = (c >= '0' && c <= '9') ? c - '0' : OTHER;
+            state = mTransitions[state * SYMBOLS + symbol];
+            if (state < 0) {
+                return SmsUsageMonitor.CATEGORY_NOT_SHORT_CODE;
+            }
+        }
+        return mCategories[state];
+    }
+
+    int getStateCount() {
+        return mCategories.length;
+    }
+
+    /**
+     * Compiles the short code patterns of one country; any may be null.
+     * @return the automaton, or null if a pattern is not supported
+     */
+    static ShortCodeDfa compile(String shortCodeRegex, String premiumShortCodeRegex,
+            String freeShortCodeRegex, String standardShortCodeRegex) {
+        // in order of precedence, as in ShortCodePatternMatcher.getNumberCategory()
+        String[] regexes = {freeShortCodeRegex, standardShortCodeRegex, premiumShortCodeRegex,
+                shortCodeRegex};
+        int[] categories = {SmsUsageMonitor.CATEGORY_FREE_SHORT_CODE,
+                SmsUsageMonitor.CATEGORY_STANDARD_SHORT_CODE,
+                SmsUsageMonitor.CATEGORY_PREMIUM_SHORT_CODE,
+                SmsUsageMonitor.CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE};
+
+        Nfa nfa = new Nfa();
+        int start = nfa.newState();
+        for (int i = 0; i < regexes.length; i++) {
+            if (regexes[i] == null) {
+                continue;
+            }
+            Node node = new Parser(regexes[i]).parse();
+            if (node == null) {
+                return null;
+            }
+            int begin = nfa.newState();
+            nfa.addEpsilon(start, begin);
+            int end = nfa.build(node, begin);
+            if (end < 0) {
+                return null;
+            }
+            nfa.setAccept(end, i, categories[i]);
+        }
+        return nfa.toDfa(start);
+    }
+
+    /** Parsed regular expression. */
+    private static final class Node {
+        static final int SET = 0;
+        static final int CONCAT = 1;
+        static final int ALTERNATE = 2;
+        static final int REPEAT = 3;
+
+        final int mType;
+        final int mMask;
+        final ArrayList<Node> mChildren;
+        final int mMin;
+        final int mMax;     // -1 for unbounded
+
+        Node(int type, int mask, ArrayList<Node> children, int min, int max) {
+            mType = type;
+            mMask = mask;
+            mChildren = children;
+            mMin = min;
+            mMax = max;
+        }
+    }
+
+    /**
+     * Recursive descent parser for the supported subset; returns null on
+     * anything else.
+     */
+    private static final class Parser {
+        private final String mRegex;
+        private int mPos;
+
+        Parser(String regex) {
+            mRegex = regex;
+        }
+
+        Node parse() {
+            Node node = parseAlternation();
+            return (node != null && mPos == mRegex.length()) ? node : null;
+        }
+
+        private boolean peek(char c) {
+            return mPos < mRegex.length() && mRegex.charAt(mPos) == c;
+        }
+
+        private Node parseAlternation() {
+            ArrayList<Node> branches = new ArrayList<Node>();
+            while (true) {
+                Node branch = parseConcatenation();
+                if (branch == null) {
+                    return null;
+                }
+                branches.add(branch);
+                if (!peek('|')) {
+                    break;
+                }
+                mPos++;
+            }
+            return branches.size() == 1 ? branches.get(0)
+                    : new Node(Node.ALTERNATE, 0, branches, 0, 0);
+        }
+
+        private Node parseConcatenation() {
+            ArrayList<Node> items = new ArrayList<Node>();
+            while (mPos < mRegex.length() && !peek('|') && !peek(')')) {
+                Node atom = parseAtom();
+                if (atom == null) {
+                    return null;
+                }
+                atom = parseQuantifiers(atom);
+                if (atom == null) {
+                    return null;
+                }
+                items.add(atom);
+            }
+            return new Node(Node.CONCAT, 0, items, 0, 0);
+        }
+
+        private Node parseAtom() {
+            char c = mRegex.charAt(mPos++);
+            if (c >= '0' && c <= '9') {
+                return set(1 << (c - '0'));
+            }
+            switch (c) {
+                case '.':
+                    return set(ANY_MASK);
+                case '\\':
+                    return parseEscape();
+                case '[':
+                    return parseClass();
+                case '(':
+                    if (peek('?')) {
+                        // only non-capturing groups
+                        if (mPos + 1 >= mRegex.length() || mRegex.charAt(mPos + 1) != ':') {
+                            return null;
+                        }
+                        mPos += 2;
+                    }
+                    Node group = parseAlternation();
+                    if (group == null || !peek(')')) {
+                        return null;
+                    }
+                    mPos++;
+                    return group;
+                default:
+                    return null;
+            }
+        }
+
+        private Node parseEscape() {
+            if (mPos >= mRegex.length()) {
+                return null;
+            }
+            char c = mRegex.charAt(mPos++);
+            if (c == 'd') {
+                return set(DIGITS_MASK);
+            } else if (c == 'D') {
+                return set(1 << OTHER);
+            }
+            return null;
+        }
+
+        private Node parseClass() {
+            boolean negate = peek('^');
+            if (negate) {
+                mPos++;
+            }
+            int mask = 0;
+            boolean first = true;
+            while (mPos < mRegex.length() && (first || !peek(']'))) {
+                first = false;
+                char c = mRegex.charAt(mPos++);
+                if (c == '\\' && mPos < mRegex.length() && mRegex.charAt(mPos) == 'd') {
+                    mPos++;
+                    mask |= DIGITS_MASK;
+                    continue;
+                }
+                if (c < '0' || c > '9') {
+                    return null;
+                }
+                char last = c;
+                if (peek('-') && mPos + 1 < mRegex.length() && mRegex.charAt(mPos + 1) != ']') {
+                    last = mRegex.charAt(mPos + 1);
+                    if (last < c || last > '9') {
+                        return null;
+                    }
+                    mPos += 2;
+                }
+                for (char d = c; d <= last; d++) {
+                    mask |= 1 << (d - '0');
+                }
+            }
+            if (!peek(']')) {
+                return null;
+            }
+            mPos++;
+            return set(negate ? (ANY_MASK & ~mask) : mask);
+        }
+
+        private Node parseQuantifiers(Node atom) {
+            while (mPos < mRegex.length()) {
+                int min;
+                int max;
+                char c = mRegex.charAt(mPos);
+                if (c == '?') {
+                    min = 0;
+                    max = 1;
+                    mPos++;
+                } else if (c == '*') {
+                    min = 0;
+                    max = -1;
+                    mPos++;
+                } else if (c == '+') {
+                    min = 1;
+                    max = -1;
+                    mPos++;
+                } else if (c == '{') {
+                    int close = mRegex.indexOf('}', mPos);
+                    if (close < 0) {
+                        return null;
+                    }
+                    String bounds = mRegex.substring(mPos + 1, close);
+                    int comma = bounds.indexOf(',');
+                    try {
+                        if (comma < 0) {
+                            min = max = Integer.parseInt(bounds);
+                        } else {
+                            min = Integer.parseInt(bounds.substring(0, comma));
+                            String upper = bounds.substring(comma + 1);
+                            max = upper.isEmpty() ? -1 : Integer.parseInt(upper);
+                        }
+                    } catch (NumberFormatException e) {
+                        return null;
+                    }
+                    if (min < 0 || min > MAX_REPEAT || max > MAX_REPEAT
+                            || (max >= 0 && max < min)) {
+                        return null;
+                    }
+                    mPos = close + 1;
+                } else {
+                    break;
+                }
+                // a reluctant quantifier matches the same whole strings; possessive may not
+                if (peek('?')) {
+                    mPos++;
+                } else if (peek('+')) {
+                    return null;
+                }
+                ArrayList<Node> child = new ArrayList<Node>(1);
+                child.add(atom);
+                atom = new Node(Node.REPEAT, 0, child, min, max);
+            }
+            return atom;
+        }
+
+        private static Node set(int mask) {
+            return new Node(Node.SET, mask, null, 0, 0);
+        }
+    }
+
+    /** Thompson NFA over the digit alphabet. */
+    private static final class Nfa {
+        private final ArrayList<int[]> mEpsilons = new ArrayList<int[]>();
+        private final ArrayList<Integer> mMasks = new ArrayList<Integer>();
+        private final ArrayList<Integer> mTargets = new ArrayList<Integer>();
+        private final ArrayList<Integer> mAcceptRanks = new ArrayList<Integer>();
+        private final HashMap<Integer, Integer> mRankCategories = new HashMap<Integer, Integer>();
+
+        int newState() {
+            mEpsilons.add(new int[0]);
+            mMasks.add(0);
+            mTargets.add(-1);
+            mAcceptRanks.add(-1);
+            return mMasks.size() - 1;
+        }
+
+        void addEpsilon(int from, int to) {
+            int[] old = mEpsilons.get(from);
+            int[] edges = new int[old.length + 1];
+            System.arraycopy(old, 0, edges, 0, old.length);
+            edges[old.length] = to;
+            mEpsilons.set(from, edges);
+        }
+
+        void setAccept(int state, int rank, int category) {
+            mAcceptRanks.set(state, rank);
+            mRankCategories.put(rank, category);
+        }
+
+        /** Adds the states for <code>node</code> after <code>start</code>; returns its end. */
+        int build(Node node, int start) {
+            if (mMasks.size() > MAX_STATES * 4) {
+                return -1;
+            }
+            switch (node.mType) {
+                case Node.SET: {
+                    int end = newState();
+                    mMasks.set(start, node.mMask);
+                    mTargets.set(start, end);
+                    return end;
+                }
+                case Node.CONCAT: {
+                    int current = start;
+                    for (Node child : node.mChildren) {
+                        // a state holds only one symbol edge, so give each item its own entry
+                        int next = newState();
+                        addEpsilon(current, next);
+                        current = build(child, next);
+                        if (current < 0) {
+                            return -1;
+                        }
+                    }
+                    return current;
+                }
+                case Node.ALTERNATE: {
+                    int end = newState();
+                    for (Node child : node.mChildren) {
+                        int begin = newState();
+                        addEpsilon(start, begin);
+                        int branchEnd = build(child, begin);
+                        if (branchEnd < 0) {
+                            return -1;
+                        }
+                        addEpsilon(branchEnd, end);
+                    }
+                    return end;
+                }
+                case Node.REPEAT: {
+                    Node child = node.mChildren.get(0);
+                    int current = start;
+                    for (int i = 0; i < node.mMin; i++) {
+                        int next = newState();
+                        addEpsilon(current, next);
+                        current = build(child, next);
+                        if (current < 0) {
+                            return -1;
+                        }
+                    }
+                    int end = newState();
+                    addEpsilon(current, end);
+                    if (node.mMax < 0) {
+                        int loop = newState();
+                        addEpsilon(current, loop);
+                        int loopEnd = build(child, loop);
+                        if (loopEnd < 0) {
+                            return -1;
+                        }
+                        addEpsilon(loopEnd, loop);
+                        addEpsilon(loopEnd, end);
+                    } else {
+                        for (int i = node.mMin; i < node.mMax; i++) {
+                            int next = newState();
+                            addEpsilon(current, next);
+                            current = build(child, next);
+                            if (current < 0) {
+                                return -1;
+                            }
+                            addEpsilon(current, end);
+                        }
+                    }
+                    return end;
+                }
+                default:
+                    return -1;
+            }
+        }
+
+        private void closure(BitSet states) {
+            int[] stack = new int[mMasks.size()];
+            int top = 0;
+            for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                stack[top++] = s;
+            }
+            while (top > 0) {
+                for (int next : mEpsilons.get(stack[--top])) {
+                    if (!states.get(next)) {
+                        states.set(next);
+                        stack[top++] = next;
+                    }
+                }
+            }
+        }
+
+        /** Subset construction; returns null if the DFA would exceed MAX_STATES. */
+        ShortCodeDfa toDfa(int start) {
+            BitSet initial = new BitSet();
+            initial.set(start);
+            closure(initial);
+
+            HashMap<BitSet, Integer> ids = new HashMap<BitSet, Integer>();
+            ArrayList<BitSet> pending = new ArrayList<BitSet>();
+            ids.put(initial, 0);
+            pending.add(initial);
+
+            int[] transitions = new int[MAX_STATES * SYMBOLS];
+            for (int id = 0; id < pending.size(); id++) {
+                BitSet states = pending.get(id);
+                for (int symbol = 0; symbol < SYMBOLS; symbol++) {
+                    BitSet next = new BitSet();
+                    for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                        if ((mMasks.get(s) & (1 << symbol)) != 0) {
+                            next.set(mTargets.get(s));
+                        }
+                    }
+                    if (next.isEmpty()) {
+                        transitions[id * SYMBOLS + symbol] = -1;
+                        continue;
+                    }
+                    closure(next);
+                    Integer nextId = ids.get(next);
+                    if (nextId == null) {
+                        if (pending.size() == MAX_STATES) {
+                            return null;
+                        }
+                        nextId = pending.size();
+                        ids.put(next, nextId);
+                        pending.add(next);
+                    }
+                    transitions[id * SYMBOLS + symbol] = nextId;
+                }
+            }
+
+            int[] categories = new int[pending.size()];
+            for (int id = 0; id < categories.length; id++) {
+                int best = Integer.MAX_VALUE;
+                BitSet states = pending.get(id);
+                for (int s = states.nextSetBit(0); s >= 0; s = states.nextSetBit(s + 1)) {
+                    int rank = mAcceptRanks.get(s);
+                    if (rank >= 0 && rank < best) {
+                        best = rank;
+                    }
+                }
+                categories[id] = (best == Integer.MAX_VALUE)
+                        ? SmsUsageMonitor.CATEGORY_NOT_SHORT_CODE : mRankCategories.get(best);
+            }
+            int[] trimmed = new int[categories.length * SYMBOLS];
+            System.arraycopy(transitions, 0, trimmed, 0, trimmed.length);
+            return new ShortCodeDfa(trimmed, categories);
+        }
+    }
+}
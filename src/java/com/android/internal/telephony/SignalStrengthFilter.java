@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+
+/**
+ * Suppresses RIL_UNSOL_SIGNAL_STRENGTH reports that repeat the last value
+ * delivered upwards.
+ *
+ * The raw RIL_SignalStrength ints are read into a scratch array without
+ * allocating and compared field by field with the last published report.
+ * Only when something changed does RIL decode a SignalStrength object and
+ * notify ServiceStateTracker. Optionally, changes in the dBm fields smaller
+ * than a hysteresis are ignored as well. RIL only installs the filter when
+ * persist.radio.ss_filter is set.
+ *
+ * update() is only called from the RILReceiver thread; reset() may be called
+ * from any thread.
+ *
+ * {@hide}
+ */
+class SignalStrengthFilter {
+    // RIL_SignalStrength_v10 has 13 ints; allow for a few vendor extras
+    private static final int MAX_FIELDS = 16;
+
+    // Field indexes holding dBm values (as positive or negative numbers)
+    private static final int CDMA_DBM = 2;
+    private static final int EVDO_DBM = 4;
+    private static final int LTE_RSRP = 8;
+
+    private final int[] mScratch = new int[MAX_FIELDS];
+    private final int[] mLast = new int[MAX_FIELDS];
+    private volatile int mLastCount = -1;
+    private final int mHysteresisDb;
+
+    private int mSuppressed;
+
+    /**
+     * @param hysteresisDb dBm fields must move by at least this much to be
+     * reported, 0 to report any change
+     */
+    SignalStrengthFilter(int hysteresisDb) {
+        mHysteresisDb = hysteresisDb;
+    }
+
+    /**
+     * Compares the report at the current data position of <code>p</code>
+     * with the last published one and records it if it is to be published.
+     * The data position is left unchanged.
+     *
+     * @param force true to publish regardless, e.g. for solicited responses
+     * @return true if the report must be decoded and published
+     */
+    boolean update(Parcel p, boolean force) {
+        int position = p.dataPosition();
+        int count = Math.min(p.dataAvail() / 4, MAX_FIELDS);
+        for (int i = 0; i < count; i++) {
+            mScratch[i] = p.readInt();
+        }
+        p.setDataPosition(position);
+
+        if (!force && !isSignificantChange(count)) {
+            mSuppressed++;
+            return false;
+        }
+
+        System.arraycopy(mScratch, 0, mLast, 0, count);
+        mLastCount = count;
+        return true;
+    }
+
+    private boolean isSignificantChange(int count) {
+        if (count != mLastCount) {
+            return true;
+        }
+        for (int i = 0; i < count; i++) {
+            int delta = Math.abs(mScratch[i] - mLast[i]);
+            if (delta == 0) {
+                continue;
+            }
+            if (mHysteresisDb > 0 && (i == CDMA_DBM || i == EVDO_DBM || i == LTE_RSRP)
+                    && delta < mHysteresisDb
+                    && isValidDbm(mScratch[i]) && isValidDbm(mLast[i])) {
+                continue;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private static boolean isValidDbm(int value) {
+        // Unknown is reported as -1 or INT_MAX depending on the RIL
+        return value != -1 && value != Integer.MAX_VALUE;
+    }
+
+    /**
+     * Forgets the last published report, so the next one is always delivered.
+     */
+    void reset() {
+        mLastCount = -1;
+    }
+
+    int getSuppressedCount() {
+        return mSuppressed;
+    }
+}
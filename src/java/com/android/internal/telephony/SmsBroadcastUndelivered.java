@@ -27,15 +27,16 @@ import android.telephony.Rlog;
 import com.android.internal.telephony.cdma.CdmaInboundSmsHandler;
 import com.android.internal.telephony.gsm.GsmInboundSmsHandler;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
 
 /**
  * Called at boot time to clean out the raw table, collecting all acknowledged messages and
  * deleting any partial message segments older than 30 days. Called from a worker thread to
- * avoid delaying phone app startup. The last step is to broadcast the first pending message
- * from the main thread, then the remaining pending messages will be broadcast after the
- * previous ordered broadcast completes.
+ * avoid delaying phone app startup. The inbound SMS handlers are told to accept new messages
+ * first; the table is then read in pages and each complete message is handed to its handler
+ * as soon as it is found, to be broadcast after any previous ordered broadcast completes.
  */
 public class SmsBroadcastUndelivered implements Runnable {
     private static final String TAG = "SmsBroadcastUndelivered";
@@ -59,6 +60,15 @@ public class SmsBroadcastUndelivered implements Runnable {
             "_id"
     };
 
+    /** Query projection for the largest row id. */
+    private static final String[] ID_PROJECTION = {"_id"};
+
+    /** Rows read from the raw table per query. */
+    private static final int PAGE_SIZE = 100;
+
+    /** Old incomplete messages deleted per query; each takes four selection arguments. */
+    private static final int DELETE_BATCH_SIZE = 50;
+
     /** URI for raw table from SmsProvider. */
     private static final Uri sRawUri = Uri.withAppendedPath(Telephony.Sms.CONTENT_URI, "raw");
 
@@ -80,103 +90,236 @@ public class SmsBroadcastUndelivered implements Runnable {
 
     @Override
     public void run() {
-        if (DBG) Rlog.d(TAG, "scanning raw table for undelivered messages");
-        scanRawTable();
-        // tell handlers to start processing new messages
+        // Let the handlers take new messages right away. Rows they insert from now on are
+        // past the snapshot taken by scanRawTable(), so nothing is broadcast twice.
         if (mGsmInboundSmsHandler != null) {
             mGsmInboundSmsHandler.sendMessage(InboundSmsHandler.EVENT_START_ACCEPTING_SMS);
         }
         if (mCdmaInboundSmsHandler != null) {
             mCdmaInboundSmsHandler.sendMessage(InboundSmsHandler.EVENT_START_ACCEPTING_SMS);
         }
+
+        if (DBG) Rlog.d(TAG, "scanning raw table for undelivered messages");
+        if (scanRawTable()) {
+            // every remaining segment is now indexed; otherwise the handlers keep
+            // querying the raw table for multi-part messages
+            if (mGsmInboundSmsHandler != null) {
+                mGsmInboundSmsHandler.getReassemblyIndex().setSeeded();
+            }
+            if (mCdmaInboundSmsHandler != null) {
+                mCdmaInboundSmsHandler.getReassemblyIndex().setSeeded();
+            }
+        } else {
+            if (mGsmInboundSmsHandler != null) {
+                mGsmInboundSmsHandler.getReassemblyIndex().setSeedingFailed();
+            }
+            if (mCdmaInboundSmsHandler != null) {
+                mCdmaInboundSmsHandler.getReassemblyIndex().setSeedingFailed();
+            }
+        }
+    }
+
+    /**
+     * Returns the largest row id in the raw table, 0 if it is empty, or -1 on error.
+     */
+    private long getMaxRowId() {
+        Cursor cursor = mResolver.query(sRawUri, ID_PROJECTION, null, null, "_id DESC LIMIT 1");
+        if (cursor == null) {
+            return -1;
+        }
+        try {
+            return cursor.moveToFirst() ? cursor.getLong(0) : 0;
+        } finally {
+            cursor.close();
+        }
     }
 
     /**
      * Scan the raw table for complete SMS messages to broadcast, and old PDUs to delete.
+     * Rows are read in pages of {@link #PAGE_SIZE} up to the largest id present when the scan
+     * starts, so that rows inserted by the handlers meanwhile are left to them. Segments of
+     * multi-part messages are replayed into the handlers' reassembly indexes.
+     * @return true if the whole table was read
      */
-    private void scanRawTable() {
+    private boolean scanRawTable() {
         long startTime = System.nanoTime();
         HashMap<SmsReferenceKey, Integer> multiPartReceivedCount =
                 new HashMap<SmsReferenceKey, Integer>(4);
         HashSet<SmsReferenceKey> oldMultiPartMessages = new HashSet<SmsReferenceKey>(4);
-        Cursor cursor = null;
+        int rowCount = 0;
         try {
-            cursor = mResolver.query(sRawUri, PDU_PENDING_MESSAGE_PROJECTION, null, null, null);
-            if (cursor == null) {
+            long maxRowId = getMaxRowId();
+            if (maxRowId < 0) {
                 Rlog.e(TAG, "error getting pending message cursor");
-                return;
+                return false;
             }
 
             boolean isCurrentFormat3gpp2 = InboundSmsHandler.isCurrentFormat3gpp2();
-            while (cursor.moveToNext()) {
-                InboundSmsTracker tracker;
-                try {
-                    tracker = new InboundSmsTracker(cursor, isCurrentFormat3gpp2);
-                } catch (IllegalArgumentException e) {
-                    Rlog.e(TAG, "error loading SmsTracker: " + e);
-                    continue;
+            long expireTime = System.currentTimeMillis() - PARTIAL_SEGMENT_EXPIRE_AGE;
+            long lastRowId = 0;
+            while (lastRowId < maxRowId) {
+                Cursor cursor = mResolver.query(sRawUri, PDU_PENDING_MESSAGE_PROJECTION,
+                        "_id>? AND _id<=?",
+                        new String[] {Long.toString(lastRowId), Long.toString(maxRowId)},
+                        "_id ASC LIMIT " + PAGE_SIZE);
+                if (cursor == null) {
+                    Rlog.e(TAG, "error getting pending message cursor");
+                    return false;
                 }
 
-                if (tracker.getMessageCount() == 1) {
-                    // deliver single-part message
-                    broadcastSms(tracker);
-                } else {
-                    SmsReferenceKey reference = new SmsReferenceKey(tracker);
-                    Integer receivedCount = multiPartReceivedCount.get(reference);
-                    if (receivedCount == null) {
-                        multiPartReceivedCount.put(reference, 1);    // first segment seen
-                        if (tracker.getTimestamp() <
-                                (System.currentTimeMillis() - PARTIAL_SEGMENT_EXPIRE_AGE)) {
-                            // older than 30 days; delete if we don't find all the segments
-                            oldMultiPartMessages.add(reference);
-                        }
-                    } else {
-                        int newCount = receivedCount + 1;
-                        if (newCount == tracker.getMessageCount()) {
-                            // looks like we've got all the pieces; send a single tracker
-                            // to state machine which will find the other pieces to broadcast
-                            if (DBG) Rlog.d(TAG, "found complete multi-part message");
-                            broadcastSms(tracker);
-                            // don't delete this old message until after we broadcast it
-                            oldMultiPartMessages.remove(reference);
-                        } else {
-                            multiPartReceivedCount.put(reference, newCount);
-                        }
+                try {
+                    if (!cursor.moveToFirst()) {
+                        break;
                     }
+                    do {
+                        rowCount++;
+                        lastRowId = cursor.getLong(InboundSmsHandler.ID_COLUMN);
+                        scanRow(cursor, isCurrentFormat3gpp2, expireTime,
+                                multiPartReceivedCount, oldMultiPartMessages);
+                    } while (cursor.moveToNext());
+                } finally {
+                    cursor.close();
                 }
             }
+
             // Delete old incomplete message segments
-            for (SmsReferenceKey message : oldMultiPartMessages) {
-                int rows = mResolver.delete(sRawUri, InboundSmsHandler.SELECT_BY_REFERENCE,
-                        message.getDeleteWhereArgs());
-                if (rows == 0) {
-                    Rlog.e(TAG, "No rows were deleted from raw table!");
-                } else if (DBG) {
-                    Rlog.d(TAG, "Deleted " + rows + " rows from raw table for incomplete "
-                            + message.mMessageCount + " part message");
-                }
-            }
+            deleteOldMessages(oldMultiPartMessages, maxRowId);
+            return true;
         } catch (SQLException e) {
             Rlog.e(TAG, "error reading pending SMS messages", e);
+            return false;
         } finally {
-            if (cursor != null) {
-                cursor.close();
-            }
-            if (DBG) Rlog.d(TAG, "finished scanning raw table in "
+            if (DBG) Rlog.d(TAG, "finished scanning " + rowCount + " rows of raw table in "
                     + ((System.nanoTime() - startTime) / 1000000) + " ms");
         }
     }
 
     /**
-     * Send tracker to appropriate (3GPP or 3GPP2) inbound SMS handler for broadcast.
+     * Process one row of the raw table, broadcasting single-part messages and multi-part
+     * messages as soon as their last segment is seen.
      */
-    private void broadcastSms(InboundSmsTracker tracker) {
-        InboundSmsHandler handler;
+    private void scanRow(Cursor cursor, boolean isCurrentFormat3gpp2, long expireTime,
+            HashMap<SmsReferenceKey, Integer> multiPartReceivedCount,
+            HashSet<SmsReferenceKey> oldMultiPartMessages) {
+        InboundSmsTracker tracker;
+        try {
+            tracker = new InboundSmsTracker(cursor, isCurrentFormat3gpp2);
+        } catch (IllegalArgumentException e) {
+            Rlog.e(TAG, "error loading SmsTracker: " + e);
+            return;
+        }
+
+        if (tracker.getMessageCount() == 1) {
+            // deliver single-part message
+            broadcastSms(tracker);
+            return;
+        }
+
+        InboundSmsHandler handler = getHandler(tracker);
+        if (handler != null) {
+            handler.getReassemblyIndex().addRecovered(tracker);
+        }
+
+        SmsReferenceKey reference = new SmsReferenceKey(tracker);
+        Integer receivedCount = multiPartReceivedCount.get(reference);
+        if (receivedCount == null) {
+            multiPartReceivedCount.put(reference, 1);    // first segment seen
+            if (tracker.getTimestamp() < expireTime) {
+                // older than 30 days; delete if we don't find all the segments
+                oldMultiPartMessages.add(reference);
+            }
+        } else {
+            int newCount = receivedCount + 1;
+            if (newCount == tracker.getMessageCount()) {
+                // looks like we've got all the pieces; send a single tracker
+                // to state machine which will find the other pieces to broadcast
+                if (DBG) Rlog.d(TAG, "found complete multi-part message");
+                broadcastSms(tracker);
+                // don't delete this old message until after we broadcast it, and stop
+                // tracking it since no more segments are expected
+                oldMultiPartMessages.remove(reference);
+                multiPartReceivedCount.remove(reference);
+            } else {
+                multiPartReceivedCount.put(reference, newCount);
+            }
+        }
+    }
+
+    /**
+     * Delete the segments of old incomplete messages, up to {@link #DELETE_BATCH_SIZE}
+     * messages per provider call. Only rows up to <code>maxRowId</code> are deleted, since a
+     * new message received during the scan may reuse the reference of an expired one.
+     */
+    private void deleteOldMessages(HashSet<SmsReferenceKey> oldMultiPartMessages,
+            long maxRowId) {
+        String maxRowIdArg = Long.toString(maxRowId);
+        StringBuilder where = new StringBuilder();
+        ArrayList<String> whereArgs = new ArrayList<String>();
+        int messages = 0;
+        for (SmsReferenceKey message : oldMultiPartMessages) {
+            removeFromIndexes(message);
+            if (messages > 0) {
+                where.append(" OR ");
+            }
+            where.append('(').append(InboundSmsHandler.SELECT_BY_REFERENCE)
+                    .append(" AND _id<=?)");
+            for (String arg : message.getDeleteWhereArgs()) {
+                whereArgs.add(arg);
+            }
+            whereArgs.add(maxRowIdArg);
+            if (++messages == DELETE_BATCH_SIZE) {
+                deleteRows(where.toString(), whereArgs, messages);
+                where.setLength(0);
+                whereArgs.clear();
+                messages = 0;
+            }
+        }
+        if (messages > 0) {
+            deleteRows(where.toString(), whereArgs, messages);
+        }
+    }
+
+    private void deleteRows(String where, ArrayList<String> whereArgs, int messages) {
+        int rows = mResolver.delete(sRawUri, where,
+                whereArgs.toArray(new String[whereArgs.size()]));
+        if (rows == 0) {
+            Rlog.e(TAG, "No rows were deleted from raw table!");
+        } else if (DBG) {
+            Rlog.d(TAG, "Deleted " + rows + " rows from raw table for " + messages
+                    + " incomplete multi-part messages");
+        }
+    }
+
+    /**
+     * Returns the (3GPP or 3GPP2) inbound SMS handler for the tracker's format, or null.
+     */
+    private InboundSmsHandler getHandler(InboundSmsTracker tracker) {
         if (tracker.is3gpp2()) {
-            handler = mCdmaInboundSmsHandler;
+            return mCdmaInboundSmsHandler;
         } else {
-            handler = mGsmInboundSmsHandler;
+            return mGsmInboundSmsHandler;
+        }
+    }
+
+    /**
+     * Forget the segments of a deleted message; the delete is not filtered by format.
+     */
+    private void removeFromIndexes(SmsReferenceKey message) {
+        if (mGsmInboundSmsHandler != null) {
+            mGsmInboundSmsHandler.getReassemblyIndex().removeRecovered(message.mAddress,
+                    message.mReferenceNumber, message.mMessageCount);
         }
+        if (mCdmaInboundSmsHandler != null) {
+            mCdmaInboundSmsHandler.getReassemblyIndex().removeRecovered(message.mAddress,
+                    message.mReferenceNumber, message.mMessageCount);
+        }
+    }
+
+    /**
+     * Send tracker to appropriate (3GPP or 3GPP2) inbound SMS handler for broadcast.
+     */
+    private void broadcastSms(InboundSmsTracker tracker) {
+        InboundSmsHandler handler = getHandler(tracker);
         if (handler != null) {
             handler.sendMessage(InboundSmsHandler.EVENT_BROADCAST_SMS, tracker);
         } else {
@@ -0,0 +1,336 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.internal.telephony;
+
+import android.content.res.Resources;
+import android.util.SparseIntArray;
+
+import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
+import com.android.internal.telephony.cdma.sms.UserData;
+
+/**
+ * Incremental version of {@link com.android.internal.telephony.gsm.SmsMessage#calculateLength}
+ * and {@link com.android.internal.telephony.cdma.SmsMessage#calculateLength} for text that is
+ * being edited, such as a compose box.
+ *
+ * Those methods walk the whole message through {@link GsmAlphabet} once per enabled national
+ * language table on every call. This class keeps the septet count of the text for every
+ * (locking shift table, single shift table) pair and updates the counts by the characters
+ * added or removed by each edit, using per-character table membership that is looked up once
+ * and cached. {@link #getTextEncodingDetails} then only compares the pairs, except for UCS-2
+ * text longer than one message, where segment boundaries depend on surrogate pairs and are
+ * found by {@link SmsMessageBase#calcUnicodeEncodingDetails}.
+ *
+ * Not thread safe.
+ *
+ * {@hide}
+ */
+public class SmsLengthCalculator {
+    /** Characters below this have their table membership cached in an array. */
+    private static final int DENSE_CACHE_SIZE = 0x1000;
+
+    private static final int SHIFT_MASK_OFFSET = 15;
+    private static final int ASCII_UNENCODABLE = 1 << 30;
+    private static final int CACHED = 1 << 31;
+
+    private final boolean mUse7bitOnly;
+    private final boolean mIs3gpp2;
+    private final boolean mTranslate;
+
+    /** Locking shift tables, starting with the default alphabet (0). */
+    private final int[] mLockingTables;
+
+    /** Single shift tables, starting with the default extension table (0). */
+    private final int[] mShiftTables;
+
+    /** Septets per table pair, indexed by locking * mShiftTables.length + shift. */
+    private final int[] mSeptets;
+
+    /** Characters not in either table of the pair. */
+    private final int[] mUnencodable;
+
+    /** Characters without a 7-bit ASCII code, for 3GPP2. */
+    private int mAsciiUnencodable;
+
+    private final StringBuilder mText = new StringBuilder();
+
+    private final int[] mDenseMasks = new int[DENSE_CACHE_SIZE];
+    private final SparseIntArray mSparseMasks = new SparseIntArray();
+
+    /**
+     * Create a calculator using the national language tables enabled in the device
+     * configuration, as {@link GsmAlphabet#countGsmSeptets} does.
+     * @param use7bitOnly count characters that can't be encoded as a single septet
+     * @param is3gpp2 true for 3GPP2 (CDMA) messages, false for 3GPP
+     */
+    public SmsLengthCalculator(boolean use7bitOnly, boolean is3gpp2) {
+        this(use7bitOnly, is3gpp2,
+                Resources.getSystem().getIntArray(
+                        com.android.internal.R.array.config_sms_enabled_locking_shift_tables),
+                Resources.getSystem().getIntArray(
+                        com.android.internal.R.array.config_sms_enabled_single_shift_tables),
+                Resources.getSystem().getBoolean(
+                        com.android.internal.R.bool.config_sms_force_7bit_encoding));
+    }
+
+    /**
+     * Create a calculator for the given national language tables.
+     * @param use7bitOnly count characters that can't be encoded as a single septet
+     * @param is3gpp2 true for 3GPP2 (CDMA) messages, false for 3GPP
+     * @param lockingTables enabled national language locking shift tables, ascending
+     * @param shiftTables enabled national language single shift tables, ascending
+     * @param translate translate text with {@link Sms7BitEncodingTranslator} first
+     */
+    public SmsLengthCalculator(boolean use7bitOnly, boolean is3gpp2, int[] lockingTables,
+            int[] shiftTables, boolean translate) {
+        mUse7bitOnly = use7bitOnly;
+        mIs3gpp2 = is3gpp2;
+        mTranslate = translate;
+        mLockingTables = withDefaultTable(lockingTables);
+        // GsmAlphabet only considers single shift tables up to the highest enabled one
+        mShiftTables = withDefaultTable(shiftTables);
+        if (mLockingTables.length > SHIFT_MASK_OFFSET
+                || mShiftTables.length > SHIFT_MASK_OFFSET) {
+            throw new IllegalArgumentException("too many language tables");
+        }
+        mSeptets = new int[mLockingTables.length * mShiftTables.length];
+        mUnencodable = new int[mSeptets.length];
+    }
+
+    private static int[] withDefaultTable(int[] tables) {
+        int count = 1;
+        for (int table : tables) {
+            if (table != 0) {
+                count++;
+            }
+        }
+        int[] result = new int[count];
+        int i = 1;
+        for (int table : tables) {
+            if (table != 0) {
+                result[i++] = table;
+            }
+        }
+        return result;
+    }
+
+    /** Returns the (translated) text being measured. */
+    public CharSequence getText() {
+        return mText;
+    }
+
+    public int length() {
+        return mText.length();
+    }
+
+    public void setText(CharSequence text) {
+        replace(0, mText.length(), text);
+    }
+
+    public void append(CharSequence text) {
+        replace(mText.length(), mText.length(), text);
+    }
+
+    /**
+     * Replace the characters from <code>start</code> to <code>end</code> with
+     * <code>text</code>, updating the counts in proportion to the size of the edit.
+     */
+    public void replace(int start, int end, CharSequence text) {
+        if (start < 0 || end < start || end > mText.length()) {
+            throw new IndexOutOfBoundsException("replace " + start + ".." + end
+                    + " in length " + mText.length());
+        }
+        for (int i = start; i < end; i++) {
+            count(mText.charAt(i), -1);
+        }
+        if (mTranslate && text.length() > 0) {
+            String translated = Sms7BitEncodingTranslator.translate(text);
+            if (translated != null && translated.length() == text.length()) {
+                text = translated;
+            }
+        }
+        for (int i = 0, length = text.length(); i < length; i++) {
+            count(text.charAt(i), 1);
+        }
+        mText.replace(start, end, text.toString());
+    }
+
+    private void count(char c, int delta) {
+        int masks = getMasks(c);
+        if ((masks & ASCII_UNENCODABLE) != 0) {
+            mAsciiUnencodable += delta;
+        }
+        if (c == GsmAlphabet.GSM_EXTENDED_ESCAPE) {
+            // ignored by GsmAlphabet.countGsmSeptets()
+            return;
+        }
+        int shifts = mShiftTables.length;
+        for (int locking = 0; locking < mLockingTables.length; locking++) {
+            int base = locking * shifts;
+            if ((masks & (1 << locking)) != 0) {
+                for (int shift = 0; shift < shifts; shift++) {
+                    mSeptets[base + shift] += delta;
+                }
+                continue;
+            }
+            for (int shift = 0; shift < shifts; shift++) {
+                if ((masks & (1 << (SHIFT_MASK_OFFSET + shift))) != 0) {
+                    // Escape + index into the shift table
+                    mSeptets[base + shift] += 2 * delta;
+                } else {
+                    // counted as a space in 7-bit only mode, otherwise rules out the pair
+                    mSeptets[base + shift] += delta;
+                    mUnencodable[base + shift] += delta;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the locking table bits, shift table bits and ASCII flag of <code>c</code>.
+     */
+    private int getMasks(char c) {
+        int masks = (c < DENSE_CACHE_SIZE) ? mDenseMasks[c] : mSparseMasks.get(c);
+        if (masks == 0) {
+            masks = computeMasks(c);
+            if (c < DENSE_CACHE_SIZE) {
+                mDenseMasks[c] = masks;
+            } else {
+                mSparseMasks.put(c, masks);
+            }
+        }
+        return masks;
+    }
+
+    private int computeMasks(char c) {
+        String s = String.valueOf(c);
+        int masks = CACHED;
+        if (UserData.charToAscii.get(c, -1) == -1) {
+            masks |= ASCII_UNENCODABLE;
+        }
+        int notInLocking = -1;
+        for (int locking = 0; locking < mLockingTables.length; locking++) {
+            if (GsmAlphabet.countGsmSeptetsUsingTables(s, false, mLockingTables[locking], 0)
+                    == 1) {
+                masks |= 1 << locking;
+            } else if (notInLocking < 0) {
+                notInLocking = mLockingTables[locking];
+            }
+        }
+        if (notInLocking >= 0) {
+            // shift tables only matter for locking tables without the character
+            for (int shift = 0; shift < mShiftTables.length; shift++) {
+                if (GsmAlphabet.countGsmSeptetsUsingTables(s, false, notInLocking,
+                        mShiftTables[shift]) == 2) {
+                    masks |= 1 << (SHIFT_MASK_OFFSET + shift);
+                }
+            }
+        }
+        return masks;
+    }
+
+    /**
+     * Returns the encoding details of the current text, equal to those returned by
+     * {@link android.telephony.SmsMessage#calculateLength} for the format.
+     */
+    public TextEncodingDetails getTextEncodingDetails() {
+        if (mIs3gpp2) {
+            int length = mText.length();
+            if ((mUse7bitOnly || mAsciiUnencodable == 0)
+                    && length <= SmsConstants.MAX_USER_DATA_SEPTETS) {
+                TextEncodingDetails ted = new TextEncodingDetails();
+                ted.msgCount = 1;
+                ted.codeUnitCount = length;
+                ted.codeUnitsRemaining = SmsConstants.MAX_USER_DATA_SEPTETS - length;
+                ted.codeUnitSize = SmsConstants.ENCODING_7BIT;
+                return ted;
+            }
+            TextEncodingDetails ted = getGsmEncodingDetails();
+            if (ted == null || (ted.msgCount == 1
+                    && ted.codeUnitSize == SmsConstants.ENCODING_7BIT)) {
+                // single-segment EMS is not supported
+                return SmsMessageBase.calcUnicodeEncodingDetails(mText);
+            }
+            return ted;
+        }
+        TextEncodingDetails ted = getGsmEncodingDetails();
+        return (ted != null) ? ted : SmsMessageBase.calcUnicodeEncodingDetails(mText);
+    }
+
+    /**
+     * Pick the least cost table pair as {@link GsmAlphabet#countGsmSeptets} does.
+     * @return the details, or null if no pair can encode the text
+     */
+    private TextEncodingDetails getGsmEncodingDetails() {
+        TextEncodingDetails ted = new TextEncodingDetails();
+        ted.msgCount = Integer.MAX_VALUE;
+        ted.codeUnitSize = SmsConstants.ENCODING_7BIT;
+        int minUnencodableCount = Integer.MAX_VALUE;
+        int shifts = mShiftTables.length;
+        for (int locking = 0; locking < mLockingTables.length; locking++) {
+            for (int shift = 0; shift < shifts; shift++) {
+                int unencodableCount = mUnencodable[locking * shifts + shift];
+                if (!mUse7bitOnly && unencodableCount != 0) {
+                    continue;
+                }
+                int septets = mSeptets[locking * shifts + shift];
+                int languageTable = mLockingTables[locking];
+                int languageShiftTable = mShiftTables[shift];
+                int udhLength;
+                if (languageTable != 0 && languageShiftTable != 0) {
+                    udhLength = GsmAlphabet.UDH_SEPTET_COST_LENGTH
+                            + GsmAlphabet.UDH_SEPTET_COST_TWO_SHIFT_TABLES;
+                } else if (languageTable != 0 || languageShiftTable != 0) {
+                    udhLength = GsmAlphabet.UDH_SEPTET_COST_LENGTH
+                            + GsmAlphabet.UDH_SEPTET_COST_ONE_SHIFT_TABLE;
+                } else {
+                    udhLength = 0;
+                }
+                int msgCount;
+                int septetsRemaining;
+                if (septets + udhLength > SmsConstants.MAX_USER_DATA_SEPTETS) {
+                    if (udhLength == 0) {
+                        udhLength = GsmAlphabet.UDH_SEPTET_COST_LENGTH;
+                    }
+                    udhLength += GsmAlphabet.UDH_SEPTET_COST_CONCATENATED_MESSAGE;
+                    int septetsPerMessage = SmsConstants.MAX_USER_DATA_SEPTETS - udhLength;
+                    msgCount = (septets + septetsPerMessage - 1) / septetsPerMessage;
+                    septetsRemaining = (msgCount * septetsPerMessage) - septets;
+                } else {
+                    msgCount = 1;
+                    septetsRemaining = SmsConstants.MAX_USER_DATA_SEPTETS - udhLength - septets;
+                }
+                // for 7-bit only mode, use the pair with the least unencodable chars
+                if (mUse7bitOnly && unencodableCount > minUnencodableCount) {
+                    continue;
+                }
+                if ((mUse7bitOnly && unencodableCount < minUnencodableCount)
+                        || msgCount < ted.msgCount || (msgCount == ted.msgCount
+                        && septetsRemaining > ted.codeUnitsRemaining)) {
+                    minUnencodableCount = unencodableCount;
+                    ted.msgCount = msgCount;
+                    ted.codeUnitCount = septets;
+                    ted.codeUnitsRemaining = septetsRemaining;
+                    ted.languageTable = languageTable;
+                    ted.languageShiftTable = languageShiftTable;
+                }
+            }
+        }
+        return (ted.msgCount == Integer.MAX_VALUE) ? null : ted;
+    }
+}
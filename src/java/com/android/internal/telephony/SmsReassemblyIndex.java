@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * In-memory index of the segments of incomplete multi-part SMS, keyed like
+ * the raw table by (address, reference number, count).
+ *
+ * InboundSmsHandler still writes every segment to the raw table before
+ * acknowledging it, but uses this index instead of querying the table to
+ * detect duplicates and to tell when a message is complete, which makes
+ * each arrival O(1) instead of a provider round trip that decodes every
+ * stored PDU. At boot {@link SmsBroadcastUndelivered} replays the raw table
+ * into the index and then marks it seeded; until then the index is not
+ * authoritative and the handler falls back to querying the raw table.
+ *
+ * A message evicted to bound memory use keeps its segments in the raw table
+ * only, so the index remembers its key and the handler queries the table
+ * for that message alone until its rows are deleted. If more keys are
+ * evicted than can be remembered, the index stops being authoritative for
+ * every message until the next boot seeds it again.
+ *
+ * The handler accepts new messages while the raw table is still being
+ * replayed, so both add segments concurrently. Messages removed before the
+ * index is seeded are remembered so that a late replay of rows the handler
+ * has already deleted does not resurrect them. If the replay fails the
+ * index is never seeded and that bookkeeping is dropped.
+ *
+ * {@hide}
+ */
+class SmsReassemblyIndex {
+    /** Incomplete messages kept before the oldest is evicted. */
+    static final int MAX_MESSAGES = 256;
+
+    /** Keys of evicted messages remembered before the index gives up. */
+    static final int MAX_EVICTED_KEYS = 4 * MAX_MESSAGES;
+
+    static final class Entry {
+        private final byte[][] mPdus;
+        private int mReceived;
+        private int mDestPort = -1;
+        private boolean mDispatched;
+        /** Whether the handler added a segment, as opposed to the boot replay. */
+        private boolean mHasNewSegments;
+
+        Entry(int count) {
+            mPdus = new byte[count][];
+        }
+
+        /** PDUs ordered by sequence number. */
+        byte[][] getPdus() {
+            return mPdus;
+        }
+
+        /** Destination port of the first segment, or -1. */
+        int getDestPort() {
+            return mDestPort;
+        }
+    }
+
+    private static final class Key {
+        final String mAddress;
+        final int mReferenceNumber;
+        final int mMessageCount;
+
+        Key(String address, int referenceNumber, int messageCount) {
+            mAddress = address;
+            mReferenceNumber = referenceNumber;
+            mMessageCount = messageCount;
+        }
+
+        @Override
+        public int hashCode() {
+            return ((mReferenceNumber * 31) + mMessageCount) * 31
+                    + (mAddress != null ? mAddress.hashCode() : 0);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o instanceof Key) {
+                Key other = (Key) o;
+                return (other.mReferenceNumber == mReferenceNumber)
+                        && (other.mMessageCount == mMessageCount)
+                        && (mAddress == null ? other.mAddress == null
+                                : mAddress.equals(other.mAddress));
+            }
+            return false;
+        }
+    }
+
+    private final LinkedHashMap<Key, Entry> mEntries = new LinkedHashMap<Key, Entry>();
+    private final int mMaxMessages;
+    private final int mMaxEvictedKeys;
+    private final HashSet<Key> mRemovedWhileSeeding = new HashSet<Key>();
+    /** Messages whose segments are only in the raw table. */
+    private final HashSet<Key> mEvictedKeys = new HashSet<Key>();
+    private boolean mSeeded;
+    private boolean mSeedingFailed;
+    private boolean mEvictedKeysOverflowed;
+
+    SmsReassemblyIndex() {
+        this(MAX_MESSAGES, MAX_EVICTED_KEYS);
+    }
+
+    SmsReassemblyIndex(int maxMessages, int maxEvictedKeys) {
+        mMaxMessages = maxMessages;
+        mMaxEvictedKeys = maxEvictedKeys;
+    }
+
+    private static Key keyOf(InboundSmsTracker tracker) {
+        return new Key(tracker.getAddress(), tracker.getReferenceNumber(),
+                tracker.getMessageCount());
+    }
+
+    private static int indexOf(InboundSmsTracker tracker) {
+        return tracker.getSequenceNumber() - tracker.getIndexOffset();
+    }
+
+    /**
+     * Marks the index as holding every segment in the raw table.
+     */
+    synchronized void setSeeded() {
+        mSeeded = true;
+        mRemovedWhileSeeding.clear();
+    }
+
+    /**
+     * Records that the raw table could not be replayed, so the index stays
+     * non-authoritative until the next boot.
+     */
+    synchronized void setSeedingFailed() {
+        mSeedingFailed = true;
+        mRemovedWhileSeeding.clear();
+    }
+
+    /**
+     * @return true if a segment of the message <code>tracker</code> belongs to
+     * that is missing from the index is also missing from the raw table
+     */
+    synchronized boolean isAuthoritative(InboundSmsTracker tracker) {
+        return mSeeded && !mEvictedKeysOverflowed && !mEvictedKeys.contains(keyOf(tracker));
+    }
+
+    /**
+     * @return true if a segment with the same sequence number is already held
+     */
+    synchronized boolean isDuplicate(InboundSmsTracker tracker) {
+        Entry entry = mEntries.get(keyOf(tracker));
+        int index = indexOf(tracker);
+        return entry != null && index >= 0 && index < entry.mPdus.length
+                && entry.mPdus[index] != null;
+    }
+
+    /**
+     * Adds a segment that has been written to the raw table.
+     */
+    synchronized void add(InboundSmsTracker tracker) {
+        addSegment(tracker, true);
+    }
+
+    private void addSegment(InboundSmsTracker tracker, boolean isNew) {
+        int index = indexOf(tracker);
+        if (index < 0 || index >= tracker.getMessageCount()) {
+            return;
+        }
+
+        Key key = keyOf(tracker);
+        if (mEvictedKeys.contains(key)) {
+            // Completion is found by querying the raw table
+            return;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            if (mEntries.size() >= mMaxMessages) {
+                evictOldest();
+            }
+            entry = new Entry(tracker.getMessageCount());
+            mEntries.put(key, entry);
+        }
+        if (entry.mPdus[index] == null) {
+            entry.mPdus[index] = tracker.getPdu();
+            entry.mReceived++;
+        }
+        if (index == 0) {
+            entry.mDestPort = tracker.getDestPort();
+        }
+        entry.mHasNewSegments |= isNew;
+    }
+
+    /**
+     * Adds a segment read back from the raw table at boot, unless the handler
+     * has deleted its message since the row was read.
+     */
+    synchronized void addRecovered(InboundSmsTracker tracker) {
+        if (!mRemovedWhileSeeding.contains(keyOf(tracker))) {
+            addSegment(tracker, false);
+        }
+    }
+
+    private void evictOldest() {
+        Iterator<Map.Entry<Key, Entry>> it = mEntries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, Entry> mapEntry = it.next();
+            // A dispatched message is removed soon anyway
+            if (!mapEntry.getValue().mDispatched) {
+                it.remove();
+                addEvictedKey(mapEntry.getKey());
+                return;
+            }
+        }
+    }
+
+    private void addEvictedKey(Key key) {
+        if (mEvictedKeys.size() < mMaxEvictedKeys) {
+            mEvictedKeys.add(key);
+        } else {
+            mEvictedKeysOverflowed = true;
+        }
+    }
+
+    /**
+     * Returns the message <code>tracker</code> belongs to if all of its
+     * segments have arrived and it has not been returned before, or null.
+     * The entry stays in the index, for duplicate detection, until
+     * {@link #remove} is called when its raw table rows are deleted.
+     */
+    synchronized Entry claimComplete(InboundSmsTracker tracker) {
+        Entry entry = mEntries.get(keyOf(tracker));
+        if (entry == null || entry.mDispatched || entry.mReceived < entry.mPdus.length) {
+            return null;
+        }
+        entry.mDispatched = true;
+        return entry;
+    }
+
+    /**
+     * Drops a message whose segments were deleted from the raw table.
+     */
+    synchronized void remove(String address, int referenceNumber, int messageCount) {
+        Key key = new Key(address, referenceNumber, messageCount);
+        mEntries.remove(key);
+        mEvictedKeys.remove(key);
+        if (!mSeeded && !mSeedingFailed) {
+            mRemovedWhileSeeding.add(key);
+        }
+    }
+
+    /**
+     * Drops a message whose replayed rows were deleted from the raw table.
+     * Segments the handler has added since reuse the reference but are still
+     * in the table, so they are looked up there until {@link #remove} is
+     * called.
+     */
+    synchronized void removeRecovered(String address, int referenceNumber, int messageCount) {
+        Key key = new Key(address, referenceNumber, messageCount);
+        Entry entry = mEntries.remove(key);
+        if (entry != null && entry.mHasNewSegments) {
+            addEvictedKey(key);
+        } else if (!mSeeded && !mSeedingFailed) {
+            mRemovedWhileSeeding.add(key);
+        }
+    }
+
+    /**
+     * Records that the message <code>tracker</code> belongs to was broadcast
+     * from the raw table, so that {@link #claimComplete} does not return it
+     * again before its rows are deleted.
+     */
+    synchronized void markDispatched(InboundSmsTracker tracker) {
+        Key key = keyOf(tracker);
+        if (mEvictedKeys.contains(key)) {
+            return;
+        }
+        Entry entry = mEntries.get(key);
+        if (entry == null) {
+            if (mEntries.size() >= mMaxMessages) {
+                evictOldest();
+            }
+            entry = new Entry(tracker.getMessageCount());
+            mEntries.put(key, entry);
+        }
+        entry.mDispatched = true;
+    }
+
+    synchronized int size() {
+        return mEntries.size();
+    }
+}
@@ -47,7 +47,6 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
-import java.util.ArrayList;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -111,8 +110,8 @@ public class SmsUsageMonitor {
     private final int mCheckPeriod;
     private final int mMaxAllowed;
 
-    private final HashMap<String, ArrayList<Long>> mSmsStamp =
-            new HashMap<String, ArrayList<Long>>();
+    private final HashMap<String, SendTimestamps> mSmsStamp =
+            new HashMap<String, SendTimestamps>();
 
     /** Context for retrieving regexes from XML resource. */
     private final Context mContext;
@@ -123,6 +122,14 @@ public class SmsUsageMonitor {
     /** Cached short code pattern matcher for {@link #mCurrentCountry}. */
     private ShortCodePatternMatcher mCurrentPatternMatcher;
 
+    /**
+     * Pattern matchers already loaded, by country, so that switching back to a country does
+     * not parse the XML again; a null value records a country without patterns. Cleared when
+     * the pattern file changes.
+     */
+    private final HashMap<String, ShortCodePatternMatcher> mPatternMatcherCache =
+            new HashMap<String, ShortCodePatternMatcher>();
+
     /** Notice when the enabled setting changes - can be changed through gservices */
     private final AtomicBoolean mCheckEnabled = new AtomicBoolean(true);
 
@@ -181,13 +188,16 @@ public class SmsUsageMonitor {
     private static final String ATTR_PACKAGE_SMS_POLICY = "sms-policy";
 
     /**
-     * SMS short code regex pattern matcher for a specific country.
+     * SMS short code regex pattern matcher for a specific country. The patterns are compiled
+     * into a single {@link ShortCodeDfa} when they only use the supported regex subset, and
+     * are otherwise matched one after another.
      */
     private static final class ShortCodePatternMatcher {
         private final Pattern mShortCodePattern;
         private final Pattern mPremiumShortCodePattern;
         private final Pattern mFreeShortCodePattern;
         private final Pattern mStandardShortCodePattern;
+        private final ShortCodeDfa mDfa;
 
         ShortCodePatternMatcher(String shortCodeRegex, String premiumShortCodeRegex,
                 String freeShortCodeRegex, String standardShortCodeRegex) {
@@ -198,9 +208,15 @@ public class SmsUsageMonitor {
                     Pattern.compile(freeShortCodeRegex) : null);
             mStandardShortCodePattern = (standardShortCodeRegex != null ?
                     Pattern.compile(standardShortCodeRegex) : null);
+            mDfa = ShortCodeDfa.compile(shortCodeRegex, premiumShortCodeRegex,
+                    freeShortCodeRegex, standardShortCodeRegex);
+            if (DBG && mDfa == null) Rlog.d(TAG, "Short code patterns not compiled to a DFA");
         }
 
         int getNumberCategory(String phoneNumber) {
+            if (mDfa != null) {
+                return mDfa.getNumberCategory(phoneNumber);
+            }
             if (mFreeShortCodePattern != null && mFreeShortCodePattern.matcher(phoneNumber)
                     .matches()) {
                 return CATEGORY_FREE_SHORT_CODE;
@@ -220,6 +236,46 @@ public class SmsUsageMonitor {
         }
     }
 
+    /**
+     * Send times of one app within the checking period, oldest first, in a circular buffer
+     * sized to the send limit so that expiring and recording a message never shifts or boxes.
+     */
+    private static final class SendTimestamps {
+        private final long[] mStamps;
+        private int mHead;
+        private int mSize;
+
+        SendTimestamps(int capacity) {
+            mStamps = new long[Math.max(capacity, 1)];
+        }
+
+        int size() {
+            return mSize;
+        }
+
+        long newest() {
+            return mStamps[(mHead + mSize - 1) % mStamps.length];
+        }
+
+        /** Drop send times before <code>beginCheckPeriod</code>. */
+        void expire(long beginCheckPeriod) {
+            while (mSize > 0 && mStamps[mHead] < beginCheckPeriod) {
+                mHead = (mHead + 1) % mStamps.length;
+                mSize--;
+            }
+        }
+
+        void add(long time) {
+            if (mSize == mStamps.length) {
+                // only reachable if the limit is zero; keep the newest
+                mHead = (mHead + 1) % mStamps.length;
+                mSize--;
+            }
+            mStamps[(mHead + mSize) % mStamps.length] = time;
+            mSize++;
+        }
+    }
+
     /**
      * Observe the secure setting for enable flag
      */
@@ -365,9 +421,9 @@ public class SmsUsageMonitor {
         synchronized (mSmsStamp) {
             removeExpiredTimestamps();
 
-            ArrayList<Long> sentList = mSmsStamp.get(appName);
+            SendTimestamps sentList = mSmsStamp.get(appName);
             if (sentList == null) {
-                sentList = new ArrayList<Long>();
+                sentList = new SendTimestamps(mMaxAllowed);
                 mSmsStamp.put(appName, sentList);
             }
 
@@ -403,14 +459,23 @@ public class SmsUsageMonitor {
             }
 
             if (countryIso != null) {
+                boolean patternFileChanged =
+                        mPatternFile.lastModified() != mPatternFileLastModified;
+                if (patternFileChanged) {
+                    mPatternMatcherCache.clear();
+                }
                 if (mCurrentCountry == null || !countryIso.equals(mCurrentCountry) ||
-                        mPatternFile.lastModified() != mPatternFileLastModified) {
-                    if (mPatternFile.exists()) {
+                        patternFileChanged) {
+                    if (mPatternMatcherCache.containsKey(countryIso)) {
+                        mCurrentPatternMatcher = mPatternMatcherCache.get(countryIso);
+                    } else if (mPatternFile.exists()) {
                         if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from file");
                         mCurrentPatternMatcher = getPatternMatcherFromFile(countryIso);
+                        mPatternMatcherCache.put(countryIso, mCurrentPatternMatcher);
                     } else {
                         if (DBG) Rlog.d(TAG, "Loading SMS Short Code patterns from resource");
                         mCurrentPatternMatcher = getPatternMatcherFromResource(countryIso);
+                        mPatternMatcherCache.put(countryIso, mCurrentPatternMatcher);
                     }
                     mCurrentCountry = countryIso;
                 }
@@ -614,26 +679,24 @@ public class SmsUsageMonitor {
         long beginCheckPeriod = System.currentTimeMillis() - mCheckPeriod;
 
         synchronized (mSmsStamp) {
-            Iterator<Map.Entry<String, ArrayList<Long>>> iter = mSmsStamp.entrySet().iterator();
+            Iterator<Map.Entry<String, SendTimestamps>> iter = mSmsStamp.entrySet().iterator();
             while (iter.hasNext()) {
-                Map.Entry<String, ArrayList<Long>> entry = iter.next();
-                ArrayList<Long> oldList = entry.getValue();
-                if (oldList.isEmpty() || oldList.get(oldList.size() - 1) < beginCheckPeriod) {
+                Map.Entry<String, SendTimestamps> entry = iter.next();
+                SendTimestamps oldList = entry.getValue();
+                if (oldList.size() == 0 || oldList.newest() < beginCheckPeriod) {
                     iter.remove();
                 }
             }
         }
     }
 
-    private boolean isUnderLimit(ArrayList<Long> sent, int smsWaiting) {
-        Long ct = System.currentTimeMillis();
+    private boolean isUnderLimit(SendTimestamps sent, int smsWaiting) {
+        long ct = System.currentTimeMillis();
         long beginCheckPeriod = ct - mCheckPeriod;
 
         if (VDBG) log("SMS send size=" + sent.size() + " time=" + ct);
 
-        while (!sent.isEmpty() && sent.get(0) < beginCheckPeriod) {
-            sent.remove(0);
-        }
+        sent.expire(beginCheckPeriod);
 
         if ((sent.size() + smsWaiting) <= mMaxAllowed) {
             for (int i = 0; i < smsWaiting; i++ ) {
@@ -21,6 +21,12 @@ import java.util.HashMap;
 /**
  * Implement the WSP data type decoder.
  *
+ * Values are decoded in place. Text values are kept as a slice of the PDU
+ * and only turned into a String when {@link #getValueString()} is called,
+ * and content type parameters are checked by {@link #decodeContentType}
+ * but only collected into a map when {@link #getContentParameters()} is
+ * called, so walking the headers of a PDU does not allocate.
+ *
  * @hide
  */
 public class WspTypeDecoder {
@@ -200,8 +206,16 @@ public class WspTypeDecoder {
     int    mDataLength;
     long   mUnsigned32bit;
     String mStringValue;
+    // Slice of mWspData holding the string result until it is materialized;
+    // mStringLength is -1 when there is no slice.
+    int    mStringOffset;
+    int    mStringLength = -1;
 
     HashMap<String, String> mContentParameters;
+    // Parameters found by the last decodeContentType(), decoded on demand;
+    // mParametersLength is -1 if decodeContentType() has not been called.
+    int    mParametersOffset;
+    int    mParametersLength = -1;
 
     public WspTypeDecoder(byte[] pdu) {
         mWspData = pdu;
@@ -223,9 +237,9 @@ public class WspTypeDecoder {
         }
         mDataLength = index - startIndex + 1;
         if (mWspData[startIndex] == 127) {
-            mStringValue = new String(mWspData, startIndex + 1, mDataLength - 2);
+            setStringValue(startIndex + 1, mDataLength - 2);
         } else {
-            mStringValue = new String(mWspData, startIndex, mDataLength - 1);
+            setStringValue(startIndex, mDataLength - 1);
         }
         return true;
     }
@@ -245,7 +259,7 @@ public class WspTypeDecoder {
             index++;
         }
         mDataLength = index - startIndex + 1;
-        mStringValue = new String(mWspData, startIndex, mDataLength - 1);
+        setStringValue(startIndex, mDataLength - 1);
 
         return true;
     }
@@ -368,7 +382,7 @@ public class WspTypeDecoder {
     public boolean decodeExtensionMedia(int startIndex) {
         int index = startIndex;
         mDataLength = 0;
-        mStringValue = null;
+        clearStringValue();
         int length = mWspData.length;
         boolean rtrn = index < length;
 
@@ -377,7 +391,7 @@ public class WspTypeDecoder {
         }
 
         mDataLength = index - startIndex + 1;
-        mStringValue = new String(mWspData, startIndex, mDataLength - 1);
+        setStringValue(startIndex, mDataLength - 1);
 
         return rtrn;
     }
@@ -393,7 +407,7 @@ public class WspTypeDecoder {
      */
     public boolean decodeConstrainedEncoding(int startIndex) {
         if (decodeShortInteger(startIndex) == true) {
-            mStringValue = null;
+            clearStringValue();
             return true;
         }
         return decodeExtensionMedia(startIndex);
@@ -414,7 +428,9 @@ public class WspTypeDecoder {
      */
     public boolean decodeContentType(int startIndex) {
         int mediaPrefixLength;
-        mContentParameters = new HashMap<String, String>();
+        mContentParameters = null;
+        mParametersOffset = startIndex;
+        mParametersLength = 0;
 
         try {
             if (decodeValueLength(startIndex) == false) {
@@ -427,34 +443,26 @@ public class WspTypeDecoder {
             int headersLength = (int) mUnsigned32bit;
             mediaPrefixLength = getDecodedDataLength();
             if (decodeIntegerValue(startIndex + mediaPrefixLength) == true) {
-                mDataLength += mediaPrefixLength;
-                int readLength = mDataLength;
-                mStringValue = null;
-                expandWellKnownMimeType();
-                long wellKnownValue = mUnsigned32bit;
-                String mimeType = mStringValue;
-                if (readContentParameters(startIndex + mDataLength,
-                        (headersLength - (mDataLength - mediaPrefixLength)), 0)) {
-                    mDataLength += readLength;
-                    mUnsigned32bit = wellKnownValue;
-                    mStringValue = mimeType;
-                    return true;
-                }
+                clearStringValue();
+            } else if (decodeExtensionMedia(startIndex + mediaPrefixLength) == false) {
                 return false;
             }
-            if (decodeExtensionMedia(startIndex + mediaPrefixLength) == true) {
-                mDataLength += mediaPrefixLength;
-                int readLength = mDataLength;
-                expandWellKnownMimeType();
-                long wellKnownValue = mUnsigned32bit;
-                String mimeType = mStringValue;
-                if (readContentParameters(startIndex + mDataLength,
-                        (headersLength - (mDataLength - mediaPrefixLength)), 0)) {
-                    mDataLength += readLength;
-                    mUnsigned32bit = wellKnownValue;
-                    mStringValue = mimeType;
-                    return true;
-                }
+            mDataLength += mediaPrefixLength;
+            int readLength = mDataLength;
+            expandWellKnownMimeType();
+            long wellKnownValue = mUnsigned32bit;
+            String mimeType = mStringValue;
+            int mimeTypeOffset = mStringOffset;
+            int mimeTypeLength = mStringLength;
+            mParametersOffset = startIndex + mDataLength;
+            mParametersLength = headersLength - (mDataLength - mediaPrefixLength);
+            if (readContentParameters(mParametersOffset, mParametersLength, 0, null)) {
+                mDataLength += readLength;
+                mUnsigned32bit = wellKnownValue;
+                mStringValue = mimeType;
+                mStringOffset = mimeTypeOffset;
+                mStringLength = mimeTypeLength;
+                return true;
             }
         } catch (ArrayIndexOutOfBoundsException e) {
             //something doesn't add up
@@ -463,7 +471,12 @@ public class WspTypeDecoder {
         return false;
     }
 
-    private boolean readContentParameters(int startIndex, int leftToRead, int accumulator) {
+    /**
+     * Walk the content type parameters, adding them to {@code parameters}
+     * if it is not null.
+     */
+    private boolean readContentParameters(int startIndex, int leftToRead, int accumulator,
+            HashMap<String, String> parameters) {
 
         int totalRead = 0;
 
@@ -473,24 +486,30 @@ public class WspTypeDecoder {
             String param = null;
             if ((nextByte & 0x80) == 0x00 && nextByte > 31) { // untyped
                 decodeTokenText(startIndex);
-                param = mStringValue;
+                if (parameters != null) {
+                    param = getValueString();
+                }
                 totalRead += mDataLength;
             } else { // typed
                 if (decodeIntegerValue(startIndex)) {
                     totalRead += mDataLength;
                     int wellKnownParameterValue = (int) mUnsigned32bit;
-                    param = WELL_KNOWN_PARAMETERS.get(wellKnownParameterValue);
-                    if (param == null) {
-                        param = "unassigned/0x" + Long.toHexString(wellKnownParameterValue);
+                    if (parameters != null) {
+                        param = WELL_KNOWN_PARAMETERS.get(wellKnownParameterValue);
+                        if (param == null) {
+                            param = "unassigned/0x" + Long.toHexString(wellKnownParameterValue);
+                        }
                     }
                     // special case for the "Q" parameter, value is a uintvar
                     if (wellKnownParameterValue == Q_VALUE) {
                         if (decodeUintvarInteger(startIndex + totalRead)) {
                             totalRead += mDataLength;
-                            value = String.valueOf(mUnsigned32bit);
-                            mContentParameters.put(param, value);
+                            if (parameters != null) {
+                                value = String.valueOf(mUnsigned32bit);
+                                parameters.put(param, value);
+                            }
                             return readContentParameters(startIndex + totalRead, leftToRead
-                                                            - totalRead, accumulator + totalRead);
+                                    - totalRead, accumulator + totalRead, parameters);
                         } else {
                             return false;
                         }
@@ -505,20 +524,26 @@ public class WspTypeDecoder {
                 value = null;
             } else if (decodeIntegerValue(startIndex + totalRead)) {
                 totalRead += mDataLength;
-                int intValue = (int) mUnsigned32bit;
-                value = String.valueOf(intValue);
+                if (parameters != null) {
+                    int intValue = (int) mUnsigned32bit;
+                    value = String.valueOf(intValue);
+                }
             } else {
                 decodeTokenText(startIndex + totalRead);
                 totalRead += mDataLength;
-                value = mStringValue;
-                if (value.startsWith("\"")) {
-                    // quoted string, so remove the quote
-                    value = value.substring(1);
+                if (parameters != null) {
+                    value = getValueString();
+                    if (value.startsWith("\"")) {
+                        // quoted string, so remove the quote
+                        value = value.substring(1);
+                    }
                 }
             }
-            mContentParameters.put(param, value);
+            if (parameters != null) {
+                parameters.put(param, value);
+            }
             return readContentParameters(startIndex + totalRead, leftToRead - totalRead,
-                                            accumulator + totalRead);
+                                            accumulator + totalRead, parameters);
 
         } else {
             mDataLength = accumulator;
@@ -548,7 +573,7 @@ public class WspTypeDecoder {
      * Sets unsigned32bit to -1 if stringValue is already populated
      */
     private void expandWellKnownMimeType() {
-        if (mStringValue == null) {
+        if (mStringValue == null && mStringLength < 0) {
             int binaryContentType = (int) mUnsigned32bit;
             mStringValue = WELL_KNOWN_MIME_TYPES.get(binaryContentType);
         } else {
@@ -556,6 +581,20 @@ public class WspTypeDecoder {
         }
     }
 
+    /**
+     * Set the string result to a slice of the PDU, to be materialized by getValueString().
+     */
+    private void setStringValue(int offset, int length) {
+        mStringValue = null;
+        mStringOffset = offset;
+        mStringLength = length;
+    }
+
+    private void clearStringValue() {
+        mStringValue = null;
+        mStringLength = -1;
+    }
+
     /**
      * Decode the "Content length" type for WSP pdu
      *
@@ -594,7 +633,7 @@ public class WspTypeDecoder {
      */
     public boolean decodeXWapApplicationId(int startIndex) {
         if (decodeIntegerValue(startIndex) == true) {
-            mStringValue = null;
+            clearStringValue();
             return true;
         }
         return decodeTextString(startIndex);
@@ -708,6 +747,9 @@ public class WspTypeDecoder {
      * The String result of latest operation.
      */
     public String getValueString() {
+        if (mStringValue == null && mStringLength >= 0) {
+            mStringValue = new String(mWspData, mStringOffset, mStringLength);
+        }
         return mStringValue;
     }
 
@@ -722,6 +764,28 @@ public class WspTypeDecoder {
      *
      */
     public HashMap<String, String> getContentParameters() {
+        if (mContentParameters == null && mParametersLength >= 0) {
+            // decoding the parameters again clobbers the result of the latest operation
+            int dataLength = mDataLength;
+            long unsigned32bit = mUnsigned32bit;
+            String stringValue = mStringValue;
+            int stringOffset = mStringOffset;
+            int stringLength = mStringLength;
+
+            mContentParameters = new HashMap<String, String>();
+            try {
+                readContentParameters(mParametersOffset, mParametersLength, 0,
+                        mContentParameters);
+            } catch (ArrayIndexOutOfBoundsException e) {
+                // keep the parameters read before the error, as decodeContentType() did
+            }
+
+            mDataLength = dataLength;
+            mUnsigned32bit = unsigned32bit;
+            mStringValue = stringValue;
+            mStringOffset = stringOffset;
+            mStringLength = stringLength;
+        }
         return mContentParameters;
     }
 }
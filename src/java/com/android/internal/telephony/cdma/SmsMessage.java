@@ -34,21 +34,16 @@ import com.android.internal.telephony.SmsHeader;
 import com.android.internal.telephony.SmsMessageBase;
 import com.android.internal.telephony.TelephonyProperties;
 import com.android.internal.telephony.cdma.sms.BearerData;
+import com.android.internal.telephony.cdma.sms.BitCursor;
 import com.android.internal.telephony.cdma.sms.CdmaSmsAddress;
 import com.android.internal.telephony.cdma.sms.CdmaSmsSubaddress;
 import com.android.internal.telephony.cdma.sms.SmsEnvelope;
 import com.android.internal.telephony.cdma.sms.UserData;
 import com.android.internal.telephony.uicc.IccUtils;
-import com.android.internal.util.BitwiseInputStream;
 import com.android.internal.util.HexDump;
 import com.android.internal.telephony.Sms7BitEncodingTranslator;
 
-import java.io.BufferedOutputStream;
-import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
-import java.io.IOException;
 import java.util.ArrayList;
 
 /**
@@ -101,6 +96,12 @@ public class SmsMessage extends SmsMessageBase {
     private SmsEnvelope mEnvelope;
     private BearerData mBearerData;
 
+    /**
+     * True while the message text has not been decoded yet; see
+     * {@link #decodeDeferredMessageBody()}.
+     */
+    private boolean mMessageBodyDeferred;
+
     public static class SubmitPdu extends SubmitPduBase {
     }
 
@@ -511,24 +512,23 @@ public class SmsMessage extends SmsMessageBase {
      * @see #createPdu()
      */
     private void parsePdu(byte[] pdu) {
-        ByteArrayInputStream bais = new ByteArrayInputStream(pdu);
-        DataInputStream dis = new DataInputStream(bais);
+        BitCursor cursor = new BitCursor(pdu);
         int length;
         int bearerDataLength;
         SmsEnvelope env = new SmsEnvelope();
         CdmaSmsAddress addr = new CdmaSmsAddress();
 
         try {
-            env.messageType = dis.readInt();
-            env.teleService = dis.readInt();
-            env.serviceCategory = dis.readInt();
+            env.messageType = cursor.read(32);
+            env.teleService = cursor.read(32);
+            env.serviceCategory = cursor.read(32);
 
-            addr.digitMode = dis.readByte();
-            addr.numberMode = dis.readByte();
-            addr.ton = dis.readByte();
-            addr.numberPlan = dis.readByte();
+            addr.digitMode = (byte) cursor.read(8);
+            addr.numberMode = (byte) cursor.read(8);
+            addr.ton = (byte) cursor.read(8);
+            addr.numberPlan = (byte) cursor.read(8);
 
-            length = dis.readUnsignedByte();
+            length = cursor.read(8);
             addr.numberOfDigits = length;
 
             // sanity check on the length
@@ -537,27 +537,24 @@ public class SmsMessage extends SmsMessageBase {
                         "createFromPdu: Invalid pdu, addr.numberOfDigits " + length
                         + " > pdu len " + pdu.length);
             }
-            addr.origBytes = new byte[length];
-            dis.read(addr.origBytes, 0, length); // digits
+            addr.origBytes = readBytes(cursor, length); // digits
 
-            env.bearerReply = dis.readInt();
+            env.bearerReply = cursor.read(32);
             // CauseCode values:
-            env.replySeqNo = dis.readByte();
-            env.errorClass = dis.readByte();
-            env.causeCode = dis.readByte();
+            env.replySeqNo = (byte) cursor.read(8);
+            env.errorClass = (byte) cursor.read(8);
+            env.causeCode = (byte) cursor.read(8);
 
             //encoded BearerData:
-            bearerDataLength = dis.readInt();
+            bearerDataLength = cursor.read(32);
             // sanity check on the length
             if (bearerDataLength > pdu.length) {
                 throw new RuntimeException(
                         "createFromPdu: Invalid pdu, bearerDataLength " + bearerDataLength
                         + " > pdu len " + pdu.length);
             }
-            env.bearerData = new byte[bearerDataLength];
-            dis.read(env.bearerData, 0, bearerDataLength);
-            dis.close();
-        } catch (IOException ex) {
+            env.bearerData = readBytes(cursor, bearerDataLength);
+        } catch (BitCursor.AccessException ex) {
             throw new RuntimeException(
                     "createFromPdu: conversion from byte array to object failed: " + ex, ex);
         } catch (Exception ex) {
@@ -573,23 +570,55 @@ public class SmsMessage extends SmsMessageBase {
         parseSms();
     }
 
+    /**
+     * Reads {@code length} bytes at the cursor position into a new array.  As with
+     * DataInputStream.read(), a short PDU leaves the missing tail zero-filled
+     * instead of failing.
+     */
+    private static byte[] readBytes(BitCursor cursor, int length)
+            throws BitCursor.AccessException {
+        int available = cursor.available() >> 3;
+        if (length <= available) {
+            return cursor.readByteArray(length * 8);
+        }
+        byte[] data = new byte[length];
+        System.arraycopy(cursor.readByteArray(available * 8), 0, data, 0, available);
+        return data;
+    }
+
+    /**
+     * Points {@code paramCursor} at the next {@code length} bytes of {@code pdu} and
+     * advances {@code cursor} past them.
+     */
+    private static BitCursor wrapParameter(BitCursor cursor, BitCursor paramCursor, byte[] pdu,
+            int length) throws BitCursor.AccessException {
+        int offset = cursor.position() >> 3;
+        if (length <= (cursor.available() >> 3)) {
+            cursor.skip(length * 8);
+            return paramCursor.wrap(pdu, offset, length);
+        }
+        // Truncated record: decode against a zero-filled copy, as before.
+        return paramCursor.wrap(readBytes(cursor, length));
+    }
+
     /**
      * Decodes 3GPP2 sms stored in CSIM/RUIM cards As per 3GPP2 C.S0015-0
      */
     private void parsePduFromEfRecord(byte[] pdu) {
-        ByteArrayInputStream bais = new ByteArrayInputStream(pdu);
-        DataInputStream dis = new DataInputStream(bais);
+        // One cursor walks the parameter list; the other is re-pointed at each
+        // parameter's value in place, so no per-parameter copies are made.
+        BitCursor cursor = new BitCursor(pdu);
+        BitCursor paramCursor = new BitCursor(pdu);
         SmsEnvelope env = new SmsEnvelope();
         CdmaSmsAddress addr = new CdmaSmsAddress();
         CdmaSmsSubaddress subAddr = new CdmaSmsSubaddress();
 
         try {
-            env.messageType = dis.readByte();
+            env.messageType = (byte) cursor.read(8);
 
-            while (dis.available() > 0) {
-                int parameterId = dis.readByte();
-                int parameterLen = dis.readUnsignedByte();
-                byte[] parameterData = new byte[parameterLen];
+            while (cursor.available() > 0) {
+                int parameterId = (byte) cursor.read(8);
+                int parameterLen = cursor.read(8);
 
                 switch (parameterId) {
                     case TELESERVICE_IDENTIFIER:
@@ -598,7 +627,7 @@ public class SmsMessage extends SmsMessageBase {
                          * service access point is sending or should receive
                          * this message
                          */
-                        env.teleService = dis.readUnsignedShort();
+                        env.teleService = cursor.read(16);
                         Rlog.i(LOG_TAG, "teleservice = " + env.teleService);
                         break;
                     case SERVICE_CATEGORY:
@@ -606,12 +635,11 @@ public class SmsMessage extends SmsMessageBase {
                          * 16 bit parameter that identifies type of service as
                          * in 3GPP2 C.S0015-0 Table 3.4.3.2-1
                          */
-                        env.serviceCategory = dis.readUnsignedShort();
+                        env.serviceCategory = cursor.read(16);
                         break;
                     case ORIGINATING_ADDRESS:
                     case DESTINATION_ADDRESS:
-                        dis.read(parameterData, 0, parameterLen);
-                        BitwiseInputStream addrBis = new BitwiseInputStream(parameterData);
+                        BitCursor addrBis = wrapParameter(cursor, paramCursor, pdu, parameterLen);
                         addr.digitMode = addrBis.read(1);
                         addr.numberMode = addrBis.read(1);
                         int numberType = 0;
@@ -660,10 +688,10 @@ public class SmsMessage extends SmsMessageBase {
                         break;
                     case ORIGINATING_SUB_ADDRESS:
                     case DESTINATION_SUB_ADDRESS:
-                        dis.read(parameterData, 0, parameterLen);
-                        BitwiseInputStream subAddrBis = new BitwiseInputStream(parameterData);
+                        BitCursor subAddrBis =
+                                wrapParameter(cursor, paramCursor, pdu, parameterLen);
                         subAddr.type = subAddrBis.read(3);
-                        subAddr.odd = subAddrBis.readByteArray(1)[0];
+                        subAddr.odd = (byte) (subAddrBis.read(1) << 7);
                         int subAddrLen = subAddrBis.read(8);
                         byte[] subdata = new byte[subAddrLen];
                         for (int index = 0; index < subAddrLen; index++) {
@@ -674,28 +702,25 @@ public class SmsMessage extends SmsMessageBase {
                         subAddr.origBytes = subdata;
                         break;
                     case BEARER_REPLY_OPTION:
-                        dis.read(parameterData, 0, parameterLen);
-                        BitwiseInputStream replyOptBis = new BitwiseInputStream(parameterData);
+                        BitCursor replyOptBis =
+                                wrapParameter(cursor, paramCursor, pdu, parameterLen);
                         env.bearerReply = replyOptBis.read(6);
                         break;
                     case CAUSE_CODES:
-                        dis.read(parameterData, 0, parameterLen);
-                        BitwiseInputStream ccBis = new BitwiseInputStream(parameterData);
-                        env.replySeqNo = ccBis.readByteArray(6)[0];
-                        env.errorClass = ccBis.readByteArray(2)[0];
+                        BitCursor ccBis = wrapParameter(cursor, paramCursor, pdu, parameterLen);
+                        // Fields are kept MSB-aligned in their byte, as before.
+                        env.replySeqNo = (byte) (ccBis.read(6) << 2);
+                        env.errorClass = (byte) (ccBis.read(2) << 6);
                         if (env.errorClass != 0x00)
-                            env.causeCode = ccBis.readByteArray(8)[0];
+                            env.causeCode = (byte) ccBis.read(8);
                         break;
                     case BEARER_DATA:
-                        dis.read(parameterData, 0, parameterLen);
-                        env.bearerData = parameterData;
+                        env.bearerData = readBytes(cursor, parameterLen);
                         break;
                     default:
                         throw new Exception("unsupported parameterId (" + parameterId + ")");
                 }
             }
-            bais.close();
-            dis.close();
         } catch (Exception ex) {
             Rlog.e(LOG_TAG, "parsePduFromEfRecord: conversion from pdu to SmsMessage failed" + ex);
         }
@@ -727,7 +752,12 @@ public class SmsMessage extends SmsMessageBase {
             }
             return;
         }
-        mBearerData = BearerData.decode(mEnvelope.bearerData);
+        // WAP and service category programming messages are consumed through the raw
+        // user data and the bearer data subparameters, so their text is only decoded
+        // if something asks for the message body.
+        boolean deferBody = mEnvelope.teleService == SmsEnvelope.TELESERVICE_WAP
+                || mEnvelope.teleService == SmsEnvelope.TELESERVICE_SCPT;
+        mBearerData = BearerData.decode(mEnvelope.bearerData, 0, deferBody);
         if (Rlog.isLoggable(LOGGABLE_TAG, Log.VERBOSE)) {
             Rlog.d(LOG_TAG, "MT raw BearerData = '" +
                       HexDump.toHexString(mEnvelope.bearerData) + "'");
@@ -738,6 +768,7 @@ public class SmsMessage extends SmsMessageBase {
             mUserData = mBearerData.userData.payload;
             mUserDataHeader = mBearerData.userData.userDataHeader;
             mMessageBody = mBearerData.userData.payloadStr;
+            mMessageBodyDeferred = deferBody;
         }
 
         if (mOriginatingAddress != null) {
@@ -787,6 +818,83 @@ public class SmsMessage extends SmsMessageBase {
         }
     }
 
+    /**
+     * Decodes the message text skipped by {@link #parseSms()}, if any.
+     */
+    private void decodeDeferredMessageBody() {
+        if (!mMessageBodyDeferred) return;
+        mMessageBodyDeferred = false;
+        if (mBearerData.decodeDeferredUserDataText()) {
+            mMessageBody = mBearerData.userData.payloadStr;
+            if (mMessageBody != null) {
+                parseMessageBody();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getMessageBody() {
+        decodeDeferredMessageBody();
+        return super.getMessageBody();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDisplayMessageBody() {
+        decodeDeferredMessageBody();
+        return super.getDisplayMessageBody();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean isEmail() {
+        decodeDeferredMessageBody();
+        return super.isEmail();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getEmailBody() {
+        decodeDeferredMessageBody();
+        return super.getEmailBody();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getEmailFrom() {
+        decodeDeferredMessageBody();
+        return super.getEmailFrom();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getPseudoSubject() {
+        decodeDeferredMessageBody();
+        return super.getPseudoSubject();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String getDisplayOriginatingAddress() {
+        decodeDeferredMessageBody();
+        return super.getDisplayOriginatingAddress();
+    }
+
     /**
      * Parses a broadcast SMS, possibly containing a CMAS alert.
      */
@@ -910,30 +1018,29 @@ public class SmsMessage extends SmsMessageBase {
             /**
              * TODO(cleanup): reference a spec and get rid of the ugly comments
              */
-            ByteArrayOutputStream baos = new ByteArrayOutputStream(100);
-            DataOutputStream dos = new DataOutputStream(baos);
-            dos.writeInt(envelope.teleService);
-            dos.writeInt(0); //servicePresent
-            dos.writeInt(0); //serviceCategory
-            dos.write(destAddr.digitMode);
-            dos.write(destAddr.numberMode);
-            dos.write(destAddr.ton); // number_type
-            dos.write(destAddr.numberPlan);
-            dos.write(destAddr.numberOfDigits);
-            dos.write(destAddr.origBytes, 0, destAddr.origBytes.length); // digits
+            BitCursor cursor = new BitCursor(21 + destAddr.origBytes.length
+                    + encodedBearerData.length);
+            cursor.write(32, envelope.teleService);
+            cursor.write(32, 0); //servicePresent
+            cursor.write(32, 0); //serviceCategory
+            cursor.write(8, destAddr.digitMode);
+            cursor.write(8, destAddr.numberMode);
+            cursor.write(8, destAddr.ton); // number_type
+            cursor.write(8, destAddr.numberPlan);
+            cursor.write(8, destAddr.numberOfDigits);
+            cursor.writeByteArray(destAddr.origBytes.length * 8, destAddr.origBytes); // digits
             // Subaddress is not supported.
-            dos.write(0); //subaddressType
-            dos.write(0); //subaddr_odd
-            dos.write(0); //subaddr_nbr_of_digits
-            dos.write(encodedBearerData.length);
-            dos.write(encodedBearerData, 0, encodedBearerData.length);
-            dos.close();
+            cursor.write(8, 0); //subaddressType
+            cursor.write(8, 0); //subaddr_odd
+            cursor.write(8, 0); //subaddr_nbr_of_digits
+            cursor.write(8, encodedBearerData.length);
+            cursor.writeByteArray(encodedBearerData.length * 8, encodedBearerData);
 
             SubmitPdu pdu = new SubmitPdu();
-            pdu.encodedMessage = baos.toByteArray();
+            pdu.encodedMessage = cursor.toByteArray();
             pdu.encodedScAddress = null;
             return pdu;
-        } catch(IOException ex) {
+        } catch (BitCursor.AccessException ex) {
             Rlog.e(LOG_TAG, "creating SubmitPdu failed: " + ex);
         }
         return null;
@@ -946,30 +1053,28 @@ public class SmsMessage extends SmsMessageBase {
     private void createPdu() {
         SmsEnvelope env = mEnvelope;
         CdmaSmsAddress addr = env.origAddress;
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(100);
-        DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(baos));
+        BitCursor cursor = new BitCursor(28 + addr.origBytes.length + env.bearerData.length);
 
         try {
-            dos.writeInt(env.messageType);
-            dos.writeInt(env.teleService);
-            dos.writeInt(env.serviceCategory);
-
-            dos.writeByte(addr.digitMode);
-            dos.writeByte(addr.numberMode);
-            dos.writeByte(addr.ton);
-            dos.writeByte(addr.numberPlan);
-            dos.writeByte(addr.numberOfDigits);
-            dos.write(addr.origBytes, 0, addr.origBytes.length); // digits
-
-            dos.writeInt(env.bearerReply);
+            cursor.write(32, env.messageType);
+            cursor.write(32, env.teleService);
+            cursor.write(32, env.serviceCategory);
+
+            cursor.write(8, addr.digitMode);
+            cursor.write(8, addr.numberMode);
+            cursor.write(8, addr.ton);
+            cursor.write(8, addr.numberPlan);
+            cursor.write(8, addr.numberOfDigits);
+            cursor.writeByteArray(addr.origBytes.length * 8, addr.origBytes); // digits
+
+            cursor.write(32, env.bearerReply);
             // CauseCode values:
-            dos.writeByte(env.replySeqNo);
-            dos.writeByte(env.errorClass);
-            dos.writeByte(env.causeCode);
+            cursor.write(8, env.replySeqNo);
+            cursor.write(8, env.errorClass);
+            cursor.write(8, env.causeCode);
             //encoded BearerData:
-            dos.writeInt(env.bearerData.length);
-            dos.write(env.bearerData, 0, env.bearerData.length);
-            dos.close();
+            cursor.write(32, env.bearerData.length);
+            cursor.writeByteArray(env.bearerData.length * 8, env.bearerData);
 
             /**
              * TODO(cleanup) -- The mPdu field is managed in
@@ -979,8 +1084,8 @@ public class SmsMessage extends SmsMessageBase {
              * generate a representation if there was not yet one?
              */
 
-            mPdu = baos.toByteArray();
-        } catch (IOException ex) {
+            mPdu = cursor.toByteArray();
+        } catch (BitCursor.AccessException ex) {
             Rlog.e(LOG_TAG, "createPdu: conversion from object to byte array failed: " + ex);
         }
     }
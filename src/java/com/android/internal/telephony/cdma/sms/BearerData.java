@@ -29,8 +29,6 @@ import com.android.internal.telephony.SmsConstants;
 import com.android.internal.telephony.SmsHeader;
 import com.android.internal.telephony.SmsMessageBase;
 import com.android.internal.telephony.uicc.IccUtils;
-import com.android.internal.util.BitwiseInputStream;
-import com.android.internal.util.BitwiseOutputStream;
 
 import java.util.ArrayList;
 import java.util.TimeZone;
@@ -340,7 +338,7 @@ public final class BearerData {
 
     /**
      * CMAS warning notification information.
-     * @see #decodeCmasUserData(BearerData, int)
+     * @see #decodeCmasUserData(BearerData, BitCursor, int)
      */
     public SmsCbCmasInfo cmasWarningInfo;
 
@@ -359,6 +357,22 @@ public final class BearerData {
      */
     public ArrayList<CdmaSmsCbProgramResults> serviceCategoryProgramResults;
 
+    /**
+     * Offset of the text within userData.payload while the text decode has been
+     * deferred by {@link #decode(byte[], int, boolean)}, or -1 if there is
+     * nothing left to decode.
+     */
+    private int mDeferredUserDataOffset = -1;
+
+    /**
+     * Per-thread encoder buffer, reset and reused by {@link #encode(BearerData)}.
+     */
+    private static final ThreadLocal<BitCursor> sEncodeCursor = new ThreadLocal<BitCursor>() {
+        @Override
+        protected BitCursor initialValue() {
+            return new BitCursor(200);
+        }
+    };
 
     private static class CodingException extends Exception {
         public CodingException(String s) {
@@ -443,8 +457,8 @@ public final class BearerData {
         return builder.toString();
     }
 
-    private static void encodeMessageId(BearerData bData, BitwiseOutputStream outStream)
-        throws BitwiseOutputStream.AccessException
+    private static void encodeMessageId(BearerData bData, BitCursor outStream)
+        throws BitCursor.AccessException
     {
         outStream.write(8, 3);
         outStream.write(4, bData.messageType);
@@ -500,7 +514,7 @@ public final class BearerData {
         throws CodingException
     {
         try {
-            BitwiseOutputStream outStream = new BitwiseOutputStream(msg.length());
+            BitCursor outStream = new BitCursor(msg.length());
             int msgLen = msg.length();
             for (int i = 0; i < msgLen; i++) {
                 int charCode = UserData.charToAscii.get(msg.charAt(i), -1);
@@ -515,7 +529,7 @@ public final class BearerData {
                 }
             }
             return outStream.toByteArray();
-        } catch (BitwiseOutputStream.AccessException ex) {
+        } catch (BitCursor.AccessException ex) {
             throw new CodingException("7bit ASCII encode failed: " + ex);
         }
     }
@@ -684,8 +698,8 @@ public final class BearerData {
         }
     }
 
-    private static void encodeUserData(BearerData bData, BitwiseOutputStream outStream)
-        throws BitwiseOutputStream.AccessException, CodingException
+    private static void encodeUserData(BearerData bData, BitCursor outStream)
+        throws BitCursor.AccessException, CodingException
     {
         /*
          * TODO(cleanup): Do we really need to set userData.payload as
@@ -727,8 +741,8 @@ public final class BearerData {
         if (paddingBits > 0) outStream.write(paddingBits, 0);
     }
 
-    private static void encodeReplyOption(BearerData bData, BitwiseOutputStream outStream)
-        throws BitwiseOutputStream.AccessException
+    private static void encodeReplyOption(BearerData bData, BitCursor outStream)
+        throws BitCursor.AccessException
     {
         outStream.write(8, 1);
         outStream.write(1, bData.userAckReq     ? 1 : 0);
@@ -775,8 +789,8 @@ public final class BearerData {
         }
     }
 
-    private static void encodeCallbackNumber(BearerData bData, BitwiseOutputStream outStream)
-        throws BitwiseOutputStream.AccessException, CodingException
+    private static void encodeCallbackNumber(BearerData bData, BitCursor outStream)
+        throws BitCursor.AccessException, CodingException
     {
         CdmaSmsAddress addr = bData.callbackNumber;
         encodeCdmaSmsAddress(addr);
@@ -802,69 +816,69 @@ public final class BearerData {
         if (paddingBits > 0) outStream.write(paddingBits, 0);
     }
 
-    private static void encodeMsgStatus(BearerData bData, BitwiseOutputStream outStream)
-        throws BitwiseOutputStream.AccessException
+    private static void encodeMsgStatus(BearerData bData, BitCursor outStream)
+        throws BitCursor.AccessException
     {
         outStream.write(8, 1);
         outStream.write(2, bData.errorClass);
         outStream.write(6, bData.messageStatus);
     }
 
-    private static void encodeMsgCount(BearerData bData, BitwiseOutputStream outStream)
-        throws BitwiseOutputStream.AccessException
+    private static void encodeMsgCount(BearerData bData, BitCursor outStream)
+        throws BitCursor.AccessException
     {
         outStream.write(8, 1);
         outStream.write(8, bData.numberOfMessages);
     }
 
-    private static void encodeValidityPeriodRel(BearerData bData, BitwiseOutputStream outStream)
-        throws BitwiseOutputStream.AccessException
+    private static void encodeValidityPeriodRel(BearerData bData, BitCursor outStream)
+        throws BitCursor.AccessException
     {
         outStream.write(8, 1);
         outStream.write(8, bData.validityPeriodRelative);
     }
 
-    private static void encodePrivacyIndicator(BearerData bData, BitwiseOutputStream outStream)
-        throws BitwiseOutputStream.AccessException
+    private static void encodePrivacyIndicator(BearerData bData, BitCursor outStream)
+        throws BitCursor.AccessException
     {
         outStream.write(8, 1);
         outStream.write(2, bData.privacy);
         outStream.skip(6);
     }
 
-    private static void encodeLanguageIndicator(BearerData bData, BitwiseOutputStream outStream)
-        throws BitwiseOutputStream.AccessException
+    private static void encodeLanguageIndicator(BearerData bData, BitCursor outStream)
+        throws BitCursor.AccessException
     {
         outStream.write(8, 1);
         outStream.write(8, bData.language);
     }
 
-    private static void encodeDisplayMode(BearerData bData, BitwiseOutputStream outStream)
-        throws BitwiseOutputStream.AccessException
+    private static void encodeDisplayMode(BearerData bData, BitCursor outStream)
+        throws BitCursor.AccessException
     {
         outStream.write(8, 1);
         outStream.write(2, bData.displayMode);
         outStream.skip(6);
     }
 
-    private static void encodePriorityIndicator(BearerData bData, BitwiseOutputStream outStream)
-        throws BitwiseOutputStream.AccessException
+    private static void encodePriorityIndicator(BearerData bData, BitCursor outStream)
+        throws BitCursor.AccessException
     {
         outStream.write(8, 1);
         outStream.write(2, bData.priority);
         outStream.skip(6);
     }
 
-    private static void encodeMsgDeliveryAlert(BearerData bData, BitwiseOutputStream outStream)
-        throws BitwiseOutputStream.AccessException
+    private static void encodeMsgDeliveryAlert(BearerData bData, BitCursor outStream)
+        throws BitCursor.AccessException
     {
         outStream.write(8, 1);
         outStream.write(2, bData.alert);
         outStream.skip(6);
     }
 
-    private static void encodeScpResults(BearerData bData, BitwiseOutputStream outStream)
-        throws BitwiseOutputStream.AccessException
+    private static void encodeScpResults(BearerData bData, BitCursor outStream)
+        throws BitCursor.AccessException
     {
         ArrayList<CdmaSmsCbProgramResults> results = bData.serviceCategoryProgramResults;
         outStream.write(8, (results.size() * 4));   // 4 octets per program result
@@ -890,7 +904,8 @@ public final class BearerData {
         bData.hasUserDataHeader = ((bData.userData != null) &&
                 (bData.userData.userDataHeader != null));
         try {
-            BitwiseOutputStream outStream = new BitwiseOutputStream(200);
+            BitCursor outStream = sEncodeCursor.get();
+            outStream.reset();
             outStream.write(8, SUBPARAM_MESSAGE_IDENTIFIER);
             encodeMessageId(bData, outStream);
             if (bData.userData != null) {
@@ -942,7 +957,7 @@ public final class BearerData {
                 encodeScpResults(bData, outStream);
             }
             return outStream.toByteArray();
-        } catch (BitwiseOutputStream.AccessException ex) {
+        } catch (BitCursor.AccessException ex) {
             Rlog.e(LOG_TAG, "BearerData encode failed: " + ex);
         } catch (CodingException ex) {
             Rlog.e(LOG_TAG, "BearerData encode failed: " + ex);
@@ -950,8 +965,8 @@ public final class BearerData {
         return null;
    }
 
-    private static boolean decodeMessageId(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodeMessageId(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 3 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -974,8 +989,8 @@ public final class BearerData {
     }
 
     private static boolean decodeReserved(
-            BearerData bData, BitwiseInputStream inStream, int subparamId)
-        throws BitwiseInputStream.AccessException, CodingException
+            BearerData bData, BitCursor inStream, int subparamId)
+        throws BitCursor.AccessException, CodingException
     {
         boolean decodeSuccess = false;
         int subparamLen = inStream.read(8); // SUBPARAM_LEN
@@ -994,8 +1009,8 @@ public final class BearerData {
         return decodeSuccess;
     }
 
-    private static boolean decodeUserData(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException
+    private static boolean decodeUserData(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException
     {
         int paramBits = inStream.read(8) * 8;
         bData.userData = new UserData();
@@ -1058,7 +1073,7 @@ public final class BearerData {
         try {
             offset *= 8;
             StringBuffer strBuf = new StringBuffer(numFields);
-            BitwiseInputStream inStream = new BitwiseInputStream(data);
+            BitCursor inStream = new BitCursor(data);
             int wantedBits = (offset * 8) + (numFields * 7);
             if (inStream.available() < wantedBits) {
                 throw new CodingException("insufficient data (wanted " + wantedBits +
@@ -1080,7 +1095,7 @@ public final class BearerData {
                 }
             }
             return strBuf.toString();
-        } catch (BitwiseInputStream.AccessException ex) {
+        } catch (BitCursor.AccessException ex) {
             throw new CodingException("7bit ASCII decode failed: " + ex);
         }
     }
@@ -1116,6 +1131,16 @@ public final class BearerData {
     private static void decodeUserDataPayload(UserData userData, boolean hasUserDataHeader)
         throws CodingException
     {
+        decodeUserDataText(userData, decodeUserDataHeader(userData, hasUserDataHeader));
+    }
+
+    /**
+     * Parse the user data header and normalize the raw payload, leaving the
+     * text itself undecoded.
+     *
+     * @return offset of the text within the payload
+     */
+    private static int decodeUserDataHeader(UserData userData, boolean hasUserDataHeader) {
         int offset = 0;
         if (hasUserDataHeader) {
             int udhLen = userData.payload[0] & 0x00FF;
@@ -1124,14 +1149,8 @@ public final class BearerData {
             System.arraycopy(userData.payload, 1, headerData, 0, udhLen);
             userData.userDataHeader = SmsHeader.fromByteArray(headerData);
         }
-        switch (userData.msgEncoding) {
-        case UserData.ENCODING_OCTET:
-            /*
-            *  Octet decoding depends on the carrier service.
-            */
-            boolean decodingtypeUTF8 = Resources.getSystem()
-                    .getBoolean(com.android.internal.R.bool.config_sms_utf8_support);
-
+        if (userData.msgEncoding == UserData.ENCODING_OCTET
+                && userData.payload.length != userData.numFields) {
             // Strip off any padding bytes, meaning any differences between the length of the
             // array and the target length specified by numFields.  This is to avoid any
             // confusion by code elsewhere that only considers the payload array length.
@@ -1141,6 +1160,20 @@ public final class BearerData {
 
             System.arraycopy(userData.payload, 0, payload, 0, copyLen);
             userData.payload = payload;
+        }
+        return offset;
+    }
+
+    private static void decodeUserDataText(UserData userData, int offset)
+        throws CodingException
+    {
+        switch (userData.msgEncoding) {
+        case UserData.ENCODING_OCTET:
+            /*
+            *  Octet decoding depends on the carrier service.
+            */
+            boolean decodingtypeUTF8 = Resources.getSystem()
+                    .getBoolean(com.android.internal.R.bool.config_sms_utf8_support);
 
             if (!decodingtypeUTF8) {
                 // There are many devices in the market that send 8bit text sms (latin encoded) as
@@ -1187,10 +1220,9 @@ public final class BearerData {
      *
      * Note that the characters encoding is 6-bit packed.
      */
-    private static void decodeIs91VoicemailStatus(BearerData bData)
-        throws BitwiseInputStream.AccessException, CodingException
+    private static void decodeIs91VoicemailStatus(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException, CodingException
     {
-        BitwiseInputStream inStream = new BitwiseInputStream(bData.userData.payload);
         int dataLen = inStream.available() / 6;  // 6-bit packed character encoding.
         int numFields = bData.userData.numFields;
         if ((dataLen > 14) || (dataLen < 3) || (dataLen < numFields)) {
@@ -1230,10 +1262,9 @@ public final class BearerData {
      * characters, which are treated as normal text user data payload.
      * Note that the characters encoding is 6-bit packed.
      */
-    private static void decodeIs91ShortMessage(BearerData bData)
-        throws BitwiseInputStream.AccessException, CodingException
+    private static void decodeIs91ShortMessage(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException, CodingException
     {
-        BitwiseInputStream inStream = new BitwiseInputStream(bData.userData.payload);
         int dataLen = inStream.available() / 6;  // 6-bit packed character encoding.
         int numFields = bData.userData.numFields;
         // dataLen may be > 14 characters due to octet padding
@@ -1255,8 +1286,9 @@ public final class BearerData {
      * encoded using standard 4-bit DTMF, which are treated as a
      * callback number.
      */
-    private static void decodeIs91Cli(BearerData bData) throws CodingException {
-        BitwiseInputStream inStream = new BitwiseInputStream(bData.userData.payload);
+    private static void decodeIs91Cli(BearerData bData, BitCursor inStream)
+        throws CodingException
+    {
         int dataLen = inStream.available() / 4;  // 4-bit packed DTMF digit encoding.
         int numFields = bData.userData.numFields;
         if ((dataLen > 14) || (dataLen < 3) || (dataLen < numFields)) {
@@ -1270,19 +1302,20 @@ public final class BearerData {
         bData.callbackNumber = addr;
     }
 
-    private static void decodeIs91(BearerData bData)
-        throws BitwiseInputStream.AccessException, CodingException
+    private static void decodeIs91(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException, CodingException
     {
+        inStream.wrap(bData.userData.payload);
         switch (bData.userData.msgType) {
         case UserData.IS91_MSG_TYPE_VOICEMAIL_STATUS:
-            decodeIs91VoicemailStatus(bData);
+            decodeIs91VoicemailStatus(bData, inStream);
             break;
         case UserData.IS91_MSG_TYPE_CLI:
-            decodeIs91Cli(bData);
+            decodeIs91Cli(bData, inStream);
             break;
         case UserData.IS91_MSG_TYPE_SHORT_MESSAGE_FULL:
         case UserData.IS91_MSG_TYPE_SHORT_MESSAGE:
-            decodeIs91ShortMessage(bData);
+            decodeIs91ShortMessage(bData, inStream);
             break;
         default:
             throw new CodingException("unsupported IS-91 message type (" +
@@ -1290,8 +1323,8 @@ public final class BearerData {
         }
     }
 
-    private static boolean decodeReplyOption(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodeReplyOption(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 1 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1313,8 +1346,8 @@ public final class BearerData {
         return decodeSuccess;
     }
 
-    private static boolean decodeMsgCount(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodeMsgCount(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 1 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1332,8 +1365,8 @@ public final class BearerData {
         return decodeSuccess;
     }
 
-    private static boolean decodeDepositIndex(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodeDepositIndex(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 2 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1382,8 +1415,8 @@ public final class BearerData {
         }
     }
 
-    private static boolean decodeCallbackNumber(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException, CodingException
+    private static boolean decodeCallbackNumber(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException, CodingException
     {
         final int EXPECTED_PARAM_SIZE = 1 * 8; //at least
         int paramBits = inStream.read(8) * 8;
@@ -1418,8 +1451,8 @@ public final class BearerData {
         return true;
     }
 
-    private static boolean decodeMsgStatus(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodeMsgStatus(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 1 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1439,8 +1472,8 @@ public final class BearerData {
         return decodeSuccess;
     }
 
-    private static boolean decodeMsgCenterTimeStamp(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodeMsgCenterTimeStamp(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 6 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1458,8 +1491,8 @@ public final class BearerData {
         return decodeSuccess;
     }
 
-    private static boolean decodeValidityAbs(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodeValidityAbs(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 6 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1477,8 +1510,8 @@ public final class BearerData {
         return decodeSuccess;
     }
 
-    private static boolean decodeDeferredDeliveryAbs(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodeDeferredDeliveryAbs(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 6 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1497,8 +1530,8 @@ public final class BearerData {
         return decodeSuccess;
     }
 
-    private static boolean decodeValidityRel(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodeValidityRel(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 1 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1517,8 +1550,8 @@ public final class BearerData {
         return decodeSuccess;
     }
 
-    private static boolean decodeDeferredDeliveryRel(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodeDeferredDeliveryRel(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 1 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1537,8 +1570,8 @@ public final class BearerData {
         return decodeSuccess;
     }
 
-    private static boolean decodePrivacyIndicator(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodePrivacyIndicator(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 1 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1558,8 +1591,8 @@ public final class BearerData {
         return decodeSuccess;
     }
 
-    private static boolean decodeLanguageIndicator(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodeLanguageIndicator(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 1 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1578,8 +1611,8 @@ public final class BearerData {
         return decodeSuccess;
     }
 
-    private static boolean decodeDisplayMode(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodeDisplayMode(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 1 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1599,8 +1632,8 @@ public final class BearerData {
         return decodeSuccess;
     }
 
-    private static boolean decodePriorityIndicator(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodePriorityIndicator(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 1 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1620,8 +1653,8 @@ public final class BearerData {
         return decodeSuccess;
     }
 
-    private static boolean decodeMsgDeliveryAlert(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodeMsgDeliveryAlert(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 1 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1641,8 +1674,8 @@ public final class BearerData {
         return decodeSuccess;
     }
 
-    private static boolean decodeUserResponseCode(BearerData bData, BitwiseInputStream inStream)
-        throws BitwiseInputStream.AccessException {
+    private static boolean decodeUserResponseCode(BearerData bData, BitCursor inStream)
+        throws BitCursor.AccessException {
         final int EXPECTED_PARAM_SIZE = 1 * 8;
         boolean decodeSuccess = false;
         int paramBits = inStream.read(8) * 8;
@@ -1662,7 +1695,7 @@ public final class BearerData {
     }
 
     private static boolean decodeServiceCategoryProgramData(BearerData bData,
-            BitwiseInputStream inStream) throws BitwiseInputStream.AccessException, CodingException
+            BitCursor inStream) throws BitCursor.AccessException, CodingException
     {
         if (inStream.available() < 13) {
             throw new CodingException("SERVICE_CATEGORY_PROGRAM_DATA decode failed: only "
@@ -1781,11 +1814,12 @@ public final class BearerData {
      * CMAS message decoding.
      * (See TIA-1149-0-1, CMAS over CDMA)
      *
+     * @param inStream cursor to re-point at the user data payload
      * @param serviceCategory is the service category from the SMS envelope
      */
-    private static void decodeCmasUserData(BearerData bData, int serviceCategory)
-            throws BitwiseInputStream.AccessException, CodingException {
-        BitwiseInputStream inStream = new BitwiseInputStream(bData.userData.payload);
+    private static void decodeCmasUserData(BearerData bData, BitCursor inStream,
+            int serviceCategory) throws BitCursor.AccessException, CodingException {
+        inStream.wrap(bData.userData.payload);
         if (inStream.available() < 8) {
             throw new CodingException("emergency CB with no CMAE_protocol_version");
         }
@@ -1869,6 +1903,26 @@ public final class BearerData {
         return decode(smsData, 0);
     }
 
+    /**
+     * Decode the user data text left undecoded by
+     * {@link #decode(byte[], int, boolean)}.  Does nothing if there is none.
+     *
+     * @return false if the text could not be decoded, in which case
+     *         userData.payloadStr stays null
+     */
+    public boolean decodeDeferredUserDataText() {
+        if (mDeferredUserDataOffset < 0) return true;
+        int offset = mDeferredUserDataOffset;
+        mDeferredUserDataOffset = -1;
+        try {
+            decodeUserDataText(userData, offset);
+            return true;
+        } catch (CodingException ex) {
+            Rlog.e(LOG_TAG, "BearerData user data decode failed: " + ex);
+            return false;
+        }
+    }
+
     private static boolean isCmasAlertCategory(int category) {
         return category >= SmsEnvelope.SERVICE_CATEGORY_CMAS_PRESIDENTIAL_LEVEL_ALERT
                 && category <= SmsEnvelope.SERVICE_CATEGORY_CMAS_LAST_RESERVED_VALUE;
@@ -1883,8 +1937,28 @@ public final class BearerData {
      * @return an instance of BearerData.
      */
     public static BearerData decode(byte[] smsData, int serviceCategory) {
+        return decode(smsData, serviceCategory, false);
+    }
+
+    /**
+     * Create BearerData object from serialized representation, optionally leaving
+     * the user data text undecoded.
+     *
+     * With {@code deferUserDataText} set, the user data header and raw payload are
+     * still decoded, but userData.payloadStr stays null until
+     * {@link #decodeDeferredUserDataText()} is called.  This is meant for messages
+     * whose text is normally never looked at, e.g. WAP and provisioning SMS.  CMAS
+     * and IS-91 user data is always decoded, since it carries header fields.
+     *
+     * @param smsData byte array of raw encoded SMS bearer data.
+     * @param serviceCategory the envelope service category (for CMAS alert handling)
+     * @param deferUserDataText true to skip decoding the user data text
+     * @return an instance of BearerData.
+     */
+    public static BearerData decode(byte[] smsData, int serviceCategory,
+            boolean deferUserDataText) {
         try {
-            BitwiseInputStream inStream = new BitwiseInputStream(smsData);
+            BitCursor inStream = new BitCursor(smsData);
             BearerData bData = new BearerData();
             int foundSubparamMask = 0;
             while (inStream.available() > 0) {
@@ -1975,7 +2049,7 @@ public final class BearerData {
             }
             if (bData.userData != null) {
                 if (isCmasAlertCategory(serviceCategory)) {
-                    decodeCmasUserData(bData, serviceCategory);
+                    decodeCmasUserData(bData, inStream, serviceCategory);
                 } else if (bData.userData.msgEncoding == UserData.ENCODING_IS91_EXTENDED_PROTOCOL) {
                     if ((foundSubparamMask ^
                              (1 << SUBPARAM_MESSAGE_IDENTIFIER) ^
@@ -1984,13 +2058,16 @@ public final class BearerData {
                         Rlog.e(LOG_TAG, "IS-91 must occur without extra subparams (" +
                               foundSubparamMask + ")");
                     }
-                    decodeIs91(bData);
+                    decodeIs91(bData, inStream);
+                } else if (deferUserDataText) {
+                    bData.mDeferredUserDataOffset =
+                            decodeUserDataHeader(bData.userData, bData.hasUserDataHeader);
                 } else {
                     decodeUserDataPayload(bData.userData, bData.hasUserDataHeader);
                 }
             }
             return bData;
-        } catch (BitwiseInputStream.AccessException ex) {
+        } catch (BitCursor.AccessException ex) {
             Rlog.e(LOG_TAG, "BearerData decode failed: " + ex);
         } catch (CodingException ex) {
             Rlog.e(LOG_TAG, "BearerData decode failed: " + ex);
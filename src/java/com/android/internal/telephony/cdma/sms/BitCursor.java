@@ -0,0 +1,260 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.cdma.sms;
+
+import java.util.Arrays;
+
+/**
+ * Bit-granular reader and writer over a single backing array, used by the
+ * CDMA envelope and bearer data codecs.
+ *
+ * Unlike the BitwiseInputStream/BitwiseOutputStream pair, one cursor can be
+ * re-pointed at another window of the same PDU with {@link #wrap} and an
+ * encoder cursor can be {@link #reset} and reused, so decoding a message no
+ * longer allocates a stream (and a copy of the data) per subparameter.
+ *
+ * Reads and writes are MSB first and may be up to 32 bits wide.  Byte arrays
+ * read or written with a bit count that is not a multiple of 8 keep the
+ * trailing bits in the high-order end of the last byte, as the stream classes
+ * did.
+ *
+ * {@hide}
+ */
+public final class BitCursor {
+
+    /** Thrown on reads or skips past the end of the cursor window. */
+    public static class AccessException extends Exception {
+        public AccessException(String s) {
+            super("BitCursor access failed: " + s);
+        }
+    }
+
+    private byte[] mBuf;
+    /** Bit position of the window start within mBuf. */
+    private int mStart;
+    /** Current absolute bit position within mBuf. */
+    private int mPos;
+    /** Absolute bit position of the window end within mBuf. */
+    private int mEnd;
+    /** True for encoder cursors, which grow their buffer instead of failing. */
+    private final boolean mGrowable;
+
+    /**
+     * Create a read cursor over the whole of {@code buf}.
+     */
+    public BitCursor(byte[] buf) {
+        mGrowable = false;
+        wrap(buf, 0, buf.length);
+    }
+
+    /**
+     * Create an empty, growable write cursor.
+     *
+     * @param initialCapacity starting buffer size in bytes
+     */
+    public BitCursor(int initialCapacity) {
+        mGrowable = true;
+        mBuf = new byte[Math.max(initialCapacity, 1)];
+        mStart = 0;
+        mPos = 0;
+        mEnd = mBuf.length << 3;
+    }
+
+    /**
+     * Point this read cursor at {@code length} bytes of {@code buf} starting at
+     * byte {@code offset}.  The backing array is shared, not copied.
+     *
+     * @return this cursor
+     */
+    public BitCursor wrap(byte[] buf, int offset, int length) {
+        if (mGrowable) {
+            throw new IllegalStateException("wrap() on a write cursor");
+        }
+        if (offset < 0 || length < 0 || offset + length > buf.length) {
+            throw new IndexOutOfBoundsException("wrap(" + offset + ", " + length
+                    + ") on " + buf.length + " bytes");
+        }
+        mBuf = buf;
+        mStart = offset << 3;
+        mPos = mStart;
+        mEnd = (offset + length) << 3;
+        return this;
+    }
+
+    /**
+     * Point this read cursor at the whole of {@code buf}.
+     *
+     * @return this cursor
+     */
+    public BitCursor wrap(byte[] buf) {
+        return wrap(buf, 0, buf.length);
+    }
+
+    /**
+     * Clear a write cursor for reuse, keeping its buffer.
+     */
+    public void reset() {
+        if (!mGrowable) {
+            throw new IllegalStateException("reset() on a read cursor");
+        }
+        // Writes OR bits into place, so the buffer has to be zeroed again.
+        Arrays.fill(mBuf, (byte) 0);
+        mPos = 0;
+    }
+
+    /**
+     * Return the number of bits left before the end of the window.
+     */
+    public int available() {
+        return mEnd - mPos;
+    }
+
+    /**
+     * Return the current position in bits, relative to the window start.
+     */
+    public int position() {
+        return mPos - mStart;
+    }
+
+    /**
+     * Read some data and increment the current position.
+     *
+     * @param bits the amount of data to read (0 to 32)
+     * @return the data as the low-order {@code bits} bits of an int
+     */
+    public int read(int bits) throws AccessException {
+        if ((bits < 0) || (bits > 32) || (bits > mEnd - mPos)) {
+            throw new AccessException("illegal read (pos " + position() + ", end "
+                    + (mEnd - mStart) + ", bits " + bits + ")");
+        }
+        int data = 0;
+        while (bits > 0) {
+            int bitOffset = mPos & 0x07;
+            int chunk = Math.min(8 - bitOffset, bits);
+            int b = (mBuf[mPos >>> 3] & 0xFF) >>> (8 - bitOffset - chunk);
+            data = (data << chunk) | (b & ((1 << chunk) - 1));
+            mPos += chunk;
+            bits -= chunk;
+        }
+        return data;
+    }
+
+    /**
+     * Read data in bulk into a new byte array and increment the current
+     * position.  A byte-aligned cursor copies straight out of the backing
+     * array.
+     *
+     * @param bits the amount of data to read
+     * @return newly allocated byte array of ceil(bits / 8) bytes
+     */
+    public byte[] readByteArray(int bits) throws AccessException {
+        if ((bits < 0) || (bits > mEnd - mPos)) {
+            throw new AccessException("illegal read (pos " + position() + ", end "
+                    + (mEnd - mStart) + ", bits " + bits + ")");
+        }
+        int bytes = (bits + 7) >>> 3;
+        byte[] arr = new byte[bytes];
+        int tailBits = bits & 0x07;
+        if ((mPos & 0x07) == 0) {
+            System.arraycopy(mBuf, mPos >>> 3, arr, 0, bytes);
+            if (tailBits != 0) {
+                arr[bytes - 1] &= (byte) (0xFF << (8 - tailBits));
+            }
+            mPos += bits;
+        } else {
+            for (int i = 0; i < bytes; i++) {
+                int increment = Math.min(8, bits - (i << 3));
+                arr[i] = (byte) (read(increment) << (8 - increment));
+            }
+        }
+        return arr;
+    }
+
+    /**
+     * Move the current position by {@code bits}, which may be negative as long
+     * as the position stays inside the window.  Write cursors grow as needed,
+     * leaving the skipped bits zero.
+     */
+    public void skip(int bits) throws AccessException {
+        if (mGrowable) {
+            ensureCapacity(bits);
+        }
+        if ((mPos + bits > mEnd) || (mPos + bits < mStart)) {
+            throw new AccessException("illegal skip (pos " + position() + ", end "
+                    + (mEnd - mStart) + ", bits " + bits + ")");
+        }
+        mPos += bits;
+    }
+
+    /**
+     * Write some data and increment the current position.
+     *
+     * @param bits the amount of data to write (0 to 32)
+     * @param data the data, in the low-order {@code bits} bits
+     */
+    public void write(int bits, int data) throws AccessException {
+        if ((bits < 0) || (bits > 32)) {
+            throw new AccessException("illegal write (" + bits + " bits)");
+        }
+        if (mGrowable) {
+            ensureCapacity(bits);
+        } else if (bits > mEnd - mPos) {
+            throw new AccessException("illegal write (pos " + position() + ", end "
+                    + (mEnd - mStart) + ", bits " + bits + ")");
+        }
+        while (bits > 0) {
+            int bitOffset = mPos & 0x07;
+            int chunk = Math.min(8 - bitOffset, bits);
+            int v = (data >>> (bits - chunk)) & ((1 << chunk) - 1);
+            mBuf[mPos >>> 3] |= (byte) (v << (8 - bitOffset - chunk));
+            mPos += chunk;
+            bits -= chunk;
+        }
+    }
+
+    /**
+     * Write data in bulk from a byte array and increment the current position.
+     *
+     * @param bits the amount of data to write
+     * @param arr the byte array containing data to be written
+     */
+    public void writeByteArray(int bits, byte[] arr) throws AccessException {
+        for (int i = 0; i < arr.length; i++) {
+            int increment = Math.min(8, bits - (i << 3));
+            if (increment > 0) {
+                write(increment, (arr[i] & 0xFF) >>> (8 - increment));
+            }
+        }
+    }
+
+    /**
+     * Return a copy of the bytes between the window start and the current
+     * position, including a trailing partial byte.
+     */
+    public byte[] toByteArray() {
+        int from = mStart >>> 3;
+        int to = (mPos + 7) >>> 3;
+        return Arrays.copyOfRange(mBuf, from, to);
+    }
+
+    private void ensureCapacity(int bits) {
+        if (mPos + bits <= mEnd) return;
+        int needed = (mPos + bits + 7) >>> 3;
+        mBuf = Arrays.copyOf(mBuf, Math.max(needed, mBuf.length * 2));
+        mEnd = mBuf.length << 3;
+    }
+}
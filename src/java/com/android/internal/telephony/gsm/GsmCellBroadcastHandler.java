@@ -70,7 +70,8 @@ public class GsmCellBroadcastHandler extends CellBroadcastHandler {
      * Handle 3GPP-format Cell Broadcast messages sent from radio.
      *
      * @param message the message to process
-     * @return true if an ordered broadcast was sent; false on failure
+     * @return true if an ordered broadcast was sent; false on failure, or for a duplicate or
+     *         a page of an incomplete message
      */
     @Override
     protected boolean handleSmsMessage(Message message) {
@@ -80,6 +81,7 @@ public class GsmCellBroadcastHandler extends CellBroadcastHandler {
                 handleBroadcastSms(cbMessage);
                 return true;
             }
+            return false;
         }
         return super.handleSmsMessage(message);
     }
@@ -139,6 +141,14 @@ public class GsmCellBroadcastHandler extends CellBroadcastHandler {
                     break;
             }
 
+            // Drop pages of a message that was already dispatched here before they are
+            // reassembled; the network repeats broadcasts every few seconds.
+            if (isDuplicate(header.getSerialNumber(), header.getServiceCategory(), location,
+                    header.isEtwsPrimaryNotification())) {
+                if (VDBG) log("Dropping duplicate SMS CB page: " + header);
+                return null;
+            }
+
             byte[][] pdus;
             int pageCount = header.getNumberOfPages();
             if (pageCount > 1) {
@@ -186,8 +196,14 @@ public class GsmCellBroadcastHandler extends CellBroadcastHandler {
                     iter.remove();
                 }
             }
+            evictDuplicatesOutsideArea(plmn, lac, cid);
 
-            return GsmSmsCbMessage.createSmsCbMessage(header, location, pdus);
+            SmsCbMessage cbMessage = GsmSmsCbMessage.createSmsCbMessage(header, location, pdus);
+            if (cbMessage != null) {
+                addToDuplicateCache(header.getSerialNumber(), header.getServiceCategory(),
+                        location, header.isEtwsPrimaryNotification());
+            }
+            return cbMessage;
 
         } catch (RuntimeException e) {
             loge("Error in decoding SMS CB pdu", e);
@@ -89,6 +89,27 @@ public class SmsMessage extends SmsMessageBase {
 
     private int mVoiceMailCount = 0;
 
+    /** Offset of the user data payload, after any header, within mPdu. */
+    private int mUserDataOffset;
+
+    /** Length in bytes of the user data payload within mPdu. */
+    private int mUserDataLength;
+
+    /*
+     * A lazily parsed SMS-DELIVER (see createFromPdu(byte[], boolean)) only
+     * decodes the fixed-size fields and the user data header up front.  The parser is kept, positioned
+     * at the user data, along with what is needed to decode the rest on first
+     * access.
+     */
+    private PduParser mDeferredParser;
+    private boolean mScAddressDeferred;
+    private int mDeferredAddressOffset = -1;
+    private int mDeferredTimestampOffset = -1;
+    private boolean mUserDataDeferred;
+    private boolean mMessageBodyDeferred;
+    private int mEncodingType;
+    private int mUserDataCount;
+
     public static class SubmitPdu extends SubmitPduBase {
     }
 
@@ -96,9 +117,28 @@ public class SmsMessage extends SmsMessageBase {
      * Create an SmsMessage from a raw PDU.
      */
     public static SmsMessage createFromPdu(byte[] pdu) {
+        return createFromPdu(pdu, false);
+    }
+
+    /**
+     * Create an SmsMessage from a raw PDU, optionally parsing it lazily.
+     *
+     * A lazily parsed SMS-DELIVER checks the PDU structure and decodes the
+     * fixed-size fields (PID, DCS, message class) and the user data header
+     * immediately, but leaves the SC and originating addresses, timestamp and
+     * message body until they are first asked for.  Fields that fail to decode
+     * at that point are left unset instead of failing the whole message.
+     * Other message types are always parsed eagerly.
+     *
+     * @param pdu the raw PDU
+     * @param lazy true to defer decoding of the variable-length fields
+     * @return the message, or null if the PDU could not be parsed
+     * @hide
+     */
+    public static SmsMessage createFromPdu(byte[] pdu, boolean lazy) {
         try {
             SmsMessage msg = new SmsMessage();
-            msg.parsePdu(pdu);
+            msg.parsePdu(pdu, lazy);
             return msg;
         } catch (RuntimeException ex) {
             Rlog.e(LOG_TAG, "SMS PDU parsing failed: ", ex);
@@ -129,7 +169,9 @@ public class SmsMessage extends SmsMessageBase {
     public static SmsMessage newFromCMT(String[] lines) {
         try {
             SmsMessage msg = new SmsMessage();
-            msg.parsePdu(IccUtils.hexStringToBytes(lines[1]));
+            // Incoming messages are mostly routed on header fields; the body is
+            // only decoded if something asks for it.
+            msg.parsePdu(IccUtils.hexStringToBytes(lines[1]), true);
             return msg;
         } catch (RuntimeException ex) {
             Rlog.e(LOG_TAG, "SMS PDU parsing failed: ", ex);
@@ -141,7 +183,7 @@ public class SmsMessage extends SmsMessageBase {
     public static SmsMessage newFromCDS(String line) {
         try {
             SmsMessage msg = new SmsMessage();
-            msg.parsePdu(IccUtils.hexStringToBytes(line));
+            msg.parsePdu(IccUtils.hexStringToBytes(line), false);
             return msg;
         } catch (RuntimeException ex) {
             Rlog.e(LOG_TAG, "CDS SMS PDU parsing failed: ", ex);
@@ -182,7 +224,7 @@ public class SmsMessage extends SmsMessageBase {
             // should still parse correctly.
             byte[] pdu = new byte[size];
             System.arraycopy(data, 1, pdu, 0, size);
-            msg.parsePdu(pdu);
+            msg.parsePdu(pdu, false);
             return msg;
         } catch (RuntimeException ex) {
             Rlog.e(LOG_TAG, "SMS PDU parsing failed: ", ex);
@@ -501,6 +543,10 @@ public class SmsMessage extends SmsMessageBase {
         SmsHeader mUserDataHeader;
         byte[] mUserData;
         int mUserDataSeptetPadding;
+        int mUserDataHeaderOffset;
+        int mUserDataHeaderLength;
+        int mUserDataOffset;
+        int mUserDataLength;
 
         PduParser(byte[] pdu) {
             mPdu = pdu;
@@ -538,6 +584,14 @@ public class SmsMessage extends SmsMessageBase {
             return ret;
         }
 
+        /**
+         * Step over the SC address without decoding it.
+         */
+        void skipSCAddress() {
+            int len = getByte();
+            mCur += len;
+        }
+
         /**
          * returns non-sign-extended byte value
          */
@@ -572,6 +626,46 @@ public class SmsMessage extends SmsMessageBase {
             return ret;
         }
 
+        /**
+         * Step over an address without decoding it, rejecting the same
+         * malformed addresses that {@link #getAddress()} would.
+         *
+         * @return the offset of the address within the PDU
+         */
+        int skipAddress() {
+            int offset = mCur;
+            int addressLength = mPdu[mCur] & 0xff;
+            int lengthBytes = 2 + (addressLength + 1) / 2;
+
+            if (offset + lengthBytes > mPdu.length) {
+                throw new RuntimeException("Address length " + lengthBytes
+                        + " exceeds PDU at offset " + offset);
+            }
+            // TOA must have its high bit set, see GsmSmsAddress
+            if ((mPdu[offset + 1] & 0x80) != 0x80) {
+                throw new RuntimeException("Invalid TOA - high bit must be set. toa = "
+                        + (mPdu[offset + 1] & 0xff));
+            }
+
+            mCur += lengthBytes;
+
+            return offset;
+        }
+
+        /**
+         * Step over an SC timestamp without decoding it.
+         *
+         * @return the offset of the timestamp within the PDU
+         */
+        int skipSCTimestamp() {
+            int offset = mCur;
+            if (offset + 7 > mPdu.length) {
+                throw new RuntimeException("SC timestamp exceeds PDU at offset " + offset);
+            }
+            mCur += 7;
+            return offset;
+        }
+
         /**
          * Parses an SC timestamp and returns a currentTimeMillis()-style
          * timestamp
@@ -622,6 +716,22 @@ public class SmsMessage extends SmsMessageBase {
          * @return the number of septets or octets in the user data payload
          */
         int constructUserData(boolean hasUserDataHeader, boolean dataInSeptets) {
+            int count = locateUserData(hasUserDataHeader, dataInSeptets);
+            if (hasUserDataHeader) {
+                parseUserDataHeader();
+            }
+            mUserData = new byte[mUserDataLength];
+            System.arraycopy(mPdu, mUserDataOffset, mUserData, 0, mUserDataLength);
+            return count;
+        }
+
+        /**
+         * Like {@link #constructUserData}, but only records where the header
+         * and payload are, without parsing or copying either of them.
+         *
+         * @return the number of septets or octets in the user data payload
+         */
+        int locateUserData(boolean hasUserDataHeader, boolean dataInSeptets) {
             int offset = mCur;
             int userDataLength = mPdu[offset++] & 0xff;
             int headerSeptets = 0;
@@ -630,9 +740,12 @@ public class SmsMessage extends SmsMessageBase {
             if (hasUserDataHeader) {
                 userDataHeaderLength = mPdu[offset++] & 0xff;
 
-                byte[] udh = new byte[userDataHeaderLength];
-                System.arraycopy(mPdu, offset, udh, 0, userDataHeaderLength);
-                mUserDataHeader = SmsHeader.fromByteArray(udh);
+                if (offset + userDataHeaderLength > mPdu.length) {
+                    throw new RuntimeException("User data header length "
+                            + userDataHeaderLength + " exceeds PDU at offset " + offset);
+                }
+                mUserDataHeaderOffset = offset;
+                mUserDataHeaderLength = userDataHeaderLength;
                 offset += userDataHeaderLength;
 
                 int headerBits = (userDataHeaderLength + 1) * 8;
@@ -660,8 +773,12 @@ public class SmsMessage extends SmsMessageBase {
                 }
             }
 
-            mUserData = new byte[bufferLen];
-            System.arraycopy(mPdu, offset, mUserData, 0, mUserData.length);
+            if (offset + bufferLen > mPdu.length) {
+                throw new RuntimeException("User data length " + bufferLen
+                        + " exceeds PDU at offset " + offset);
+            }
+            mUserDataOffset = offset;
+            mUserDataLength = bufferLen;
             mCur = offset;
 
             if (dataInSeptets) {
@@ -671,10 +788,20 @@ public class SmsMessage extends SmsMessageBase {
                 return count < 0 ? 0 : count;
             } else {
                 // Return the number of octets
-                return mUserData.length;
+                return bufferLen;
             }
         }
 
+        /**
+         * Parses the user data header found by {@link #locateUserData}.
+         */
+        SmsHeader parseUserDataHeader() {
+            byte[] udh = new byte[mUserDataHeaderLength];
+            System.arraycopy(mPdu, mUserDataHeaderOffset, udh, 0, mUserDataHeaderLength);
+            mUserDataHeader = SmsHeader.fromByteArray(udh);
+            return mUserDataHeader;
+        }
+
         /**
          * Returns the user data payload, not including the headers
          *
@@ -826,6 +953,7 @@ public class SmsMessage extends SmsMessageBase {
     /** {@inheritDoc} */
     @Override
     public boolean isCphsMwiMessage() {
+        decodeDeferredOriginatingAddress();
         return ((GsmSmsAddress) mOriginatingAddress).isCphsVoiceMessageClear()
                 || ((GsmSmsAddress) mOriginatingAddress).isCphsVoiceMessageSet();
     }
@@ -833,6 +961,7 @@ public class SmsMessage extends SmsMessageBase {
     /** {@inheritDoc} */
     @Override
     public boolean isMWIClearMessage() {
+        decodeDeferredOriginatingAddress();
         if (mIsMwi && !mMwiSense) {
             return true;
         }
@@ -844,6 +973,7 @@ public class SmsMessage extends SmsMessageBase {
     /** {@inheritDoc} */
     @Override
     public boolean isMWISetMessage() {
+        decodeDeferredOriginatingAddress();
         if (mIsMwi && mMwiSense) {
             return true;
         }
@@ -896,19 +1026,20 @@ public class SmsMessage extends SmsMessageBase {
      * hex number (e.g. octet with integer value 42 is presented to TE as two
      * characters 2A (IRA 50 and 65))" ...in the case of cell broadcast,
      * something else...
+     *
+     * @param lazy true to defer decoding the variable-length fields of an
+     *        SMS-DELIVER, see {@link #createFromPdu(byte[], boolean)}
      */
-    private void parsePdu(byte[] pdu) {
+    private void parsePdu(byte[] pdu, boolean lazy) {
         mPdu = pdu;
         // Rlog.d(LOG_TAG, "raw sms message:");
         // Rlog.d(LOG_TAG, s);
 
         PduParser p = new PduParser(pdu);
 
-        mScAddress = p.getSCAddress();
-
-        if (mScAddress != null) {
-            if (VDBG) Rlog.d(LOG_TAG, "SMS SC address: " + mScAddress);
-        }
+        // Skip the SC address for now, the message type decides whether it
+        // is decoded here or on first access.
+        p.skipSCAddress();
 
         // TODO(mkf) support reply path, user data header indicator
 
@@ -917,13 +1048,26 @@ public class SmsMessage extends SmsMessageBase {
         int firstByte = p.getByte();
 
         mMti = firstByte & 0x3;
+
+        // Only SMS-DELIVER is parsed lazily.
+        lazy = lazy && (mMti == 0 || mMti == 3);
+        if (lazy) {
+            mScAddressDeferred = true;
+        } else {
+            mScAddress = new PduParser(pdu).getSCAddress();
+        }
+
+        if (mScAddress != null) {
+            if (VDBG) Rlog.d(LOG_TAG, "SMS SC address: " + mScAddress);
+        }
+
         switch (mMti) {
         // TP-Message-Type-Indicator
         // 9.2.3
         case 0:
         case 3: //GSM 03.40 9.2.3.1: MTI == 3 is Reserved.
                 //This should be processed in the same way as MTI == 0 (Deliver)
-            parseSmsDeliver(p, firstByte);
+            parseSmsDeliver(p, firstByte, lazy);
             break;
         case 1:
             parseSmsSubmit(p, firstByte);
@@ -981,16 +1125,20 @@ public class SmsMessage extends SmsMessageBase {
                 // TP-User-Data-Length (implies existence of TP-User-Data)
                 if ((extraParams & 0x04) != 0) {
                     boolean hasUserDataHeader = (firstByte & 0x40) == 0x40;
-                    parseUserData(p, hasUserDataHeader);
+                    parseUserData(p, hasUserDataHeader, false);
                 }
             }
         }
     }
 
-    private void parseSmsDeliver(PduParser p, int firstByte) {
+    private void parseSmsDeliver(PduParser p, int firstByte, boolean lazy) {
         mReplyPathPresent = (firstByte & 0x80) == 0x80;
 
-        mOriginatingAddress = p.getAddress();
+        if (lazy) {
+            mDeferredAddressOffset = p.skipAddress();
+        } else {
+            mOriginatingAddress = p.getAddress();
+        }
 
         if (mOriginatingAddress != null) {
             if (VDBG) Rlog.v(LOG_TAG, "SMS originating address: "
@@ -1010,13 +1158,17 @@ public class SmsMessage extends SmsMessageBase {
                     + " data coding scheme: " + mDataCodingScheme);
         }
 
-        mScTimeMillis = p.getSCTimestampMillis();
+        if (lazy) {
+            mDeferredTimestampOffset = p.skipSCTimestamp();
+        } else {
+            mScTimeMillis = p.getSCTimestampMillis();
+        }
 
         if (VDBG) Rlog.d(LOG_TAG, "SMS SC timestamp: " + mScTimeMillis);
 
         boolean hasUserDataHeader = (firstByte & 0x40) == 0x40;
 
-        parseUserData(p, hasUserDataHeader);
+        parseUserData(p, hasUserDataHeader, lazy);
     }
 
     /**
@@ -1074,7 +1226,7 @@ public class SmsMessage extends SmsMessageBase {
 
         boolean hasUserDataHeader = (firstByte & 0x40) == 0x40;
 
-        parseUserData(p, hasUserDataHeader);
+        parseUserData(p, hasUserDataHeader, false);
     }
 
     /**
@@ -1083,8 +1235,10 @@ public class SmsMessage extends SmsMessageBase {
      * @param p The current PduParser.
      * @param hasUserDataHeader Indicates whether a header is present in the
      *                          User Data.
+     * @param lazy true to only locate the header and payload, leaving them to
+     *             be decoded on first access
      */
-    private void parseUserData(PduParser p, boolean hasUserDataHeader) {
+    private void parseUserData(PduParser p, boolean hasUserDataHeader, boolean lazy) {
         boolean hasMessageClass = false;
         boolean userDataCompressed = false;
 
@@ -1192,12 +1346,59 @@ public class SmsMessage extends SmsMessageBase {
                     + (mDataCodingScheme & 0xff));
         }
 
+        if (!hasMessageClass) {
+            messageClass = MessageClass.UNKNOWN;
+        } else {
+            switch (mDataCodingScheme & 0x3) {
+            case 0:
+                messageClass = MessageClass.CLASS_0;
+                break;
+            case 1:
+                messageClass = MessageClass.CLASS_1;
+                break;
+            case 2:
+                messageClass = MessageClass.CLASS_2;
+                break;
+            case 3:
+                messageClass = MessageClass.CLASS_3;
+                break;
+            }
+        }
+
+        mEncodingType = encodingType;
+        if (lazy) {
+            mUserDataCount = p.locateUserData(hasUserDataHeader,
+                    encodingType == ENCODING_7BIT);
+            mUserDataOffset = p.mUserDataOffset;
+            mUserDataLength = p.mUserDataLength;
+            mDeferredParser = p;
+            // The header is small and routes the message, so it is parsed
+            // now; a malformed one must reject the message like the eager path.
+            if (hasUserDataHeader) {
+                mUserDataHeader = p.parseUserDataHeader();
+                parseUserDataHeaderMwi();
+            }
+            mUserDataDeferred = true;
+            mMessageBodyDeferred = true;
+            return;
+        }
+
         // set both the user data and the user data header.
-        int count = p.constructUserData(hasUserDataHeader,
+        mUserDataCount = p.constructUserData(hasUserDataHeader,
                 encodingType == ENCODING_7BIT);
+        mUserDataOffset = p.mUserDataOffset;
+        mUserDataLength = p.mUserDataLength;
         this.mUserData = p.getUserData();
         this.mUserDataHeader = p.getUserDataHeader();
 
+        parseUserDataHeaderMwi();
+        decodeMessageBody(p);
+    }
+
+    /**
+     * Applies any message waiting indication in the user data header.
+     */
+    private void parseUserDataHeaderMwi() {
         /*
          * Look for voice mail indication in TP_UDH TS23.040 9.2.3.24
          * ieid = 1 (0x1) (SPECIAL_SMS_MSG_IND)
@@ -1206,7 +1407,7 @@ public class SmsMessage extends SmsMessageBase {
          *                   = 0x80 (voice mail; store sms)
          * msg_count = 0x00 ..0xFF
          */
-        if (hasUserDataHeader && (mUserDataHeader.specialSmsMsgList.size() != 0)) {
+        if ((mUserDataHeader != null) && (mUserDataHeader.specialSmsMsgList.size() != 0)) {
             for (SmsHeader.SpecialSmsMsg msg : mUserDataHeader.specialSmsMsgList) {
                 int msgInd = msg.msgIndType & 0xff;
                 /*
@@ -1266,8 +1467,18 @@ public class SmsMessage extends SmsMessageBase {
                 }
             } // end of for
         } // end of if UDH
+    }
 
-        switch (encodingType) {
+    /**
+     * Decodes the message body from the user data payload.
+     *
+     * @param p A PduParser, cued to the start of the user data payload.
+     */
+    private void decodeMessageBody(PduParser p) {
+        int count = mUserDataCount;
+        boolean hasUserDataHeader = mUserDataHeader != null;
+
+        switch (mEncodingType) {
         case ENCODING_UNKNOWN:
             mMessageBody = null;
             break;
@@ -1304,24 +1515,139 @@ public class SmsMessage extends SmsMessageBase {
         if (mMessageBody != null) {
             parseMessageBody();
         }
+    }
 
-        if (!hasMessageClass) {
-            messageClass = MessageClass.UNKNOWN;
-        } else {
-            switch (mDataCodingScheme & 0x3) {
-            case 0:
-                messageClass = MessageClass.CLASS_0;
-                break;
-            case 1:
-                messageClass = MessageClass.CLASS_1;
-                break;
-            case 2:
-                messageClass = MessageClass.CLASS_2;
-                break;
-            case 3:
-                messageClass = MessageClass.CLASS_3;
-                break;
-            }
+    /** {@inheritDoc} */
+    @Override
+    public String getServiceCenterAddress() {
+        if (mScAddressDeferred) {
+            mScAddressDeferred = false;
+            mDeferredParser.mCur = 0;
+            mScAddress = mDeferredParser.getSCAddress();
+        }
+        return super.getServiceCenterAddress();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getOriginatingAddress() {
+        decodeDeferredOriginatingAddress();
+        return super.getOriginatingAddress();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getDisplayOriginatingAddress() {
+        decodeDeferredMessageBody();
+        return super.getDisplayOriginatingAddress();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getMessageBody() {
+        decodeDeferredMessageBody();
+        return super.getMessageBody();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getDisplayMessageBody() {
+        decodeDeferredMessageBody();
+        return super.getDisplayMessageBody();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public boolean isEmail() {
+        decodeDeferredMessageBody();
+        return super.isEmail();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getEmailBody() {
+        decodeDeferredMessageBody();
+        return super.getEmailBody();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getEmailFrom() {
+        decodeDeferredMessageBody();
+        return super.getEmailFrom();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public String getPseudoSubject() {
+        decodeDeferredMessageBody();
+        return super.getPseudoSubject();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public long getTimestampMillis() {
+        if (mDeferredTimestampOffset >= 0) {
+            mDeferredParser.mCur = mDeferredTimestampOffset;
+            mDeferredTimestampOffset = -1;
+            mScTimeMillis = mDeferredParser.getSCTimestampMillis();
+        }
+        return super.getTimestampMillis();
+    }
+
+    /** {@inheritDoc} */
+    @Override
+    public byte[] getUserData() {
+        if (mUserDataDeferred) {
+            mUserDataDeferred = false;
+            mUserData = new byte[mUserDataLength];
+            System.arraycopy(mPdu, mUserDataOffset, mUserData, 0, mUserDataLength);
+        }
+        return super.getUserData();
+    }
+
+    /**
+     * Returns the offset of the user data payload, not including the header,
+     * within {@link #getPdu()}.  Together with {@link #getUserDataLength()}
+     * this lets callers read the payload in place rather than through the
+     * copy returned by {@link #getUserData()}.
+     * @hide
+     */
+    public int getUserDataOffset() {
+        return mUserDataOffset;
+    }
+
+    /**
+     * Returns the length in bytes of the user data payload within
+     * {@link #getPdu()}.
+     * @hide
+     */
+    public int getUserDataLength() {
+        return mUserDataLength;
+    }
+
+    private void decodeDeferredOriginatingAddress() {
+        if (mDeferredAddressOffset < 0) return;
+        mDeferredParser.mCur = mDeferredAddressOffset;
+        mDeferredAddressOffset = -1;
+        try {
+            mOriginatingAddress = mDeferredParser.getAddress();
+        } catch (RuntimeException ex) {
+            Rlog.e(LOG_TAG, "Deferred originating address decode failed: ", ex);
+        }
+    }
+
+    private void decodeDeferredMessageBody() {
+        if (!mMessageBodyDeferred) return;
+        mMessageBodyDeferred = false;
+        // The email gateway check in parseMessageBody() needs the
+        // originating address.
+        decodeDeferredOriginatingAddress();
+        mDeferredParser.mCur = mUserDataOffset;
+        try {
+            decodeMessageBody(mDeferredParser);
+        } catch (RuntimeException ex) {
+            Rlog.e(LOG_TAG, "Deferred message body decode failed: ", ex);
         }
     }
 
@@ -1345,6 +1671,7 @@ public class SmsMessage extends SmsMessageBase {
     }
 
     public int getNumOfVoicemails() {
+        decodeDeferredOriginatingAddress();
         /*
          * Order of priority if multiple indications are present is 1.UDH,
          *      2.DCS, 3.CPHS.
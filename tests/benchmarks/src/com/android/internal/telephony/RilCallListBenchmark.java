@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+
+import com.google.caliper.Param;
+
+/**
+ * Throughput of decoding GET_CURRENT_CALLS responses.
+ */
+public class RilCallListBenchmark extends RilDecodeBenchmarkBase {
+    /** Number of calls in GET_CURRENT_CALLS responses. */
+    @Param({"1", "7", "19"})
+    int numCalls;
+
+    private Parcel mCallList;
+
+    @Override
+    void createPayloads() {
+        mCallList = makeCallList(numCalls);
+    }
+
+    @Override
+    void recyclePayloads() {
+        mCallList.recycle();
+    }
+
+    @Override
+    String describeParams() {
+        return " numCalls=" + numCalls;
+    }
+
+    public void timeResponseCallList(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mCallList.setDataPosition(0);
+            mRil.callList(mCallList);
+        }
+        addReps(reps);
+    }
+
+    // Payload follows the serialization in libril's ril.cpp
+
+    private static Parcel makeCallList(int num) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(num);
+        for (int i = 0; i < num; i++) {
+            p.writeInt(i == 0 ? 0 : 1);         // state: ACTIVE, then HOLDING
+            p.writeInt(i + 1);                  // index
+            p.writeInt(145);                    // toa
+            p.writeInt(num > 1 ? 1 : 0);        // isMpty
+            p.writeInt(i % 2);                  // isMT
+            p.writeInt(0);                      // als
+            p.writeInt(1);                      // isVoice
+            p.writeInt(0);                      // isVoicePrivacy
+            p.writeString("+1650555" + (1000 + i));
+            p.writeInt(0);                      // numberPresentation
+            p.writeString("Caller " + i);
+            p.writeInt(0);                      // namePresentation
+            p.writeInt(0);                      // no UUS info
+        }
+        return p;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.telephony.CellIdentityGsm;
+import android.telephony.CellIdentityLte;
+import android.telephony.CellIdentityWcdma;
+import android.telephony.CellInfo;
+import android.telephony.CellInfoGsm;
+import android.telephony.CellInfoLte;
+import android.telephony.CellInfoWcdma;
+import android.telephony.CellSignalStrengthGsm;
+import android.telephony.CellSignalStrengthLte;
+import android.telephony.CellSignalStrengthWcdma;
+
+import com.google.caliper.Param;
+
+/**
+ * Throughput of decoding cell info lists.
+ */
+public class RilCellInfoBenchmark extends RilDecodeBenchmarkBase {
+    /** Radio technology of the cells in cell info lists. */
+    @Param({"LTE", "WCDMA", "GSM", "MIXED"})
+    String cellMix;
+
+    private Parcel mCellInfoList;
+
+    @Override
+    void createPayloads() {
+        mCellInfoList = makeCellInfoList(cellMix, 8);
+    }
+
+    @Override
+    void recyclePayloads() {
+        mCellInfoList.recycle();
+    }
+
+    @Override
+    String describeParams() {
+        return " cellMix=" + cellMix;
+    }
+
+    public void timeResponseCellInfoList(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mCellInfoList.setDataPosition(0);
+            mRil.cellInfoList(mCellInfoList);
+        }
+        addReps(reps);
+    }
+
+    private static CellInfo makeCell(String rat, int i) {
+        CellInfo info;
+        if ("LTE".equals(rat)) {
+            CellInfoLte lte = new CellInfoLte();
+            lte.setCellIdentity(new CellIdentityLte(310, 260, 0x1a2b300 + i, 100 + i, 0x5a1));
+            lte.setCellSignalStrength(new CellSignalStrengthLte(25, 97 + i, 9, 120, 15, 3));
+            info = lte;
+        } else if ("WCDMA".equals(rat)) {
+            CellInfoWcdma wcdma = new CellInfoWcdma();
+            wcdma.setCellIdentity(new CellIdentityWcdma(310, 260, 0x4d2, 0x2a0001 + i, 200 + i));
+            wcdma.setCellSignalStrength(new CellSignalStrengthWcdma(15 + i % 5, 99));
+            info = wcdma;
+        } else {
+            CellInfoGsm gsm = new CellInfoGsm();
+            gsm.setCellIdentity(new CellIdentityGsm(310, 260, 0x4d2, 0x3001 + i));
+            gsm.setCellSignalStrength(new CellSignalStrengthGsm(12 + i % 5, 99));
+            info = gsm;
+        }
+        info.setRegistered(i == 0);
+        info.setTimeStamp(123456789L + i);
+        return info;
+    }
+
+    private static Parcel makeCellInfoList(String mix, int num) {
+        String[] rats = { "LTE", "WCDMA", "GSM" };
+        Parcel p = Parcel.obtain();
+        p.writeInt(num);
+        for (int i = 0; i < num; i++) {
+            String rat = "MIXED".equals(mix) ? rats[i % rats.length] : mix;
+            makeCell(rat, i).writeToParcel(p, 0);
+        }
+        return p;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+
+/**
+ * Throughput of the RIL response decoders whose payloads do not vary with
+ * call count, cell mix or SIM configuration. See RilCallListBenchmark,
+ * RilCellInfoBenchmark and RilMultiSimDecodeBenchmark for the others.
+ */
+public class RilDecodeBenchmark extends RilDecodeBenchmarkBase {
+    private Parcel mSignalStrength;
+    private Parcel mIccIo;
+    private Parcel mStrings;
+
+    @Override
+    void createPayloads() {
+        mSignalStrength = makeSignalStrength();
+        mIccIo = makeIccIo();
+        mStrings = makeStrings();
+    }
+
+    @Override
+    void recyclePayloads() {
+        mSignalStrength.recycle();
+        mIccIo.recycle();
+        mStrings.recycle();
+    }
+
+    public void timeResponseSignalStrength(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mSignalStrength.setDataPosition(0);
+            mRil.signalStrength(mSignalStrength);
+        }
+        addReps(reps);
+    }
+
+    public void timeResponseICC_IO(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mIccIo.setDataPosition(0);
+            mRil.iccIo(mIccIo);
+        }
+        addReps(reps);
+    }
+
+    public void timeResponseStrings(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mStrings.setDataPosition(0);
+            mRil.strings(mStrings);
+        }
+        addReps(reps);
+    }
+
+    // Payloads below follow the serialization in libril's ril.cpp
+
+    private static Parcel makeSignalStrength() {
+        Parcel p = Parcel.obtain();
+        p.writeInt(19);     // gsm signal strength
+        p.writeInt(99);     // gsm bit error rate
+        p.writeInt(-1);     // cdma dbm
+        p.writeInt(-1);     // cdma ecio
+        p.writeInt(-1);     // evdo dbm
+        p.writeInt(-1);     // evdo ecio
+        p.writeInt(-1);     // evdo snr
+        p.writeInt(25);     // lte signal strength
+        p.writeInt(97);     // lte rsrp
+        p.writeInt(9);      // lte rsrq
+        p.writeInt(120);    // lte rssnr
+        p.writeInt(15);     // lte cqi
+        p.writeInt(0x7fffffff); // td-scdma rscp
+        return p;
+    }
+
+    private static Parcel makeIccIo() {
+        Parcel p = Parcel.obtain();
+        p.writeInt(0x90);
+        p.writeInt(0x00);
+        // Typical ADN record of a phonebook read loop
+        p.writeString("4a6f686e20446f65ffffffffffff0791947106004034ffffffffffff");
+        return p;
+    }
+
+    private static Parcel makeStrings() {
+        Parcel p = Parcel.obtain();
+        // VOICE_REGISTRATION_STATE style response
+        p.writeStringArray(new String[] {
+            "1", "04d2", "01a2b301", "14", null, null, null, "0", null, null,
+            null, null, null, "0"
+        });
+        return p;
+    }
+}
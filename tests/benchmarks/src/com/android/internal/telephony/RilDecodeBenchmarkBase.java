@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Debug;
+import android.os.Parcel;
+import android.util.Log;
+
+import com.google.caliper.SimpleBenchmark;
+
+/**
+ * Common setup of the RIL response decoder benchmarks.
+ *
+ * Caliper reports time per op. Bytes allocated per op are measured with
+ * the runtime's per-thread allocation counter and logged under
+ * {@link #LOG_TAG} at the end of each measurement. Each subclass only
+ * declares the parameters its own payloads depend on, so Caliper does not
+ * repeat a measurement for values that make no difference to it.
+ */
+public abstract class RilDecodeBenchmarkBase extends SimpleBenchmark {
+    private static final String LOG_TAG = "RilDecodeBenchmark";
+
+    /**
+     * Exposes the protected decoders of an unconnected RIL. Calls go through
+     * the subclass since telephony-common lives in another class loader.
+     */
+    static class DecodeRil extends RIL {
+        DecodeRil(int instanceId) {
+            super(instanceId);
+        }
+
+        Object callList(Parcel p) { return responseCallList(p); }
+        Object signalStrength(Parcel p) { return responseSignalStrength(p); }
+        Object cellInfoList(Parcel p) { return responseCellInfoList(p); }
+        Object dataCallList(Parcel p) { return responseDataCallList(p); }
+        Object iccCardStatus(Parcel p) { return responseIccCardStatus(p); }
+        Object iccIo(Parcel p) { return responseICC_IO(p); }
+        Object strings(Parcel p) { return responseStrings(p); }
+    }
+
+    DecodeRil mRil;
+
+    private long mReps;
+
+    /** RIL instance the responses are decoded on. */
+    int getInstanceId() {
+        return 0;
+    }
+
+    /** Builds the payloads of one measurement. */
+    abstract void createPayloads();
+
+    /** Recycles the payloads built by {@link #createPayloads}. */
+    abstract void recyclePayloads();
+
+    /** Parameter values of the measurement, for the allocation log. */
+    String describeParams() {
+        return "";
+    }
+
+    /** Counts decoded responses, for bytes allocated per op. */
+    void addReps(int reps) {
+        mReps += reps;
+    }
+
+    @Override
+    protected void setUp() throws Exception {
+        mRil = new DecodeRil(getInstanceId());
+        createPayloads();
+
+        mReps = 0;
+        Debug.resetThreadAllocSize();
+        Debug.startAllocCounting();
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        Debug.stopAllocCounting();
+        if (mReps > 0) {
+            Log.i(LOG_TAG, getClass().getSimpleName() + describeParams() + " bytes/op="
+                    + (Debug.getThreadAllocSize() / mReps));
+        }
+        recyclePayloads();
+    }
+}
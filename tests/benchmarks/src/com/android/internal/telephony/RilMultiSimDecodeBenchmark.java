@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+
+import com.google.caliper.Param;
+
+/**
+ * Throughput of the decoders whose payloads grow with the SIM
+ * configuration: data call lists and ICC card status.
+ */
+public class RilMultiSimDecodeBenchmark extends RilDecodeBenchmarkBase {
+    /** 0 for single SIM; 1 decodes on the second RIL instance with a two-app card. */
+    @Param({"0", "1"})
+    int instanceId;
+
+    private Parcel mDataCallList;
+    private Parcel mIccCardStatus;
+
+    @Override
+    int getInstanceId() {
+        return instanceId;
+    }
+
+    @Override
+    void createPayloads() {
+        mDataCallList = makeDataCallList(instanceId + 2);
+        mIccCardStatus = makeIccCardStatus(instanceId + 1);
+    }
+
+    @Override
+    void recyclePayloads() {
+        mDataCallList.recycle();
+        mIccCardStatus.recycle();
+    }
+
+    @Override
+    String describeParams() {
+        return " instanceId=" + instanceId;
+    }
+
+    public void timeResponseDataCallList(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mDataCallList.setDataPosition(0);
+            mRil.dataCallList(mDataCallList);
+        }
+        addReps(reps);
+    }
+
+    public void timeResponseIccCardStatus(int reps) {
+        for (int i = 0; i < reps; i++) {
+            mIccCardStatus.setDataPosition(0);
+            mRil.iccCardStatus(mIccCardStatus);
+        }
+        addReps(reps);
+    }
+
+    // Payloads below follow the serialization in libril's ril.cpp
+
+    private static Parcel makeDataCallList(int num) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(11);                 // version
+        p.writeInt(num);
+        for (int i = 0; i < num; i++) {
+            p.writeInt(0);              // status
+            p.writeInt(-1);             // suggested retry time
+            p.writeInt(i);              // cid
+            p.writeInt(2);              // active, link up
+            p.writeString("IPV4V6");
+            p.writeString("rmnet_data" + i);
+            p.writeString("10.128.3." + (10 + i) + "/30 2001:db8:0:1::" + (10 + i) + "/64");
+            p.writeString("10.177.0.34 10.177.0.210 2001:4860:4860::8888");
+            p.writeString("10.128.3." + (9 + i) + " fe80::1");
+            p.writeString(i == 1 ? "2001:db8::10" : "");
+            p.writeInt(1430);           // mtu
+        }
+        return p;
+    }
+
+    private static Parcel makeIccCardStatus(int numApps) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(1);      // card state present
+        p.writeInt(0);      // universal pin state
+        p.writeInt(0);      // gsm/umts app index
+        p.writeInt(-1);     // cdma app index
+        p.writeInt(numApps > 1 ? 1 : -1); // ims app index
+        p.writeInt(numApps);
+        for (int i = 0; i < numApps; i++) {
+            p.writeInt(i == 0 ? 2 : 5);   // USIM, ISIM
+            p.writeInt(5);                // app state ready
+            p.writeInt(0);                // perso substate
+            p.writeString(i == 0 ? "a0000000871002ff49ff0589" : "a0000000871004ff49ff0589");
+            p.writeString(i == 0 ? "USIM" : "ISIM");
+            p.writeInt(0);                // pin1 replaced
+            p.writeInt(1);                // pin1 disabled
+            p.writeInt(1);                // pin2 disabled
+        }
+        return p;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.internal.telephony;
+
+import com.google.caliper.Param;
+import com.google.caliper.SimpleBenchmark;
+
+/**
+ * Cost of keeping the SMS length indicator of a compose box up to date while
+ * a draft is typed, one character per keystroke, with the national language
+ * tables enabled on the device.
+ *
+ * Each op types the whole draft: the full calculation measures every prefix
+ * with {@link com.android.internal.telephony.gsm.SmsMessage#calculateLength},
+ * the incremental one appends the character to a {@link SmsLengthCalculator}.
+ */
+public class SmsLengthBenchmark extends SimpleBenchmark {
+    /** Script of the draft. */
+    @Param({"LATIN", "TURKISH", "INDIC", "UCS2"})
+    String script;
+
+    /** Draft length in characters. */
+    @Param({"160", "640"})
+    int length;
+
+    private String mDraft;
+
+    @Override
+    protected void setUp() throws Exception {
+        String words;
+        if ("TURKISH".equals(script)) {
+            words = "\u00c7ok g\u00fczel bir g\u00fcn, \u015fimdi \u0131\u015f\u0131k ";
+        } else if ("INDIC".equals(script)) {
+            words = "\u0928\u092e\u0938\u094d\u0924\u0947 \u0926\u0941\u0928\u093f\u092f\u093e ";
+        } else if ("UCS2".equals(script)) {
+            words = "\u4f60\u597d\uff0c\u4e16\u754c\uff01";
+        } else {
+            words = "Meet at 7pm [gate B] ~ bring \u20ac20. ";
+        }
+        StringBuilder sb = new StringBuilder(length);
+        while (sb.length() < length) {
+            sb.append(words);
+        }
+        sb.setLength(length);
+        mDraft = sb.toString();
+    }
+
+    public void timeFullCalculation(int reps) {
+        for (int i = 0; i < reps; i++) {
+            for (int end = 1; end <= mDraft.length(); end++) {
+                com.android.internal.telephony.gsm.SmsMessage.calculateLength(
+                        mDraft.subSequence(0, end), false);
+            }
+        }
+    }
+
+    public void timeIncrementalCalculation(int reps) {
+        for (int i = 0; i < reps; i++) {
+            SmsLengthCalculator calc = new SmsLengthCalculator(false, false);
+            for (int end = 1; end <= mDraft.length(); end++) {
+                calc.append(mDraft.subSequence(end - 1, end));
+                calc.getTextEncodingDetails();
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.AsyncResult;
+import android.os.HandlerThread;
+import android.os.Message;
+import android.test.InstrumentationTestCase;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mockito;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Test AsyncCommands over a mocked CommandsInterface.
+ */
+public class AsyncCommandsTest extends InstrumentationTestCase {
+    private static final long TIMEOUT_MS = 1000;
+
+    private HandlerThread mThread;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        System.setProperty("dexmaker.dexcache",
+                getInstrumentation().getTargetContext().getCacheDir().getPath());
+        Thread.currentThread().setContextClassLoader(getClass().getClassLoader());
+        mThread = new HandlerThread("AsyncCommandsTest");
+        mThread.start();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mThread.quit();
+        super.tearDown();
+    }
+
+    private static Message captureOperatorRequest(CommandsInterface ci) {
+        ArgumentCaptor<Message> response = ArgumentCaptor.forClass(Message.class);
+        Mockito.verify(ci).getOperator(response.capture());
+        return response.getValue();
+    }
+
+    private static void respond(Message response, Object result, Throwable exception) {
+        AsyncResult.forMessage(response, result, exception);
+        response.sendToTarget();
+    }
+
+    @SmallTest
+    public void testResults() throws Exception {
+        CommandsInterface ci = Mockito.mock(CommandsInterface.class);
+        AsyncCommands async = new AsyncCommands(ci, mThread.getLooper());
+
+        RilFuture<String[]> op = async.getOperatorAsync();
+        RilFuture<String[]> again = async.getOperatorAsync();
+        ArgumentCaptor<Message> responses = ArgumentCaptor.forClass(Message.class);
+        Mockito.verify(ci, Mockito.times(2)).getOperator(responses.capture());
+        RilFuture<Void> all = RilFuture.whenAll(op, again);
+
+        String[] operator = { "Carrier", "Carrier", "310260" };
+        respond(responses.getAllValues().get(0), operator, null);
+        CommandException error = new CommandException(CommandException.Error.GENERIC_FAILURE);
+        respond(responses.getAllValues().get(1), null, error);
+
+        all.get(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        assertSame(operator, op.get());
+        try {
+            again.get();
+            fail("Expected ExecutionException");
+        } catch (ExecutionException expected) {
+            assertSame(error, expected.getCause());
+        }
+    }
+
+    @SmallTest
+    public void testCancelWithdrawsFromRil() throws Exception {
+        RIL ril = Mockito.mock(RIL.class);
+        AsyncCommands async = new AsyncCommands(ril, mThread.getLooper());
+
+        RilFuture<String[]> op = async.getOperatorAsync();
+        Message response = captureOperatorRequest(ril);
+        assertTrue(op.cancel(false));
+
+        // The cancellation is handed to the AsyncCommands Looper
+        Mockito.verify(ril, Mockito.timeout(TIMEOUT_MS)).cancelRequest(response);
+        try {
+            op.get();
+            fail("Expected CancellationException");
+        } catch (CancellationException expected) {
+        }
+    }
+
+    @SmallTest
+    public void testLateResponseAfterCancel() throws Exception {
+        // RIL does not withdraw a request already taken by RILSender, so its
+        // response still arrives and must be dropped
+        RIL ril = Mockito.mock(RIL.class);
+        Mockito.when(ril.cancelRequest(Mockito.any(Message.class))).thenReturn(false);
+        AsyncCommands async = new AsyncCommands(ril, mThread.getLooper());
+
+        RilFuture<String[]> op = async.getOperatorAsync();
+        Message response = captureOperatorRequest(ril);
+        assertTrue(op.cancel(false));
+        Mockito.verify(ril, Mockito.timeout(TIMEOUT_MS)).cancelRequest(response);
+
+        RilFuture<String[]> next = async.getOperatorAsync();
+        respond(response, new String[] { "late" }, null);
+        ArgumentCaptor<Message> responses = ArgumentCaptor.forClass(Message.class);
+        Mockito.verify(ril, Mockito.times(2)).getOperator(responses.capture());
+        String[] operator = { "Carrier", "Carrier", "310260" };
+        respond(responses.getAllValues().get(1), operator, null);
+
+        assertSame(operator, next.get(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertTrue(op.isCancelled());
+        assertNull(op.getResult());
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.telephony.SmsCbLocation;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test CellBroadcastDuplicateCache.
+ */
+public class CellBroadcastDuplicateCacheTest extends TestCase {
+
+    private static final int SERIAL = 0x3001;   // cell wide, message code 0x100, update 1
+    private static final int MESSAGE_ID = 4370;
+
+    @SmallTest
+    public void testDuplicateKey() throws Exception {
+        CellBroadcastDuplicateCache cache = new CellBroadcastDuplicateCache();
+        SmsCbLocation cell = new SmsCbLocation("310260", 1234, 5678);
+
+        assertFalse(cache.isDuplicate(SERIAL, MESSAGE_ID, cell, 0));
+        cache.add(SERIAL, MESSAGE_ID, cell, 0);
+        assertTrue(cache.isDuplicate(SERIAL, MESSAGE_ID,
+                new SmsCbLocation("310260", 1234, 5678), 1000));
+
+        // a new update number, another message identifier or another cell is a new message
+        assertFalse(cache.isDuplicate(SERIAL + 1, MESSAGE_ID, cell, 1000));
+        assertFalse(cache.isDuplicate(SERIAL, MESSAGE_ID + 1, cell, 1000));
+        assertFalse(cache.isDuplicate(SERIAL, MESSAGE_ID,
+                new SmsCbLocation("310260", 1234, 5679), 1000));
+    }
+
+    @SmallTest
+    public void testEtwsPrimaryThenSecondary() throws Exception {
+        CellBroadcastDuplicateCache cache = new CellBroadcastDuplicateCache();
+        SmsCbLocation cell = new SmsCbLocation("310260", 1234, 5678);
+        int etwsMessageId = 4352;   // earthquake warning
+
+        // the secondary message follows the primary notification with the same identifiers
+        assertFalse(cache.isDuplicate(SERIAL, etwsMessageId, cell, true, 0));
+        cache.add(SERIAL, etwsMessageId, cell, true, 0);
+        assertFalse(cache.isDuplicate(SERIAL, etwsMessageId, cell, false, 1000));
+        cache.add(SERIAL, etwsMessageId, cell, false, 1000);
+
+        // repeats of either are still dropped
+        assertTrue(cache.isDuplicate(SERIAL, etwsMessageId, cell, true, 2000));
+        assertTrue(cache.isDuplicate(SERIAL, etwsMessageId, cell, false, 2000));
+        assertEquals(2, cache.size());
+    }
+
+    @SmallTest
+    public void testExpiration() throws Exception {
+        CellBroadcastDuplicateCache cache = new CellBroadcastDuplicateCache();
+        SmsCbLocation plmn = new SmsCbLocation("310260");
+        long expiration = CellBroadcastDuplicateCache.EXPIRATION_MILLIS;
+
+        cache.add(SERIAL, MESSAGE_ID, plmn, 0);
+        cache.add(SERIAL, MESSAGE_ID + 1, plmn, 1000);
+        assertTrue(cache.isDuplicate(SERIAL, MESSAGE_ID, plmn, expiration - 1));
+        assertFalse(cache.isDuplicate(SERIAL, MESSAGE_ID, plmn, expiration));
+        assertTrue(cache.isDuplicate(SERIAL, MESSAGE_ID + 1, plmn, expiration));
+        assertEquals(1, cache.size());
+
+        // adding again restarts the window
+        cache.add(SERIAL, MESSAGE_ID + 1, plmn, expiration);
+        assertTrue(cache.isDuplicate(SERIAL, MESSAGE_ID + 1, plmn, expiration + 1000));
+    }
+
+    @SmallTest
+    public void testEvictOutsideArea() throws Exception {
+        CellBroadcastDuplicateCache cache = new CellBroadcastDuplicateCache();
+        SmsCbLocation plmnWide = new SmsCbLocation("310260");
+        SmsCbLocation laWide = new SmsCbLocation("310260", 1234, -1);
+        SmsCbLocation cellWide = new SmsCbLocation("310260", 1234, 5678);
+        cache.add(SERIAL, 1, plmnWide, 0);
+        cache.add(SERIAL, 2, laWide, 0);
+        cache.add(SERIAL, 3, cellWide, 0);
+
+        // new cell in the same location area
+        cache.evictOutsideArea("310260", 1234, 5679);
+        assertTrue(cache.isDuplicate(SERIAL, 1, plmnWide, 0));
+        assertTrue(cache.isDuplicate(SERIAL, 2, laWide, 0));
+        assertFalse(cache.isDuplicate(SERIAL, 3, cellWide, 0));
+
+        // new PLMN
+        cache.evictOutsideArea("310410", 1234, 5679);
+        assertEquals(0, cache.size());
+    }
+
+    @SmallTest
+    public void testBounded() throws Exception {
+        CellBroadcastDuplicateCache cache = new CellBroadcastDuplicateCache();
+        SmsCbLocation plmn = new SmsCbLocation("310260");
+        int max = CellBroadcastDuplicateCache.MAX_ENTRIES;
+        for (int i = 0; i <= max; i++) {
+            cache.add(SERIAL, i, plmn, i);
+        }
+        assertEquals(max, cache.size());
+        assertFalse(cache.isDuplicate(SERIAL, 0, plmn, max));
+        assertTrue(cache.isDuplicate(SERIAL, max, plmn, max));
+    }
+}
@@ -24,6 +24,7 @@ import com.android.internal.telephony.gsm.SmsMessage;
 import com.android.internal.util.HexDump;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class GsmSmsTest extends AndroidTestCase {
 
@@ -196,6 +197,56 @@ public class GsmSmsTest extends AndroidTestCase {
         assertEquals("{ testBody[^~\\] }", sms.getEmailBody());
     }
 
+    @SmallTest
+    public void testLazyParsing() throws Exception {
+        String[] pdus = {
+                "07914151551512f2040B916105551511f100006060605130308A04D4F29C0E",
+                "07912160130300F4040B914151245584F600087010807121352B1021220"
+                        + "0A900AE00680065006C006C006F",
+                "07916163838408F6440B816105224431F700007060217185000A23050003"
+                        + "00020262B1582C168BC96432994C2693C96432994C2693C96432990C",
+                "07912160130310F20404D0110041006060627171118A0120",
+                "07912180958750F84401800500C87020026195702B06040102000200",
+                "07914151551512f204038105f300007011103164638a28e6f71b50c687db"
+                        + "7076d9357eb7412f7a794e07cdeb6275794c07bde8e5391d247e93f3",
+        };
+
+        for (String pdu : pdus) {
+            byte[] bytes = HexDump.hexStringToByteArray(pdu);
+            SmsMessage eager = SmsMessage.createFromPdu(bytes, false);
+            SmsMessage lazy = SmsMessage.createFromPdu(bytes, true);
+
+            // The user data slice is available without decoding anything else
+            byte[] slice = Arrays.copyOfRange(lazy.getPdu(), lazy.getUserDataOffset(),
+                    lazy.getUserDataOffset() + lazy.getUserDataLength());
+            assertTrue(Arrays.equals(eager.getUserData(), slice));
+            assertTrue(Arrays.equals(eager.getUserData(), lazy.getUserData()));
+
+            assertEquals(eager.getMessageClass(), lazy.getMessageClass());
+            assertEquals(eager.isReplace(), lazy.isReplace());
+            assertEquals(eager.isMWISetMessage(), lazy.isMWISetMessage());
+            assertEquals(eager.isMwiDontStore(), lazy.isMwiDontStore());
+            assertEquals(eager.getServiceCenterAddress(), lazy.getServiceCenterAddress());
+            assertEquals(eager.getOriginatingAddress(), lazy.getOriginatingAddress());
+            assertEquals(eager.getTimestampMillis(), lazy.getTimestampMillis());
+            assertEquals(eager.getMessageBody(), lazy.getMessageBody());
+            assertEquals(eager.getDisplayOriginatingAddress(),
+                    lazy.getDisplayOriginatingAddress());
+            assertEquals(eager.isEmail(), lazy.isEmail());
+            assertEquals(eager.getUserDataHeader() == null, lazy.getUserDataHeader() == null);
+        }
+
+        // Structural errors are still caught when the message is created
+        assertNull(SmsMessage.createFromPdu(
+                HexDump.hexStringToByteArray("07914151551512f2040B9161"), true));
+
+        // So is a malformed user data header: element 0x70 has no length octet
+        String badUdh = "00440B916105551511f100006060605130308A0401704100";
+        assertNull(SmsMessage.createFromPdu(HexDump.hexStringToByteArray(badUdh), false));
+        assertNull(SmsMessage.createFromPdu(HexDump.hexStringToByteArray(badUdh), true));
+        assertNull(SmsMessage.newFromCMT(new String[] {"", badUdh}));
+    }
+
     @SmallTest
     public void testExtendedCharacterTable() throws Exception {
         String pdu = "07914151551512f2040B916105551511f100006080615131728A44D4F29C0E2" +
@@ -0,0 +1,62 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.internal.telephony;
+
+import android.content.ContentValues;
+import android.database.MatrixCursor;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.util.HexDump;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Test InboundSmsTracker raw table storage.
+ */
+public class InboundSmsTrackerTest extends TestCase {
+
+    private static final byte[] PDU = {0x07, (byte) 0x91, 0x00, (byte) 0xff, 0x12};
+
+    @SmallTest
+    public void testReadPdu() throws Exception {
+        MatrixCursor cursor = new MatrixCursor(new String[] {"pdu"});
+        cursor.addRow(new Object[] {PDU});
+        cursor.addRow(new Object[] {HexDump.toHexString(PDU)});
+
+        assertTrue(cursor.moveToNext());
+        assertTrue(Arrays.equals(PDU, InboundSmsTracker.readPdu(cursor, 0)));
+        assertTrue(cursor.moveToNext());
+        assertTrue(Arrays.equals(PDU, InboundSmsTracker.readPdu(cursor, 0)));
+    }
+
+    @SmallTest
+    public void testContentValues() throws Exception {
+        InboundSmsTracker tracker = new InboundSmsTracker(PDU, 1000, -1, false, "5551212", 7,
+                1, 2, false);
+
+        ContentValues blob = tracker.getContentValues(true);
+        assertTrue(Arrays.equals(PDU, blob.getAsByteArray("pdu")));
+
+        ContentValues hex = tracker.getContentValues(false);
+        assertEquals(HexDump.toHexString(PDU), hex.getAsString("pdu"));
+        assertEquals(blob.getAsInteger("destination_port"),
+                hex.getAsInteger("destination_port"));
+    }
+}
@@ -1134,4 +1134,47 @@ public class IntRangeManagerTest extends AndroidTestCase {
                 testManager.flags);
         assertEquals("configlist size", 0, testManager.mConfigList.size());
     }
+
+    public void testAddChannelsSharingEndId() {
+        // new [5, 9] starts on the last id of existing [1, 5]
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        assertTrue("enabling range 1", testManager.enableRange(1, 5, "client1"));
+        testManager.reset();
+        assertTrue("enabling range 2", testManager.enableRange(5, 9, "client2"));
+        assertEquals("flags after test", ALL_FLAGS_SET, testManager.flags);
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 6, 9, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+        testManager.reset();
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 9, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+
+        // id 5 is still enabled by client2
+        testManager.reset();
+        assertTrue("disabling range 1", testManager.disableRange(1, 5, "client1"));
+        assertEquals("configlist size", 1, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 5, 9, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+    }
+
+    public void testDisableRangeRadioFailure() {
+        TestIntRangeManager testManager = new TestIntRangeManager();
+        assertTrue("enabling range 1", testManager.enableRange(1, 5, "client1"));
+        assertTrue("enabling range 2", testManager.enableRange(8, 9, "client2"));
+        testManager.reset();
+        testManager.finishUpdateReturnValue = false;
+        assertFalse("disabling range 2", testManager.disableRange(8, 9, "client2"));
+        testManager.finishUpdateReturnValue = true;
+        testManager.reset();
+        assertTrue("updating ranges", testManager.updateRanges());
+        assertEquals("configlist size", 2, testManager.mConfigList.size());
+        checkConfigInfo(testManager.mConfigList.get(0), 1, 5, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+        checkConfigInfo(testManager.mConfigList.get(1), 8, 9, SMS_CB_CODE_SCHEME_MIN,
+                SMS_CB_CODE_SCHEME_MAX, true);
+        // the range is still held by client2 and can be disabled again
+        assertTrue("disabling range 2", testManager.disableRange(8, 9, "client2"));
+    }
 }
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Test SMSDispatcher.MultipartSendWindow.
+ */
+public class MultipartSendWindowTest extends TestCase {
+
+    private static final class RecordingSender
+            implements SMSDispatcher.MultipartSendWindow.Sender<String> {
+        final ArrayList<String> mSent = new ArrayList<String>();
+
+        @Override
+        public void sendQueued(String segment) {
+            mSent.add(segment);
+        }
+    }
+
+    @SmallTest
+    public void testWindowAcrossSentFailedAndRetry() throws Exception {
+        RecordingSender sender = new RecordingSender();
+        SMSDispatcher.MultipartSendWindow<String> window =
+                new SMSDispatcher.MultipartSendWindow<String>(2, sender);
+
+        // Two segments go to the radio, the rest wait
+        assertTrue(window.acquire("1"));
+        assertTrue(window.acquire("2"));
+        assertFalse(window.acquire("3"));
+        assertFalse(window.acquire("4"));
+        assertFalse(window.acquire("5"));
+        assertTrue(sender.mSent.isEmpty());
+
+        // Segment 1 gets a retryable error; the retry is sent without releasing or
+        // acquiring, so it keeps its slot and segment 3 waits for its onSent
+        assertTrue(sender.mSent.isEmpty());
+        window.release("1");
+        assertEquals(1, sender.mSent.size());
+        assertEquals("3", sender.mSent.get(0));
+
+        // Segment 2 fails for good; onFailed passes its slot on exactly once
+        window.release("2");
+        window.release("2");
+        assertEquals(2, sender.mSent.size());
+        assertEquals("4", sender.mSent.get(1));
+
+        window.release("3");
+        assertEquals(3, sender.mSent.size());
+        assertEquals("5", sender.mSent.get(2));
+
+        // Nothing is left queued, and a segment without a slot releases nothing
+        window.release("4");
+        window.release("1");
+        window.release("5");
+        assertEquals(3, sender.mSent.size());
+        assertTrue(window.acquire("6"));
+        assertTrue(window.acquire("7"));
+        assertFalse(window.acquire("8"));
+    }
+}
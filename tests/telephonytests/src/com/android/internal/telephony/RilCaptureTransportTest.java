@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+
+/**
+ * Test capturing RIL traffic and replaying it.
+ */
+public class RilCaptureTransportTest extends TestCase {
+
+    private static final int MAX_BYTES = 8 * 1024;
+
+    private static byte[] marshallInt(int value) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(value);
+        byte[] data = p.marshall();
+        p.recycle();
+        return data;
+    }
+
+    @SmallTest
+    public void testCaptureAndReplay() throws Exception {
+        // Two messages coming from rild
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        RilFramingTransport rild = new RilFramingTransport(
+                new ByteArrayInputStream(new byte[0]), wire, wire, MAX_BYTES);
+        rild.writeMessage(marshallInt(11));
+        rild.writeMessage(marshallInt(22));
+
+        ByteArrayInputStream in = new ByteArrayInputStream(wire.toByteArray());
+        ByteArrayOutputStream capture = new ByteArrayOutputStream();
+        RilCaptureTransport t = new RilCaptureTransport(
+                new RilFramingTransport(in, new ByteArrayOutputStream(), in, MAX_BYTES),
+                capture);
+
+        Parcel p = Parcel.obtain();
+        t.writeMessage(marshallInt(1));
+        assertTrue(t.readMessage(p));
+        assertEquals(11, p.readInt());
+        assertTrue(t.readMessage(p));
+        assertEquals(22, p.readInt());
+        assertFalse(t.readMessage(p));
+        t.close();
+
+        RilCaptureReader reader = new RilCaptureReader(
+                new ByteArrayInputStream(capture.toByteArray()));
+        RilCaptureReader.Record r = reader.next();
+        assertEquals(RilCaptureTransport.DIRECTION_TO_RILD, r.direction);
+        assertEquals(RilCaptureTransport.DIRECTION_FROM_RILD, reader.next().direction);
+        assertEquals(RilCaptureTransport.DIRECTION_FROM_RILD, reader.next().direction);
+        assertNull(reader.next());
+        reader.close();
+
+        // Replay skips our own request and returns what rild sent
+        RilReplayTransport replay = new RilReplayTransport(new RilCaptureReader(
+                new ByteArrayInputStream(capture.toByteArray())), 0);
+        assertTrue(replay.readMessage(p));
+        assertEquals(11, p.readInt());
+        assertTrue(replay.readMessage(p));
+        assertEquals(22, p.readInt());
+        assertFalse(replay.readMessage(p));
+        assertEquals(2, replay.getReadCount());
+        p.recycle();
+    }
+
+    @SmallTest
+    public void testReconnectAppendsToCapture() throws Exception {
+        File file = File.createTempFile("ril_capture", null);
+        try {
+            // One connection per value, each capturing to the same file
+            for (int value = 1; value <= 2; value++) {
+                ByteArrayOutputStream wire = new ByteArrayOutputStream();
+                RilFramingTransport rild = new RilFramingTransport(
+                        new ByteArrayInputStream(new byte[0]), wire, wire, MAX_BYTES);
+                rild.writeMessage(marshallInt(value));
+
+                ByteArrayInputStream in = new ByteArrayInputStream(wire.toByteArray());
+                RilCaptureTransport t = new RilCaptureTransport(
+                        new RilFramingTransport(in, new ByteArrayOutputStream(), in, MAX_BYTES),
+                        file.getPath());
+                Parcel p = Parcel.obtain();
+                assertTrue(t.readMessage(p));
+                assertFalse(t.readMessage(p));
+                p.recycle();
+                t.close();
+            }
+
+            RilReplayTransport replay = new RilReplayTransport(
+                    new RilCaptureReader(new FileInputStream(file)), 0);
+            Parcel p = Parcel.obtain();
+            assertTrue(replay.readMessage(p));
+            assertEquals(1, p.readInt());
+            assertTrue(replay.readMessage(p));
+            assertEquals(2, p.readInt());
+            assertFalse(replay.readMessage(p));
+            p.recycle();
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+/**
+ * Test RilFramingTransport over in-memory streams.
+ */
+public class RilFramingTransportTest extends TestCase {
+
+    private static final int MAX_BYTES = 8 * 1024;
+
+    private static byte[] marshallInts(int... values) {
+        Parcel p = Parcel.obtain();
+        for (int v : values) {
+            p.writeInt(v);
+        }
+        byte[] data = p.marshall();
+        p.recycle();
+        return data;
+    }
+
+    @SmallTest
+    public void testRoundTrip() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RilFramingTransport writer = new RilFramingTransport(
+                new ByteArrayInputStream(new byte[0]), out, out, MAX_BYTES);
+
+        writer.writeMessage(marshallInts(1, 2, 3));
+        writer.writeMessage(marshallInts(4));
+
+        byte[] wire = out.toByteArray();
+        // Big endian length header in front of each message
+        assertEquals(0, wire[0]);
+        assertEquals(0, wire[1]);
+        assertEquals(0, wire[2]);
+        assertEquals(12, wire[3]);
+
+        ByteArrayInputStream in = new ByteArrayInputStream(wire);
+        RilFramingTransport reader = new RilFramingTransport(in, new ByteArrayOutputStream(),
+                in, MAX_BYTES);
+
+        Parcel p = Parcel.obtain();
+        assertTrue(reader.readMessage(p));
+        assertEquals(1, p.readInt());
+        assertEquals(2, p.readInt());
+        assertEquals(3, p.readInt());
+
+        assertTrue(reader.readMessage(p));
+        assertEquals(4, p.readInt());
+
+        assertFalse(reader.readMessage(p));
+        p.recycle();
+    }
+
+    @SmallTest
+    public void testPartialReads() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RilFramingTransport writer = new RilFramingTransport(
+                new ByteArrayInputStream(new byte[0]), out, out, MAX_BYTES);
+        for (int i = 0; i < 100; i++) {
+            writer.writeMessage(marshallInts(i, -i));
+        }
+
+        // Deliver a single byte per read() to exercise frame reassembly
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray()) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        RilFramingTransport reader = new RilFramingTransport(in, new ByteArrayOutputStream(),
+                in, MAX_BYTES);
+
+        Parcel p = Parcel.obtain();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(reader.readMessage(p));
+            assertEquals(i, p.readInt());
+            assertEquals(-i, p.readInt());
+        }
+        assertFalse(reader.readMessage(p));
+        p.recycle();
+    }
+
+    @SmallTest
+    public void testReceive() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        RilFramingTransport writer = new RilFramingTransport(
+                new ByteArrayInputStream(new byte[0]), out, out, MAX_BYTES);
+        writer.writeMessage(marshallInts(7, 8));
+        writer.writeMessage(marshallInts(9));
+
+        // Deliver the first frame and half of the second one per read()
+        ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray()) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 4 + 8 + 2));
+            }
+        };
+        RilFramingTransport reader = new RilFramingTransport(in, new ByteArrayOutputStream(),
+                in, MAX_BYTES);
+
+        Parcel p = Parcel.obtain();
+        assertFalse(reader.hasBufferedMessage());
+        assertEquals(14, reader.receive());
+        assertTrue(reader.hasBufferedMessage());
+        assertTrue(reader.readMessage(p));
+        assertEquals(7, p.readInt());
+        assertEquals(8, p.readInt());
+        assertFalse(reader.hasBufferedMessage());
+
+        assertEquals(6, reader.receive());
+        assertTrue(reader.hasBufferedMessage());
+        assertTrue(reader.readMessage(p));
+        assertEquals(9, p.readInt());
+
+        assertEquals(-1, reader.receive());
+        p.recycle();
+    }
+
+    @SmallTest
+    public void testOversizedFrameRejected() throws Exception {
+        byte[] wire = new byte[] { 0x7f, 0, 0, 0 };
+        ByteArrayInputStream in = new ByteArrayInputStream(wire);
+        RilFramingTransport reader = new RilFramingTransport(in, new ByteArrayOutputStream(),
+                in, MAX_BYTES);
+
+        Parcel p = Parcel.obtain();
+        try {
+            reader.readMessage(p);
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+        p.recycle();
+    }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Test RilFuture.
+ */
+public class RilFutureTest extends TestCase {
+
+    @SmallTest
+    public void testComplete() throws Exception {
+        RilFuture<String> f = new RilFuture<String>();
+        final String[] seen = new String[1];
+        f.addListener(new RilFuture.Listener<String>() {
+            @Override
+            public void onDone(RilFuture<String> future) {
+                seen[0] = future.getResult();
+            }
+        });
+
+        try {
+            f.get(1, TimeUnit.MILLISECONDS);
+            fail("Expected TimeoutException");
+        } catch (TimeoutException expected) {
+        }
+
+        assertTrue(f.complete("op"));
+        assertFalse(f.fail(new RuntimeException()));
+        assertFalse(f.cancel(false));
+        assertEquals("op", f.get());
+        assertEquals("op", seen[0]);
+    }
+
+    @SmallTest
+    public void testFailAndCancel() throws Exception {
+        RilFuture<String> failed = new RilFuture<String>();
+        CommandException ex = new CommandException(CommandException.Error.GENERIC_FAILURE);
+        failed.fail(ex);
+        try {
+            failed.get();
+            fail("Expected ExecutionException");
+        } catch (ExecutionException expected) {
+            assertSame(ex, expected.getCause());
+        }
+
+        RilFuture<String> cancelled = new RilFuture<String>();
+        final boolean[] withdrawn = new boolean[1];
+        cancelled.setCanceller(new Runnable() {
+            @Override
+            public void run() {
+                withdrawn[0] = true;
+            }
+        });
+        assertTrue(cancelled.cancel(false));
+        assertTrue(withdrawn[0]);
+        assertTrue(cancelled.isCancelled());
+        assertFalse(cancelled.complete("late"));
+        try {
+            cancelled.get();
+            fail("Expected CancellationException");
+        } catch (CancellationException expected) {
+        }
+    }
+
+    @SmallTest
+    public void testWhenAll() throws Exception {
+        RilFuture<String> a = new RilFuture<String>();
+        RilFuture<int[]> b = new RilFuture<int[]>();
+        RilFuture<Void> all = RilFuture.whenAll(a, b);
+
+        a.complete("op");
+        assertFalse(all.isDone());
+        b.fail(new RuntimeException());
+        assertTrue(all.isDone());
+
+        assertTrue(RilFuture.whenAll().isDone());
+
+        // Cancelling the join cancels what is still pending
+        RilFuture<String> c = new RilFuture<String>();
+        RilFuture<String> d = new RilFuture<String>();
+        c.complete("done");
+        RilFuture<Void> both = RilFuture.whenAll(c, d);
+        assertTrue(both.cancel(false));
+        assertTrue(d.isCancelled());
+        assertFalse(c.isCancelled());
+    }
+
+    @SmallTest
+    public void testDoneFutureIgnoresCancel() throws Exception {
+        RilFuture<String> f = new RilFuture<String>();
+        final int[] withdrawn = new int[1];
+        f.setCanceller(new Runnable() {
+            @Override
+            public void run() {
+                withdrawn[0]++;
+            }
+        });
+        f.complete("op");
+
+        // A request that has been answered must not be withdrawn
+        assertFalse(f.cancel(false));
+        assertEquals(0, withdrawn[0]);
+
+        // Listeners added later run at once
+        final String[] seen = new String[1];
+        f.addListener(new RilFuture.Listener<String>() {
+            @Override
+            public void onDone(RilFuture<String> future) {
+                seen[0] = future.getResult();
+            }
+        });
+        assertEquals("op", seen[0]);
+    }
+}
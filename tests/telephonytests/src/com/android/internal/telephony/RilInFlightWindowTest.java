@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_OPERATOR;
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_SIGNAL_STRENGTH;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test RilInFlightWindow.
+ */
+public class RilInFlightWindowTest extends TestCase {
+
+    private static final long STALE_MS = 60000;
+
+    private static RILRequest request(int type, long enqueueTime) {
+        RILRequest rr = RILRequest.obtain(type, null);
+        rr.mEnqueueTime = enqueueTime;
+        return rr;
+    }
+
+    /**
+     * Polls the scheduler the way RILSender does and writes the request.
+     */
+    private static RILRequest send(RilSendScheduler scheduler, RilInFlightWindow window,
+            long now) {
+        RILRequest rr = scheduler.poll(now, window.isFull());
+        if (rr != null) {
+            rr.mWriteTime = now;
+            window.add(rr);
+        }
+        return rr;
+    }
+
+    @SmallTest
+    public void testUnansweredRequestDrains() throws Exception {
+        RilSendScheduler scheduler = new RilSendScheduler(false);
+        RilInFlightWindow window = new RilInFlightWindow(2, STALE_MS);
+        RILRequest lost = request(RIL_REQUEST_SIGNAL_STRENGTH, 0);
+        RILRequest answered = request(RIL_REQUEST_OPERATOR, 0);
+        RILRequest second = request(RIL_REQUEST_OPERATOR, 0);
+        RILRequest third = request(RIL_REQUEST_OPERATOR, 0);
+        scheduler.add(lost);
+        scheduler.add(answered);
+        scheduler.add(second);
+        scheduler.add(third);
+
+        assertSame(lost, send(scheduler, window, 0));
+        assertSame(answered, send(scheduler, window, 1000));
+        assertTrue(window.isFull());
+        assertNull(send(scheduler, window, 1000));
+
+        // A response frees a slot
+        assertTrue(window.remove(answered));
+        assertSame(second, send(scheduler, window, 2000));
+        assertNull(send(scheduler, window, 2000));
+        assertEquals(STALE_MS, window.getNextStaleTime());
+
+        // rild never answers the first request; it stops counting once stale
+        assertEquals(0, window.releaseStale(STALE_MS - 1));
+        assertTrue(window.isFull());
+        assertEquals(1, window.releaseStale(STALE_MS));
+        assertFalse(window.isFull());
+        assertSame(third, send(scheduler, window, STALE_MS));
+        assertEquals(0, scheduler.size());
+        assertEquals(1, window.getStaleCount());
+
+        // Its late response no longer holds a slot to give back
+        assertFalse(window.remove(lost));
+        assertTrue(window.remove(second));
+        assertTrue(window.remove(third));
+        assertEquals(0, window.size());
+        assertEquals(-1, window.getNextStaleTime());
+    }
+
+    @SmallTest
+    public void testDisabled() throws Exception {
+        RilInFlightWindow window = new RilInFlightWindow(0, STALE_MS);
+        RILRequest rr = request(RIL_REQUEST_OPERATOR, 0);
+        window.add(rr);
+        assertFalse(window.isEnabled());
+        assertFalse(window.isFull());
+        assertFalse(window.remove(rr));
+        assertEquals(0, window.size());
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import org.mockito.Mockito;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Test the receive path of RilIoEngine.
+ */
+public class RilIoEngineTest extends TestCase {
+
+    private static final int MAX_BYTES = 8 * 1024;
+
+    private static byte[] marshallInt(int value) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(value);
+        byte[] data = p.marshall();
+        p.recycle();
+        return data;
+    }
+
+    @SmallTest
+    public void testReceiveThroughCapture() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        RilFramingTransport rild = new RilFramingTransport(
+                new ByteArrayInputStream(new byte[0]), wire, wire, MAX_BYTES);
+        rild.writeMessage(marshallInt(11));
+        rild.writeMessage(marshallInt(22));
+
+        // The engine reads through whatever RIL.createRilTransport() returned
+        ByteArrayInputStream in = new ByteArrayInputStream(wire.toByteArray());
+        ByteArrayOutputStream capture = new ByteArrayOutputStream();
+        RilTransport t = new RilCaptureTransport(
+                new RilFramingTransport(in, new ByteArrayOutputStream(), in, MAX_BYTES),
+                capture);
+        RIL ril = Mockito.mock(RIL.class);
+        Parcel p = Parcel.obtain();
+
+        assertEquals(2, RilIoEngine.receive(ril, t, p));
+        Mockito.verify(ril, Mockito.times(2)).processResponse(p);
+        Mockito.verify(ril).processDeferredUnsolicited();
+
+        assertEquals(-1, RilIoEngine.receive(ril, t, p));
+        Mockito.verifyNoMoreInteractions(ril);
+        p.recycle();
+        t.close();
+
+        RilCaptureReader reader = new RilCaptureReader(
+                new ByteArrayInputStream(capture.toByteArray()));
+        assertEquals(RilCaptureTransport.DIRECTION_FROM_RILD, reader.next().direction);
+        assertEquals(RilCaptureTransport.DIRECTION_FROM_RILD, reader.next().direction);
+        assertNull(reader.next());
+        reader.close();
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.GENERIC_FAILURE;
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_SETUP_DATA_CALL;
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_SIM_IO;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test RilRequestStats.
+ */
+public class RilRequestStatsTest extends TestCase {
+
+    @SmallTest
+    public void testPercentiles() throws Exception {
+        RilRequestStats stats = new RilRequestStats(0);
+        // 98 fast responses and 2 slow ones
+        for (int i = 0; i < 98; i++) {
+            stats.record(RIL_REQUEST_SIM_IO, 0, 1000, 1001, 1040);
+        }
+        stats.record(RIL_REQUEST_SIM_IO, 0, 1000, 1001, 3000);
+        stats.record(RIL_REQUEST_SIM_IO, GENERIC_FAILURE, 1000, 1001, 3500);
+
+        RilRequestStats.Entry e = stats.getEntry(RIL_REQUEST_SIM_IO);
+        assertEquals(100, e.count);
+        assertEquals(1, e.errorCount);
+        assertEquals(1, e.errors.get(GENERIC_FAILURE));
+        assertEquals(50, e.getTotalPercentileMs(50));
+        assertEquals(2000, e.getTotalPercentileMs(99));
+        assertEquals(5000, e.getTotalPercentileMs(100));
+        assertEquals(2500, e.maxTotalMs);
+        assertEquals(1, e.getQueuePercentileMs(99));
+
+        assertNull(stats.getEntry(RIL_REQUEST_SETUP_DATA_CALL));
+    }
+
+    @SmallTest
+    public void testSnapshotIsCopy() throws Exception {
+        RilRequestStats stats = new RilRequestStats(1);
+        stats.record(RIL_REQUEST_SETUP_DATA_CALL, 0, 0, 0, 70000);
+
+        RilRequestStats.Entry e = stats.snapshot().get(0);
+        stats.record(RIL_REQUEST_SETUP_DATA_CALL, 0, 0, 0, 10);
+
+        assertEquals(1, e.count);
+        assertEquals(70000, e.getTotalPercentileMs(99));
+        assertEquals(2, stats.getEntry(RIL_REQUEST_SETUP_DATA_CALL).count);
+
+        stats.reset();
+        assertTrue(stats.snapshot().isEmpty());
+    }
+
+    @SmallTest
+    public void testQueueOverflowBucket() throws Exception {
+        RilRequestStats stats = new RilRequestStats(0);
+        stats.record(RIL_REQUEST_SIM_IO, 0, 0, 65000, 90000);
+
+        RilRequestStats.Entry e = stats.getEntry(RIL_REQUEST_SIM_IO);
+        assertEquals(65000, e.maxQueueMs);
+        assertEquals(65000, e.getQueuePercentileMs(99));
+        assertEquals(90000, e.getTotalPercentileMs(99));
+    }
+
+    @SmallTest
+    public void testServiceTime() throws Exception {
+        RilRequestStats stats = new RilRequestStats(0);
+        // long queueing, fast modem: only the total is slow
+        stats.record(RIL_REQUEST_SIM_IO, 0, 0, 4000, 4010);
+        // no queueing, slow modem
+        stats.record(RIL_REQUEST_SIM_IO, 0, 5000, 5000, 8000);
+
+        RilRequestStats.Entry e = stats.getEntry(RIL_REQUEST_SIM_IO);
+        assertEquals(10, e.getServicePercentileMs(50));
+        assertEquals(5000, e.getServicePercentileMs(100));
+        assertEquals(3000, e.maxServiceMs);
+        assertEquals(5000, e.getTotalPercentileMs(50));
+        assertEquals(5000, e.getQueuePercentileMs(100));
+        assertEquals(3000, stats.snapshot().get(0).maxServiceMs);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_OPERATOR;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Test RilRequestTable.
+ */
+public class RilRequestTableTest extends TestCase {
+
+    @SmallTest
+    public void testAppendRemove() throws Exception {
+        RilRequestTable table = new RilRequestTable(4);
+        RILRequest rr = RILRequest.obtain(RIL_REQUEST_OPERATOR, null);
+
+        table.append(rr.mSerial, rr);
+        assertEquals(1, table.size());
+        assertSame(rr, table.get(rr.mSerial));
+        assertNull(table.get(rr.mSerial + 1));
+
+        assertSame(rr, table.remove(rr.mSerial));
+        assertNull(table.remove(rr.mSerial));
+        assertEquals(0, table.size());
+        rr.release();
+    }
+
+    @SmallTest
+    public void testOverflow() throws Exception {
+        RilRequestTable table = new RilRequestTable(4);
+        ArrayList<RILRequest> requests = new ArrayList<RILRequest>();
+        // More requests than slots forces colliding serials into the overflow map
+        for (int i = 0; i < 10; i++) {
+            RILRequest rr = RILRequest.obtain(RIL_REQUEST_OPERATOR, null);
+            requests.add(rr);
+            table.append(rr.mSerial, rr);
+        }
+        assertEquals(10, table.size());
+        assertEquals(6, table.overflowSize());
+
+        for (RILRequest rr : requests) {
+            assertSame(rr, table.get(rr.mSerial));
+        }
+        for (int i = requests.size() - 1; i >= 0; i--) {
+            RILRequest rr = requests.get(i);
+            assertSame(rr, table.remove(rr.mSerial));
+        }
+        assertEquals(0, table.size());
+        assertEquals(0, table.overflowSize());
+    }
+
+    @SmallTest
+    public void testRemoveAll() throws Exception {
+        RilRequestTable table = new RilRequestTable(4);
+        for (int i = 0; i < 6; i++) {
+            RILRequest rr = RILRequest.obtain(RIL_REQUEST_OPERATOR, null);
+            table.append(rr.mSerial, rr);
+        }
+
+        assertEquals(6, table.snapshot().size());
+        assertEquals(6, table.size());
+        assertEquals(6, table.removeAll().size());
+        assertEquals(0, table.size());
+        assertTrue(table.snapshot().isEmpty());
+    }
+
+    @SmallTest
+    public void testStaleRemoveOfRecycledRequest() throws Exception {
+        RilRequestTable table = new RilRequestTable(4);
+        RILRequest rr = RILRequest.obtain(RIL_REQUEST_OPERATOR, null);
+        int oldSerial = rr.mSerial;
+        table.append(oldSerial, rr);
+        assertSame(rr, table.remove(oldSerial));
+
+        // the pooled request comes back under a serial that maps to the same slot
+        int newSerial = oldSerial + 4;
+        rr.mSerial = newSerial;
+        table.append(newSerial, rr);
+
+        assertNull(table.remove(oldSerial));
+        assertNull(table.get(oldSerial));
+        assertSame(rr, table.get(newSerial));
+        assertSame(rr, table.remove(newSerial));
+        assertEquals(0, table.size());
+        rr.release();
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_OPERATOR;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Test RilRequestTimer.
+ */
+public class RilRequestTimerTest extends TestCase {
+
+    private static RILRequest arm(RilRequestTimer timer, RilRequestTable table,
+            long now, long timeout) {
+        RILRequest rr = RILRequest.obtain(RIL_REQUEST_OPERATOR, null);
+        table.append(rr.mSerial, rr);
+        timer.schedule(rr, now, timeout);
+        return rr;
+    }
+
+    @SmallTest
+    public void testExpire() throws Exception {
+        RilRequestTimer timer = new RilRequestTimer(100, 8);
+        RilRequestTable table = new RilRequestTable();
+        ArrayList<RILRequest> expired = new ArrayList<RILRequest>();
+
+        RILRequest shortOne = arm(timer, table, 1000, 250);
+        // Longer than one turn of the wheel
+        RILRequest longOne = arm(timer, table, 1000, 2000);
+        assertEquals(2, timer.size());
+
+        assertEquals(0, timer.expire(1200, table, expired));
+        assertEquals(1, timer.expire(1300, table, expired));
+        assertSame(shortOne, expired.get(0));
+        assertNull(table.get(shortOne.mSerial));
+        assertFalse(timer.cancel(shortOne));
+
+        // Passes longOne's slot once without expiring it
+        expired.clear();
+        assertEquals(0, timer.expire(2900, table, expired));
+        assertEquals(1, timer.expire(3000, table, expired));
+        assertSame(longOne, expired.get(0));
+        assertEquals(0, timer.size());
+        assertEquals(0, table.size());
+    }
+
+    @SmallTest
+    public void testCancel() throws Exception {
+        RilRequestTimer timer = new RilRequestTimer(100, 8);
+        RilRequestTable table = new RilRequestTable();
+        ArrayList<RILRequest> expired = new ArrayList<RILRequest>();
+
+        RILRequest a = arm(timer, table, 0, 100);
+        RILRequest b = arm(timer, table, 0, 100);
+        RILRequest c = arm(timer, table, 0, 100);
+
+        // Answered normally
+        assertSame(b, table.remove(b.mSerial));
+        assertTrue(timer.cancel(b));
+        assertFalse(timer.cancel(b));
+
+        // Response being processed: removed from the table but not yet cancelled
+        assertSame(c, table.remove(c.mSerial));
+
+        assertEquals(1, timer.expire(100, table, expired));
+        assertSame(a, expired.get(0));
+        assertFalse(timer.cancel(c));
+        assertEquals(0, timer.size());
+    }
+
+    @SmallTest
+    public void testLongGap() throws Exception {
+        RilRequestTimer timer = new RilRequestTimer(100, 8);
+        RilRequestTable table = new RilRequestTable();
+        ArrayList<RILRequest> expired = new ArrayList<RILRequest>();
+
+        for (int i = 0; i < 20; i++) {
+            arm(timer, table, 0, 100 * i);
+        }
+        assertEquals(20, timer.expire(1000000, table, expired));
+        assertEquals(0, timer.size());
+
+        // Skips ahead instead of expiring new deadlines early
+        RILRequest rr = arm(timer, table, 2000000, 100);
+        expired.clear();
+        assertEquals(0, timer.expire(2000050, table, expired));
+        assertEquals(1, timer.expire(2000100, table, expired));
+        assertSame(rr, expired.get(0));
+    }
+}
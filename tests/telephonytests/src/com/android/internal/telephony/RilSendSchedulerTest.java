@@ -0,0 +1,144 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_DIAL;
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_OPERATOR;
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_SIM_IO;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test RilSendScheduler.
+ */
+public class RilSendSchedulerTest extends TestCase {
+
+    private static RILRequest request(int type, long enqueueTime) {
+        RILRequest rr = RILRequest.obtain(type, null);
+        rr.mEnqueueTime = enqueueTime;
+        return rr;
+    }
+
+    @SmallTest
+    public void testLanes() throws Exception {
+        RilSendScheduler scheduler = new RilSendScheduler(true);
+        RILRequest simIo = request(RIL_REQUEST_SIM_IO, 0);
+        RILRequest operator = request(RIL_REQUEST_OPERATOR, 0);
+        RILRequest dial = request(RIL_REQUEST_DIAL, 0);
+        RILRequest secondOperator = request(RIL_REQUEST_OPERATOR, 0);
+        assertNull(scheduler.add(simIo));
+        assertNull(scheduler.add(operator));
+        assertNull(scheduler.add(dial));
+        assertNull(scheduler.add(secondOperator));
+        assertEquals(4, scheduler.size());
+
+        // Urgent, then normal in FIFO order, then background
+        assertSame(dial, scheduler.poll(0));
+        assertSame(operator, scheduler.poll(0));
+        assertSame(secondOperator, scheduler.poll(0));
+        assertSame(simIo, scheduler.poll(0));
+        assertNull(scheduler.poll(0));
+    }
+
+    @SmallTest
+    public void testAging() throws Exception {
+        RilSendScheduler scheduler = new RilSendScheduler(true);
+
+        // One step of waiting is not enough to pass a fresh request two lanes up
+        RILRequest simIo = request(RIL_REQUEST_SIM_IO, 0);
+        RILRequest dial = request(RIL_REQUEST_DIAL, RilSendScheduler.AGING_STEP_MS);
+        scheduler.add(simIo);
+        scheduler.add(dial);
+        assertSame(dial, scheduler.poll(RilSendScheduler.AGING_STEP_MS));
+        assertSame(simIo, scheduler.poll(RilSendScheduler.AGING_STEP_MS));
+
+        // A background request that waited long enough overtakes a fresh normal one
+        RILRequest oldSimIo = request(RIL_REQUEST_SIM_IO, 0);
+        RILRequest newOperator = request(RIL_REQUEST_OPERATOR, 5000);
+        scheduler.add(newOperator);
+        scheduler.add(oldSimIo);
+        assertSame(oldSimIo, scheduler.poll(5000));
+        assertSame(newOperator, scheduler.poll(5000));
+    }
+
+    @SmallTest
+    public void testFifo() throws Exception {
+        RilSendScheduler scheduler = new RilSendScheduler(false);
+        RILRequest simIo = request(RIL_REQUEST_SIM_IO, 0);
+        RILRequest operator = request(RIL_REQUEST_OPERATOR, 0);
+        RILRequest dial = request(RIL_REQUEST_DIAL, 0);
+        scheduler.add(simIo);
+        scheduler.add(operator);
+        scheduler.add(dial);
+
+        assertSame(simIo, scheduler.poll(0));
+        assertSame(operator, scheduler.poll(0));
+        assertSame(dial, scheduler.poll(0));
+        assertNull(scheduler.poll(0));
+    }
+
+    @SmallTest
+    public void testWindowFull() throws Exception {
+        RilSendScheduler scheduler = new RilSendScheduler(true);
+        RILRequest operator = request(RIL_REQUEST_OPERATOR, 0);
+        RILRequest dial = request(RIL_REQUEST_DIAL, 0);
+        scheduler.add(operator);
+
+        assertNull(scheduler.poll(0, true));
+        scheduler.add(dial);
+        assertSame(dial, scheduler.poll(0, true));
+        assertNull(scheduler.poll(0, true));
+        assertSame(operator, scheduler.poll(0, false));
+    }
+
+    @SmallTest
+    public void testRejectNew() throws Exception {
+        RilSendScheduler scheduler = new RilSendScheduler(true, 2,
+                RilSendScheduler.SHED_REJECT_NEW);
+        RILRequest first = request(RIL_REQUEST_SIM_IO, 0);
+        RILRequest second = request(RIL_REQUEST_SIM_IO, 0);
+        RILRequest third = request(RIL_REQUEST_SIM_IO, 0);
+        assertNull(scheduler.add(first));
+        assertNull(scheduler.add(second));
+        assertSame(third, scheduler.add(third));
+
+        // Other classes are not bounded
+        assertNull(scheduler.add(request(RIL_REQUEST_OPERATOR, 0)));
+        assertEquals(3, scheduler.size());
+    }
+
+    @SmallTest
+    public void testDropOldest() throws Exception {
+        // FIFO mode still bounds background requests
+        RilSendScheduler scheduler = new RilSendScheduler(false, 2,
+                RilSendScheduler.SHED_DROP_OLDEST);
+        RILRequest operator = request(RIL_REQUEST_OPERATOR, 0);
+        RILRequest first = request(RIL_REQUEST_SIM_IO, 0);
+        RILRequest second = request(RIL_REQUEST_SIM_IO, 0);
+        RILRequest third = request(RIL_REQUEST_SIM_IO, 0);
+        scheduler.add(operator);
+        scheduler.add(first);
+        scheduler.add(second);
+        assertSame(first, scheduler.add(third));
+
+        assertSame(operator, scheduler.poll(0));
+        assertSame(second, scheduler.poll(0));
+        assertSame(third, scheduler.poll(0));
+    }
+}
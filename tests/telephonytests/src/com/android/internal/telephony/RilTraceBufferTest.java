@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.RIL_REQUEST_OPERATOR;
+import static com.android.internal.telephony.RILConstants.RIL_UNSOL_SIGNAL_STRENGTH;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Test RilTraceBuffer.
+ */
+public class RilTraceBufferTest extends TestCase {
+
+    private static String[] dump(RilTraceBuffer trace) {
+        StringWriter sw = new StringWriter();
+        PrintWriter pw = new PrintWriter(sw);
+        trace.dump(pw);
+        pw.flush();
+        return sw.toString().split("\n");
+    }
+
+    @SmallTest
+    public void testFormat() throws Exception {
+        RilTraceBuffer trace = new RilTraceBuffer(8);
+        trace.add(RilTraceBuffer.TYPE_SEND, 42, RIL_REQUEST_OPERATOR, 0, 3, 12);
+        trace.add(RilTraceBuffer.TYPE_RESPONSE, 42, RIL_REQUEST_OPERATOR, 2, 150, 40);
+        trace.add(RilTraceBuffer.TYPE_UNSOL, 0, RIL_UNSOL_SIGNAL_STRENGTH, 0, 0, 56);
+
+        String[] lines = dump(trace);
+        assertEquals(4, lines.length);
+        assertTrue(lines[1], lines[1].endsWith("> [42] OPERATOR t=3ms bytes=12"));
+        assertTrue(lines[2], lines[2].endsWith("< [42] OPERATOR error=2 t=150ms bytes=40"));
+        assertTrue(lines[3], lines[3].endsWith("[UNSL]< UNSOL_SIGNAL_STRENGTH bytes=56"));
+    }
+
+    @SmallTest
+    public void testWrap() throws Exception {
+        RilTraceBuffer trace = new RilTraceBuffer(4);
+        for (int i = 0; i < 10; i++) {
+            trace.add(RilTraceBuffer.TYPE_SEND, i, RIL_REQUEST_OPERATOR, 0, 0, 0);
+        }
+        assertEquals(10, trace.getCount());
+
+        // Only the newest records survive, oldest first
+        String[] lines = dump(trace);
+        assertEquals(5, lines.length);
+        assertTrue(lines[0], lines[0].contains("records=10 showing=4"));
+        for (int i = 0; i < 4; i++) {
+            assertTrue(lines[i + 1], lines[i + 1].contains("[" + (6 + i) + "]"));
+        }
+    }
+}
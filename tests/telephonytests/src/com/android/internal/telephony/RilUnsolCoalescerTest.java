@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import static com.android.internal.telephony.RILConstants.RIL_UNSOL_CELL_INFO_LIST;
+import static com.android.internal.telephony.RILConstants.RIL_UNSOL_RESPONSE_NEW_SMS;
+import static com.android.internal.telephony.RILConstants.RIL_UNSOL_SIGNAL_STRENGTH;
+
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test RilUnsolCoalescer.
+ */
+public class RilUnsolCoalescerTest extends TestCase {
+
+    /**
+     * Returns an unsolicited response positioned at its response id, as
+     * RIL.processResponse() hands it to the coalescer.
+     */
+    private static Parcel unsol(int response, int payload) {
+        Parcel p = Parcel.obtain();
+        p.writeInt(1);      // RESPONSE_UNSOLICITED
+        p.writeInt(response);
+        p.writeInt(payload);
+        p.setDataPosition(0);
+        p.readInt();
+        return p;
+    }
+
+    @SmallTest
+    public void testNotCoalescable() throws Exception {
+        RilUnsolCoalescer coalescer = new RilUnsolCoalescer();
+        Parcel p = unsol(RIL_UNSOL_RESPONSE_NEW_SMS, 0);
+        int position = p.dataPosition();
+
+        assertFalse(coalescer.defer(p));
+        assertEquals(position, p.dataPosition());
+        assertNull(coalescer.poll());
+        p.recycle();
+    }
+
+    @SmallTest
+    public void testLatestWins() throws Exception {
+        RilUnsolCoalescer coalescer = new RilUnsolCoalescer();
+        Parcel p = unsol(RIL_UNSOL_SIGNAL_STRENGTH, 1);
+        assertTrue(coalescer.defer(p));
+        p.recycle();
+        p = unsol(RIL_UNSOL_CELL_INFO_LIST, 2);
+        assertTrue(coalescer.defer(p));
+        p.recycle();
+        p = unsol(RIL_UNSOL_SIGNAL_STRENGTH, 3);
+        assertTrue(coalescer.defer(p));
+        p.recycle();
+
+        // The replaced signal strength report moves behind the cell info list
+        Parcel held = coalescer.poll();
+        assertEquals(RIL_UNSOL_CELL_INFO_LIST, held.readInt());
+        assertEquals(2, held.readInt());
+        held = coalescer.poll();
+        assertEquals(RIL_UNSOL_SIGNAL_STRENGTH, held.readInt());
+        assertEquals(3, held.readInt());
+        assertNull(coalescer.poll());
+        assertEquals(1, coalescer.getDroppedCount());
+    }
+
+    @SmallTest
+    public void testClear() throws Exception {
+        RilUnsolCoalescer coalescer = new RilUnsolCoalescer();
+        Parcel p = unsol(RIL_UNSOL_SIGNAL_STRENGTH, 1);
+        assertTrue(coalescer.defer(p));
+        p.recycle();
+
+        coalescer.clear();
+        assertNull(coalescer.poll());
+    }
+}
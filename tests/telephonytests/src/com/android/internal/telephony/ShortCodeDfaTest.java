@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import java.util.regex.Pattern;
+
+import junit.framework.TestCase;
+
+import static com.android.internal.telephony.SmsUsageMonitor.CATEGORY_FREE_SHORT_CODE;
+import static com.android.internal.telephony.SmsUsageMonitor.CATEGORY_NOT_SHORT_CODE;
+import static com.android.internal.telephony.SmsUsageMonitor.CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE;
+import static com.android.internal.telephony.SmsUsageMonitor.CATEGORY_PREMIUM_SHORT_CODE;
+import static com.android.internal.telephony.SmsUsageMonitor.CATEGORY_STANDARD_SHORT_CODE;
+
+/**
+ * Test ShortCodeDfa against java.util.regex.
+ */
+public class ShortCodeDfaTest extends TestCase {
+
+    /** Patterns for: short code, premium, free, standard. */
+    private static final String[][] PATTERNS = {
+            {"\\d{5}", "15191|55[56]00", null, null},
+            {"\\d{3,5}", "1(?:0[1-9]|1[2-8])\\d", "10[1-3]|1[1-9]1", null},
+            {"[1-9]\\d{3,4}", "(?:17|3)\\d{3}?", "112|911|[^5]00", "4[0-4]+5*"},
+    };
+
+    private static int matchPatterns(String[] patterns, String number) {
+        String[] ordered = {patterns[2], patterns[3], patterns[1], patterns[0]};
+        int[] categories = {CATEGORY_FREE_SHORT_CODE, CATEGORY_STANDARD_SHORT_CODE,
+                CATEGORY_PREMIUM_SHORT_CODE, CATEGORY_POSSIBLE_PREMIUM_SHORT_CODE};
+        for (int i = 0; i < ordered.length; i++) {
+            if (ordered[i] != null && Pattern.matches(ordered[i], number)) {
+                return categories[i];
+            }
+        }
+        return CATEGORY_NOT_SHORT_CODE;
+    }
+
+    @SmallTest
+    public void testMatchesRegex() throws Exception {
+        char[] alphabet = {'0', '1', '2', '3', '4', '5', '6', '7', '9', '+'};
+        for (String[] patterns : PATTERNS) {
+            ShortCodeDfa dfa = ShortCodeDfa.compile(patterns[0], patterns[1], patterns[2],
+                    patterns[3]);
+            assertNotNull(dfa);
+            // every string of up to five characters over the alphabet
+            for (int length = 0; length <= 5; length++) {
+                int total = (int) Math.pow(alphabet.length, length);
+                char[] chars = new char[length];
+                for (int n = 0; n < total; n++) {
+                    int rest = n;
+                    for (int i = 0; i < length; i++) {
+                        chars[i] = alphabet[rest % alphabet.length];
+                        rest /= alphabet.length;
+                    }
+                    String number = new String(chars);
+                    assertEquals(number, matchPatterns(patterns, number),
+                            dfa.getNumberCategory(number));
+                }
+            }
+        }
+    }
+
+    @SmallTest
+    public void testUnsupported() throws Exception {
+        assertNull(ShortCodeDfa.compile("\\d+x", null, null, null));
+        assertNull(ShortCodeDfa.compile("(?=1)\\d{3}", null, null, null));
+        assertNull(ShortCodeDfa.compile("\\d{3}+", null, null, null));
+        assertNull(ShortCodeDfa.compile("(12", null, null, null));
+    }
+}
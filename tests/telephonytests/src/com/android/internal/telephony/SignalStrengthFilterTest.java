@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.os.Parcel;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test SignalStrengthFilter.
+ */
+public class SignalStrengthFilterTest extends TestCase {
+
+    private static Parcel report(int gsm, int cdmaDbm, int rsrp) {
+        Parcel p = Parcel.obtain();
+        int[] values = {gsm, 99, cdmaDbm, 160, -1, -1, -1, 99, rsrp, 10, 50, 0, -1};
+        for (int v : values) {
+            p.writeInt(v);
+        }
+        p.setDataPosition(0);
+        return p;
+    }
+
+    private static boolean update(SignalStrengthFilter f, Parcel p, boolean force) {
+        try {
+            boolean changed = f.update(p, force);
+            assertEquals(0, p.dataPosition());
+            return changed;
+        } finally {
+            p.recycle();
+        }
+    }
+
+    @SmallTest
+    public void testDuplicatesSuppressed() throws Exception {
+        SignalStrengthFilter f = new SignalStrengthFilter(0);
+
+        assertTrue(update(f, report(20, 75, 100), false));
+        assertFalse(update(f, report(20, 75, 100), false));
+        assertTrue(update(f, report(21, 75, 100), false));
+        assertTrue(update(f, report(21, 76, 100), false));
+        assertEquals(1, f.getSuppressedCount());
+
+        // Forced and post-reset reports always go through
+        assertTrue(update(f, report(21, 76, 100), true));
+        f.reset();
+        assertTrue(update(f, report(21, 76, 100), false));
+    }
+
+    @SmallTest
+    public void testHysteresis() throws Exception {
+        SignalStrengthFilter f = new SignalStrengthFilter(3);
+
+        assertTrue(update(f, report(20, 75, 100), false));
+        assertFalse(update(f, report(20, 77, 102), false));
+        assertTrue(update(f, report(20, 78, 100), false));
+        assertFalse(update(f, report(20, 78, 98), false));
+
+        // Hysteresis only applies to dBm fields, not to ASU or to unknown values
+        assertTrue(update(f, report(21, 78, 100), false));
+        assertTrue(update(f, report(21, 78, -1), false));
+    }
+}
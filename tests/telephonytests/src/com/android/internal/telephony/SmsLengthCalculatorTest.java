@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.telephony.GsmAlphabet.TextEncodingDetails;
+
+import junit.framework.TestCase;
+
+/**
+ * Test SmsLengthCalculator against the full length calculation.
+ */
+public class SmsLengthCalculatorTest extends TestCase {
+
+    private static void assertSameDetails(String text, TextEncodingDetails expected,
+            TextEncodingDetails actual) {
+        assertEquals(text, expected.msgCount, actual.msgCount);
+        assertEquals(text, expected.codeUnitCount, actual.codeUnitCount);
+        assertEquals(text, expected.codeUnitsRemaining, actual.codeUnitsRemaining);
+        assertEquals(text, expected.codeUnitSize, actual.codeUnitSize);
+        assertEquals(text, expected.languageTable, actual.languageTable);
+        assertEquals(text, expected.languageShiftTable, actual.languageShiftTable);
+    }
+
+    private static void checkTyping(String text, boolean use7bitOnly) {
+        SmsLengthCalculator gsm = new SmsLengthCalculator(use7bitOnly, false);
+        SmsLengthCalculator cdma = new SmsLengthCalculator(use7bitOnly, true);
+        for (int i = 0; i < text.length(); i++) {
+            gsm.append(text.subSequence(i, i + 1));
+            cdma.append(text.subSequence(i, i + 1));
+            String prefix = text.substring(0, i + 1);
+            assertSameDetails(prefix, com.android.internal.telephony.gsm.SmsMessage
+                    .calculateLength(prefix, use7bitOnly), gsm.getTextEncodingDetails());
+            assertSameDetails(prefix, com.android.internal.telephony.cdma.SmsMessage
+                    .calculateLength(prefix, use7bitOnly, true), cdma.getTextEncodingDetails());
+        }
+    }
+
+    private static String repeat(String s, int times) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < times; i++) {
+            sb.append(s);
+        }
+        return sb.toString();
+    }
+
+    @SmallTest
+    public void testTyping() throws Exception {
+        checkTyping(repeat("Hello, world! {price} is 5\u20ac. ", 12), false);
+        checkTyping(repeat("Gr\u00fc\u00dfe aus K\u00f6ln ", 12), false);
+        checkTyping(repeat("\u00c7ok g\u00fczel \u011f\u0131\u015f ", 12), false);
+        checkTyping(repeat("\u0928\u092e\u0938\u094d\u0924\u0947 ", 12), true);
+        checkTyping(repeat("\u4f60\u597d\ud83d\ude00 ", 30), false);
+    }
+
+    @SmallTest
+    public void testEdits() throws Exception {
+        SmsLengthCalculator calc = new SmsLengthCalculator(false, false);
+        StringBuilder text = new StringBuilder(repeat("abc[]xyz ", 30));
+        calc.setText(text);
+        // insert a UCS-2 character in the middle, then remove it again
+        calc.replace(100, 100, "\u4f60");
+        text.insert(100, "\u4f60");
+        assertSameDetails(text.toString(), com.android.internal.telephony.gsm.SmsMessage
+                .calculateLength(text, false), calc.getTextEncodingDetails());
+        assertEquals(SmsConstants.ENCODING_16BIT, calc.getTextEncodingDetails().codeUnitSize);
+
+        calc.replace(100, 101, "");
+        text.delete(100, 101);
+        assertSameDetails(text.toString(), com.android.internal.telephony.gsm.SmsMessage
+                .calculateLength(text, false), calc.getTextEncodingDetails());
+        assertEquals(SmsConstants.ENCODING_7BIT, calc.getTextEncodingDetails().codeUnitSize);
+
+        calc.replace(0, text.length(), "");
+        assertEquals(0, calc.getTextEncodingDetails().codeUnitCount);
+    }
+}
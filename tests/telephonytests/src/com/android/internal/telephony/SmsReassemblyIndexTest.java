@@ -0,0 +1,174 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test SmsReassemblyIndex.
+ */
+public class SmsReassemblyIndexTest extends TestCase {
+
+    private static InboundSmsTracker segment(String address, int ref, int seq, int count,
+            int destPort) {
+        return new InboundSmsTracker(new byte[] {(byte) seq}, 0, destPort, false, address, ref,
+                seq, count, false);
+    }
+
+    @SmallTest
+    public void testReassembly() throws Exception {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        InboundSmsTracker third = segment("+1555", 7, 3, 3, -1);
+        assertFalse(index.isAuthoritative(third));
+        index.setSeeded();
+        assertTrue(index.isAuthoritative(third));
+
+        InboundSmsTracker first = segment("+1555", 7, 1, 3, 2948);
+        InboundSmsTracker second = segment("+1555", 7, 2, 3, -1);
+
+        index.add(third);
+        assertNull(index.claimComplete(third));
+        index.add(first);
+        assertTrue(index.isDuplicate(segment("+1555", 7, 1, 3, -1)));
+        assertFalse(index.isDuplicate(second));
+        // Same reference from another sender is a different message
+        assertFalse(index.isDuplicate(segment("+1666", 7, 1, 3, -1)));
+
+        index.add(second);
+        SmsReassemblyIndex.Entry entry = index.claimComplete(second);
+        assertNotNull(entry);
+        assertEquals(2948, entry.getDestPort());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i + 1, entry.getPdus()[i][0]);
+        }
+
+        // Claimed once only, but still known for duplicate detection until removed
+        assertNull(index.claimComplete(first));
+        assertTrue(index.isDuplicate(third));
+        index.remove("+1555", 7, 3);
+        assertFalse(index.isDuplicate(third));
+        assertEquals(0, index.size());
+    }
+
+    @SmallTest
+    public void testEviction() throws Exception {
+        SmsReassemblyIndex index = new SmsReassemblyIndex(2, 2);
+        index.setSeeded();
+
+        InboundSmsTracker evicted = segment("+1555", 1, 1, 2, -1);
+        index.add(evicted);
+        index.add(segment("+1555", 2, 1, 2, -1));
+        assertTrue(index.isAuthoritative(evicted));
+
+        index.add(segment("+1555", 3, 1, 2, -1));
+        assertEquals(2, index.size());
+        // Segments of message 1 are only in the raw table now, other messages still
+        // use the index
+        assertFalse(index.isAuthoritative(evicted));
+        assertTrue(index.isAuthoritative(segment("+1555", 2, 2, 2, -1)));
+        assertTrue(index.isAuthoritative(segment("+1555", 4, 1, 2, -1)));
+
+        // Later segments of the evicted message are not indexed
+        index.add(segment("+1555", 1, 2, 2, -1));
+        assertEquals(2, index.size());
+        assertFalse(index.isAuthoritative(evicted));
+
+        // Once its rows are deleted a new message reusing the reference is indexed
+        index.remove("+1555", 1, 2);
+        assertTrue(index.isAuthoritative(evicted));
+    }
+
+    @SmallTest
+    public void testEvictedKeysOverflow() throws Exception {
+        SmsReassemblyIndex index = new SmsReassemblyIndex(1, 1);
+        index.setSeeded();
+
+        index.add(segment("+1555", 1, 1, 2, -1));
+        index.add(segment("+1555", 2, 1, 2, -1));
+        InboundSmsTracker other = segment("+1555", 9, 1, 2, -1);
+        assertTrue(index.isAuthoritative(other));
+
+        // Too many evicted keys to remember, fall back to the raw table for all
+        index.add(segment("+1555", 3, 1, 2, -1));
+        assertFalse(index.isAuthoritative(other));
+        index.setSeeded();
+        assertFalse(index.isAuthoritative(other));
+    }
+
+    @SmallTest
+    public void testConcurrentRecovery() throws Exception {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        InboundSmsTracker first = segment("+1555", 9, 1, 2, -1);
+        InboundSmsTracker second = segment("+1555", 9, 2, 2, -1);
+
+        // Handler broadcast and deleted the message from the raw table while the
+        // recovery scan still held its rows
+        index.add(second);
+        index.markDispatched(second);
+        index.remove("+1555", 9, 2);
+        index.addRecovered(first);
+        assertEquals(0, index.size());
+
+        index.setSeeded();
+        assertTrue(index.isAuthoritative(first));
+
+        // A new message reusing the reference is indexed normally
+        index.add(first);
+        index.add(second);
+        assertNotNull(index.claimComplete(second));
+    }
+
+    @SmallTest
+    public void testRemoveExpiredWithReusedReference() throws Exception {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        InboundSmsTracker expired = segment("+1555", 5, 1, 2, -1);
+        InboundSmsTracker reused = segment("+1555", 5, 2, 2, -1);
+
+        // A new message reused the reference of an expired one during the scan; only the
+        // expired rows are deleted, the new segment stays in the raw table
+        index.add(reused);
+        index.addRecovered(expired);
+        index.removeRecovered("+1555", 5, 2);
+        index.setSeeded();
+        assertEquals(0, index.size());
+        assertFalse(index.isAuthoritative(reused));
+
+        index.remove("+1555", 5, 2);
+        assertTrue(index.isAuthoritative(reused));
+
+        // Without new segments the message is simply forgotten
+        index.addRecovered(segment("+1555", 6, 1, 2, -1));
+        index.removeRecovered("+1555", 6, 2);
+        assertEquals(0, index.size());
+        assertTrue(index.isAuthoritative(segment("+1555", 6, 1, 2, -1)));
+    }
+
+    @SmallTest
+    public void testSeedingFailed() throws Exception {
+        SmsReassemblyIndex index = new SmsReassemblyIndex();
+        InboundSmsTracker first = segment("+1555", 9, 1, 2, -1);
+        index.setSeedingFailed();
+
+        // Removed messages are no longer remembered for a replay that will not come
+        index.remove("+1555", 9, 2);
+        index.addRecovered(first);
+        assertEquals(1, index.size());
+        assertFalse(index.isAuthoritative(first));
+    }
+}
@@ -870,4 +870,31 @@ public class Wap230WspContentTypeTest extends TestCase {
         WspTypeDecoder unit = new WspTypeDecoder(out.toByteArray());
         assertFalse(unit.decodeContentType(0));
     }
+
+    public void testParametersDecodedOnDemandKeepLatestResult() throws Exception {
+
+        String testType = "application/wibble";
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(testType.length() + 5);
+        out.write(testType.getBytes("US-ASCII"));
+        out.write(WSP_STRING_TERMINATOR);
+        out.write(TYPED_PARAM_SEC | WSP_SHORT_INTEGER_MASK);
+        out.write(0x01 | WSP_SHORT_INTEGER_MASK);
+        out.write(TYPED_PARAM_MAC | WSP_SHORT_INTEGER_MASK);
+        out.write(PARAM_NO_VALUE);
+
+        WspTypeDecoder unit = new WspTypeDecoder(out.toByteArray());
+        assertTrue(unit.decodeContentType(0));
+        assertEquals(24, unit.getDecodedDataLength());
+
+        // decoding the parameters must not disturb the content type result
+        Map<String, String> params = unit.getContentParameters();
+        assertEquals("1", params.get("SEC"));
+        assertTrue(params.containsKey("MAC"));
+        assertNull(params.get("MAC"));
+        assertEquals(testType, unit.getValueString());
+        assertEquals(-1, unit.getValue32());
+        assertEquals(24, unit.getDecodedDataLength());
+        assertSame(params, unit.getContentParameters());
+    }
 }
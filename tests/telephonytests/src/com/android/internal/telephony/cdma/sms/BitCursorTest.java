@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.telephony.cdma.sms;
+
+import android.test.suitebuilder.annotation.SmallTest;
+
+import com.android.internal.util.BitwiseInputStream;
+import com.android.internal.util.BitwiseOutputStream;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class BitCursorTest extends TestCase {
+
+    @SmallTest
+    public void testReadMatchesBitwiseInputStream() throws Exception {
+        Random random = new Random(21);
+        for (int iter = 0; iter < 500; iter++) {
+            byte[] data = new byte[1 + random.nextInt(32)];
+            random.nextBytes(data);
+            BitwiseInputStream stream = new BitwiseInputStream(data);
+            BitCursor cursor = new BitCursor(data);
+            while (stream.available() > 0) {
+                assertEquals(stream.available(), cursor.available());
+                int bits = random.nextInt(Math.min(8, stream.available()) + 1);
+                switch (random.nextInt(3)) {
+                    case 0:
+                        if (bits == 0) bits = 1;
+                        assertEquals(stream.read(bits), cursor.read(bits));
+                        break;
+                    case 1:
+                        bits = random.nextInt(stream.available() + 1);
+                        assertTrue(Arrays.equals(stream.readByteArray(bits),
+                                cursor.readByteArray(bits)));
+                        break;
+                    default:
+                        stream.skip(bits);
+                        cursor.skip(bits);
+                        break;
+                }
+            }
+            assertEquals(0, cursor.available());
+        }
+    }
+
+    @SmallTest
+    public void testWriteMatchesBitwiseOutputStream() throws Exception {
+        Random random = new Random(42);
+        BitCursor cursor = new BitCursor(4);
+        for (int iter = 0; iter < 500; iter++) {
+            BitwiseOutputStream stream = new BitwiseOutputStream(4);
+            cursor.reset();
+            int ops = random.nextInt(40);
+            for (int i = 0; i < ops; i++) {
+                int bits = random.nextInt(9);
+                switch (random.nextInt(3)) {
+                    case 0:
+                        if (bits == 0) bits = 1;
+                        int value = random.nextInt();
+                        stream.write(bits, value);
+                        cursor.write(bits, value);
+                        break;
+                    case 1:
+                        byte[] arr = new byte[random.nextInt(6)];
+                        random.nextBytes(arr);
+                        int arrBits = random.nextInt(arr.length * 8 + 1);
+                        stream.writeByteArray(arrBits, arr);
+                        cursor.writeByteArray(arrBits, arr);
+                        break;
+                    default:
+                        stream.skip(bits);
+                        cursor.skip(bits);
+                        break;
+                }
+            }
+            assertTrue(Arrays.equals(stream.toByteArray(), cursor.toByteArray()));
+        }
+    }
+
+    @SmallTest
+    public void testWideReadsAndWrites() throws Exception {
+        BitCursor writer = new BitCursor(1);
+        writer.write(3, 0x5);
+        writer.write(32, 0xCAFEBABE);
+        writer.write(16, 0x1234);
+        BitCursor reader = new BitCursor(writer.toByteArray());
+        assertEquals(0x5, reader.read(3));
+        assertEquals(0xCAFEBABE, reader.read(32));
+        assertEquals(0x1234, reader.read(16));
+    }
+
+    @SmallTest
+    public void testWrapWindow() throws Exception {
+        byte[] data = {0x01, 0x02, (byte) 0xF0, 0x0F, 0x05};
+        BitCursor cursor = new BitCursor(data);
+        cursor.wrap(data, 2, 2);
+        assertEquals(16, cursor.available());
+        assertEquals(0xF00F, cursor.read(16));
+        assertEquals(16, cursor.position());
+        try {
+            cursor.read(1);
+            fail("read past the window end");
+        } catch (BitCursor.AccessException expected) {
+        }
+        cursor.skip(-16);
+        assertEquals(0xF, cursor.read(4));
+        try {
+            cursor.skip(-8);
+            fail("skip before the window start");
+        } catch (BitCursor.AccessException expected) {
+        }
+    }
+}
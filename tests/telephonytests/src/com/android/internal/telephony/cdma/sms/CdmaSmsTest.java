@@ -389,6 +389,43 @@ public class CdmaSmsTest extends AndroidTestCase {
         assertEquals(decodedHeader.portAddrs, null);
     }
 
+    @SmallTest
+    public void testDeferredUserDataText() throws Exception {
+        BearerData bearerData = new BearerData();
+        bearerData.messageType = BearerData.MESSAGE_TYPE_DELIVER;
+        bearerData.messageId = 56;
+        SmsHeader.ConcatRef concatRef = new SmsHeader.ConcatRef();
+        concatRef.refNumber = 0x42;
+        concatRef.msgCount = 2;
+        concatRef.seqNumber = 1;
+        concatRef.isEightBits = true;
+        SmsHeader smsHeader = new SmsHeader();
+        smsHeader.concatRef = concatRef;
+        UserData userData = new UserData();
+        userData.payloadStr = "deferred text";
+        userData.userDataHeader = smsHeader;
+        bearerData.userData = userData;
+        byte[] encodedSms = BearerData.encode(bearerData);
+
+        BearerData revBearerData = BearerData.decode(encodedSms, 0, true);
+        assertEquals(56, revBearerData.messageId);
+        assertNotNull(revBearerData.userData.payload);
+        assertNull(revBearerData.userData.payloadStr);
+        assertEquals(0x42, revBearerData.userData.userDataHeader.concatRef.refNumber);
+        assertTrue(revBearerData.decodeDeferredUserDataText());
+        assertEquals("deferred text", revBearerData.userData.payloadStr);
+        // Nothing left to decode the second time around.
+        assertTrue(revBearerData.decodeDeferredUserDataText());
+        assertEquals("deferred text", revBearerData.userData.payloadStr);
+
+        // The reused encoder buffer must not leak bits into a shorter message.
+        bearerData.userData = new UserData();
+        bearerData.userData.payloadStr = "hi";
+        revBearerData = BearerData.decode(BearerData.encode(bearerData));
+        assertEquals("hi", revBearerData.userData.payloadStr);
+        assertNull(revBearerData.userData.userDataHeader);
+    }
+
     @SmallTest
     public void testUserDataHeaderIllegalConcatRef() throws Exception {
         BearerData bearerData = new BearerData();